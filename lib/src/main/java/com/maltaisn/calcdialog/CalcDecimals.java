@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Canonical instances of the small values typed and computed most often, like digits,
+ * and values with a few fraction digits like 0.5 or 12.25. Getting a cached value returns
+ * the same instance every time instead of allocating a new one.
+ * <p>
+ * Values have the same scale as with {@link BigDecimal}, so they are still equal
+ * only to values with the same scale. The cache is filled when the class is loaded,
+ * so that values can be shared with the threads evaluating expressions.
+ */
+final class CalcDecimals {
+
+    /** Values with an unscaled value between {@code -MAX_UNSCALED} and {@code MAX_UNSCALED} are cached. */
+    static final int MAX_UNSCALED = 100;
+
+    /** Values with a scale between 0 and {@code MAX_SCALE} are cached. */
+    static final int MAX_SCALE = 2;
+
+    /** Returned when an unscaled value doesn't fit in a long. */
+    private static final long OVERFLOW = Long.MIN_VALUE;
+
+    /** Values with this precision or less always have an unscaled value fitting in a long. */
+    private static final int MAX_LONG_PRECISION = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_LONG_PRECISION + 1];
+
+    /** Cached values indexed by scale, then by unscaled value plus {@link #MAX_UNSCALED}. */
+    private static final BigDecimal[][] CACHE = new BigDecimal[MAX_SCALE + 1][MAX_UNSCALED * 2 + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            for (int i = 0; i < CACHE[scale].length; i++) {
+                CACHE[scale][i] = BigDecimal.valueOf(i - MAX_UNSCALED, scale);
+            }
+        }
+    }
+
+    private CalcDecimals() {
+        // No instances
+    }
+
+    /**
+     * Same as {@link BigDecimal#valueOf(long, int)}, but small values are cached.
+     */
+    @NonNull
+    static BigDecimal valueOf(long unscaled, int scale) {
+        if (scale >= 0 && scale <= MAX_SCALE && unscaled >= -MAX_UNSCALED && unscaled <= MAX_UNSCALED) {
+            return CACHE[scale][(int) unscaled + MAX_UNSCALED];
+        }
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * Same as {@link BigDecimal#BigDecimal(BigInteger, int)}, but small values are cached.
+     */
+    @NonNull
+    static BigDecimal valueOf(@NonNull BigInteger unscaled, int scale) {
+        if (unscaled.bitLength() < 64) {
+            return valueOf(unscaled.longValue(), scale);
+        }
+        return new BigDecimal(unscaled, scale);
+    }
+
+    /**
+     * Same as {@link BigDecimal#stripTrailingZeros()}, but small values are cached,
+     * and a value without trailing zeroes is returned as is.
+     */
+    @NonNull
+    static BigDecimal stripTrailingZeros(@NonNull BigDecimal value) {
+        if (value.signum() == 0) {
+            return BigDecimal.ZERO;
+        } else if (value.precision() > MAX_LONG_PRECISION) {
+            return value.stripTrailingZeros();
+        }
+
+        long unscaled = unscaledLong(value);
+        int scale = value.scale();
+        if (unscaled % 10 != 0
+                && (scale < 0 || scale > MAX_SCALE || Math.abs(unscaled) > MAX_UNSCALED)) {
+            // Nothing to strip and not cached.
+            return value;
+        }
+        while (unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        return valueOf(unscaled, scale);
+    }
+
+    /**
+     * Get the unscaled value of a value with a precision of at most 18 digits.
+     * {@link BigDecimal#unscaledValue()} allocates a {@link BigInteger} on every call. This is
+     * avoided for integers and for cached values, and other values only allocate a compact
+     * {@link BigDecimal} without the magnitude array.
+     */
+    static long unscaledLong(@NonNull BigDecimal value) {
+        int scale = value.scale();
+        if (scale == 0) {
+            return value.longValue();
+        } else if (scale > 0 && scale <= MAX_SCALE) {
+            // Cached values of a scale are sorted, and comparing values with the same scale
+            // only compares their unscaled values.
+            int index = Arrays.binarySearch(CACHE[scale], value);
+            if (index >= 0) {
+                return index - MAX_UNSCALED;
+            }
+        }
+        return value.movePointRight(scale).longValue();
+    }
+
+    /**
+     * Get the value typed after a digit is added to a value.
+     * @param value    The typed value, null if no digits were typed.
+     * @param scale    The number of fraction digits typed, which may be more than the
+     *                 scale of the value if it has trailing zeroes, at least 0.
+     * @param digit    The digit added.
+     * @param newScale The number of fraction digits after the digit is added,
+     *                 either {@code scale} if typing the integer part or {@code scale + 1}.
+     */
+    @NonNull
+    static BigDecimal appendDigit(@Nullable BigDecimal value, int scale, int digit, int newScale) {
+        if (value == null) {
+            return valueOf(digit, newScale);
+        }
+        if (value.signum() < 0) {
+            digit = -digit;
+        }
+        long unscaled = getUnscaled(value, scale);
+        if (unscaled != OVERFLOW && Math.abs(unscaled) < POWERS_OF_TEN[MAX_LONG_PRECISION - 1]) {
+            return valueOf(unscaled * 10 + digit, newScale);
+        }
+        return valueOf(value.setScale(scale).unscaledValue()
+                .multiply(BigInteger.TEN).add(BigInteger.valueOf(digit)), newScale);
+    }
+
+    /**
+     * Get the value typed after the last digit of a value is erased.
+     * @param value The typed value, with more than one digit.
+     * @param scale The number of fraction digits typed, at least 0.
+     * @return The value with one digit less, with one fraction digit less if there were any.
+     */
+    @NonNull
+    static BigDecimal eraseDigit(@NonNull BigDecimal value, int scale) {
+        int newScale = Math.max(0, scale - 1);
+        long unscaled = getUnscaled(value, scale);
+        if (unscaled != OVERFLOW) {
+            return valueOf(unscaled / 10, newScale);
+        }
+        return valueOf(value.setScale(scale).unscaledValue().divide(BigInteger.TEN), newScale);
+    }
+
+    /**
+     * Get the unscaled value of a value at a scale, or {@link #OVERFLOW} if it doesn't fit.
+     * The value must be exact at that scale.
+     */
+    private static long getUnscaled(@NonNull BigDecimal value, int scale) {
+        int shift = scale - value.scale();
+        if (value.precision() + shift > MAX_LONG_PRECISION || shift < -MAX_LONG_PRECISION) {
+            return OVERFLOW;
+        }
+        long unscaled = unscaledLong(value);
+        return shift >= 0 ? unscaled * POWERS_OF_TEN[shift] : unscaled / POWERS_OF_TEN[-shift];
+    }
+
+}
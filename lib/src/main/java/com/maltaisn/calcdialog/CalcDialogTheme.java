@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.view.ContextThemeWrapper;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.content.res.AppCompatResources;
+
+/**
+ * Snapshot of the calculator dialog attributes resolved from a theme.
+ * Attributes are the same every time the dialog is shown with the same theme,
+ * so snapshots are cached per host theme and resolved again only if the configuration changed.
+ * Must only be used on the main thread.
+ */
+final class CalcDialogTheme {
+
+    private static final Map<Resources.Theme, CalcDialogTheme> cache = new WeakHashMap<>();
+
+    /** The configuration with which attributes were resolved. */
+    private final Configuration configuration;
+
+    /** The calculator dialog style resolved from the {@code calcDialogStyle} attribute. */
+    final int style;
+
+    final CharSequence[] btnTexts;
+    final CharSequence[] errorMessages;
+    final int windowAnimations;
+    final int maxDialogWidth;
+    final int maxDialogHeight;
+    final int headerColor;
+    final int headerElevationColor;
+    final int separatorColor;
+    final int numberBtnColor;
+    final int operationBtnColor;
+
+    private CalcDialogTheme(Context context, Configuration config) {
+        configuration = new Configuration(config);
+
+        // Wrap calculator dialog's theme to context
+        TypedArray ta = context.obtainStyledAttributes(new int[]{R.attr.calcDialogStyle});
+        style = ta.getResourceId(0, R.style.CalcDialogStyle);
+        ta.recycle();
+        Context themedContext = new ContextThemeWrapper(context, style);
+
+        ta = themedContext.obtainStyledAttributes(R.styleable.CalcDialog);
+        btnTexts = ta.getTextArray(R.styleable.CalcDialog_calcButtonTexts);
+        errorMessages = ta.getTextArray(R.styleable.CalcDialog_calcErrors);
+        windowAnimations = ta.getResourceId(R.styleable.CalcDialog_calcDialogWindowAnimimation, 0);
+        maxDialogWidth = ta.getDimensionPixelSize(R.styleable.CalcDialog_calcDialogMaxWidth, -1);
+        maxDialogHeight = ta.getDimensionPixelSize(R.styleable.CalcDialog_calcDialogMaxHeight, -1);
+        headerColor = getColor(themedContext, ta, R.styleable.CalcDialog_calcHeaderColor);
+        headerElevationColor = getColor(themedContext, ta, R.styleable.CalcDialog_calcHeaderElevationColor);
+        separatorColor = getColor(themedContext, ta, R.styleable.CalcDialog_calcDividerColor);
+        numberBtnColor = getColor(themedContext, ta, R.styleable.CalcDialog_calcDigitBtnColor);
+        operationBtnColor = getColor(themedContext, ta, R.styleable.CalcDialog_calcOperationBtnColor);
+        ta.recycle();
+    }
+
+    /**
+     * Get the resolved attributes for the theme of a context, using the cached
+     * snapshot if there's one for this theme and configuration.
+     * @param context The host context, not wrapped with the calculator dialog style.
+     * @return The resolved attributes.
+     */
+    @NonNull
+    static CalcDialogTheme get(@NonNull Context context) {
+        Resources.Theme theme = context.getTheme();
+        Configuration config = context.getResources().getConfiguration();
+        CalcDialogTheme dialogTheme = cache.get(theme);
+        if (dialogTheme == null || dialogTheme.configuration.diff(config) != 0) {
+            dialogTheme = new CalcDialogTheme(context, config);
+            cache.put(theme, dialogTheme);
+        }
+        return dialogTheme;
+    }
+
+    private static int getColor(Context context, TypedArray ta, int index) {
+        int resId = ta.getResourceId(index, 0);
+        if (resId == 0) {
+            // Raw color value e.g.: #FF000000
+            return ta.getColor(index, 0);
+        } else {
+            // Color reference pointing to color state list or raw color.
+            return AppCompatResources.getColorStateList(context, resId).getDefaultColor();
+        }
+    }
+
+}
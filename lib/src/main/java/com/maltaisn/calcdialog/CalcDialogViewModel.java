@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelProvider;
+
+/**
+ * Holds the settings and the presenter of a calculator dialog across configuration changes,
+ * so that they're handed over to the new dialog instead of being restored from a Bundle.
+ * The saved state Bundle is only read when the process was killed.
+ */
+final class CalcDialogViewModel extends ViewModel {
+
+    static final ViewModelProvider.Factory FACTORY = new ViewModelProvider.Factory() {
+        @NonNull
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends ViewModel> T create(@NonNull Class<T> modelClass) {
+            return (T) new CalcDialogViewModel();
+        }
+    };
+
+    @Nullable
+    CalcSettings settings;
+
+    @Nullable
+    CalcPresenter presenter;
+
+    @Override
+    protected void onCleared() {
+        if (presenter != null) {
+            // Dialog is closed for good, the state saved for process death won't be read.
+            presenter.deleteSpilledExpression();
+        }
+        settings = null;
+        presenter = null;
+    }
+
+}
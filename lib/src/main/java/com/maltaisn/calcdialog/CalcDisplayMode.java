@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.text.NumberFormat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The notation used to display values too long to be shown with all their digits.
+ */
+public enum CalcDisplayMode {
+
+    /**
+     * All digits are always shown.
+     */
+    STANDARD,
+
+    /**
+     * Long values are shown in scientific notation, with a single digit before
+     * the decimal separator, for example {@code 1.2345E12}.
+     */
+    SCIENTIFIC,
+
+    /**
+     * Long values are shown in engineering notation, with an exponent
+     * multiple of 3, for example {@code 12.345E9}.
+     */
+    ENGINEERING;
+
+
+    /**
+     * Format a value with this notation if it's too long.
+     * Only the displayed significant digits are formatted, whatever the size of the value.
+     * @param nbFormat  The number format used for the value, or for the significand.
+     * @param value     The value to format.
+     * @param maxDigits Maximum number of digits shown without notation.
+     * @return The formatted value.
+     */
+    @NonNull
+    String format(@NonNull NumberFormat nbFormat, @NonNull BigDecimal value, int maxDigits) {
+        if (this == STANDARD || value.signum() == 0) {
+            return nbFormat.format(value);
+        }
+
+        // Estimate the number of digits shown without notation from the precision and scale.
+        int intDigits = value.precision() - value.scale();
+        int fracDigits = Math.min(Math.max(value.scale(), 0), nbFormat.getMaximumFractionDigits());
+        int digits = Math.max(intDigits, 1) + fracDigits;
+        if (digits <= maxDigits && (intDigits > 0 || -intDigits < fracDigits)) {
+            // Short enough, or a small value that isn't shown as zero.
+            return nbFormat.format(value);
+        }
+
+        // Round to the number of significant digits shown, then compute the exponent.
+        int significantDigits = Math.max(1, Math.min(maxDigits, nbFormat.getMaximumFractionDigits() + 1));
+        BigDecimal rounded = value.round(new MathContext(significantDigits, nbFormat.getRoundingMode()));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (this == ENGINEERING) {
+            exponent = (exponent >= 0 ? exponent / 3 : (exponent - 2) / 3) * 3;
+        }
+
+        return nbFormat.format(rounded.movePointLeft(exponent)) + 'E' + exponent;
+    }
+
+}
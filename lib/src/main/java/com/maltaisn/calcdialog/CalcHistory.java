@@ -0,0 +1,689 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * History of the expressions evaluated by the calculator, stored in an append-only log file.
+ * Each record is framed by its length on both sides, so that the log can be read backward
+ * from the end one page at a time, newest entries first, without reading the whole file.
+ * When the log has twice the maximum number of entries, it's compacted to keep only the newest.
+ * All file operations are done on a background thread and results are delivered on the main thread.
+ * <p>
+ * Searches use a {@link CalcHistoryIndex} built the first time the history is searched and
+ * updated as entries are added. A snapshot of the index is saved next to the log, along with
+ * the log length it covers, so that only the records added since need to be indexed when loaded.
+ * If the snapshot is missing or corrupted, or if the log was compacted, the index is rebuilt from the log.
+ */
+final class CalcHistory {
+
+    private static final String TAG = CalcHistory.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "calc_history";
+
+    private static final int MAGIC = 0x43414c48;
+    private static final int VERSION = 2;
+
+    /** Header is magic number, version and approximate number of entries. */
+    private static final int HEADER_SIZE = 12;
+    private static final int HEADER_COUNT_POS = 8;
+
+    /**
+     * Records are framed by their length before and after. A record is never empty, so a
+     * zero length is treated as corruption, for example a tail of zeros left by a torn write.
+     */
+    private static final int RECORD_OVERHEAD = 8;
+
+    /** Page position to load the newest entries. */
+    static final long PAGE_NEWEST = -1;
+
+    /** Page position returned when there are no more entries to load. */
+    static final long PAGE_NONE = 0;
+
+    /**
+     * Page positions are a record position stamped with the log generation in the high bits,
+     * so that positions returned before the log was compacted aren't used on the new log.
+     */
+    private static final int PAGE_POSITION_BITS = 40;
+    private static final long PAGE_POSITION_MASK = (1L << PAGE_POSITION_BITS) - 1;
+    private static final int PAGE_GENERATION_MASK = (1 << (63 - PAGE_POSITION_BITS)) - 1;
+
+    private static final int INDEX_MAGIC = 0x43414c49;
+
+    /** Index snapshot is saved after this number of entries was added to it. */
+    private static final int INDEX_SAVE_INTERVAL = 32;
+
+    private static final Map<File, CalcHistory> instances = new HashMap<>();
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "CalcHistory");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final File indexFile;
+
+    /** Executor on which page callbacks are called. */
+    private final Executor callbackExecutor;
+
+    // Only accessed on the background thread.
+    private RandomAccessFile raf;
+    private int count;
+    private CalcHistoryIndex index;
+    private int unsavedIndexEntries;
+    private int generation;
+
+    /**
+     * @param file             The log file, the index snapshot is saved next to it.
+     * @param callbackExecutor Executor on which page callbacks are called.
+     */
+    CalcHistory(@NonNull File file, @NonNull Executor callbackExecutor) {
+        this.file = file;
+        this.indexFile = new File(file.getPath() + ".idx");
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Get the history with a name, shared by all dialogs using that name.
+     * @param context Any context.
+     * @param name    The history name.
+     * @return The history.
+     */
+    @NonNull
+    static CalcHistory getInstance(@NonNull Context context, @NonNull String name) {
+        File dir = new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME);
+        File file = new File(dir, name + ".log");
+        synchronized (instances) {
+            CalcHistory history = instances.get(file);
+            if (history == null) {
+                final Handler mainHandler = new Handler(Looper.getMainLooper());
+                history = new CalcHistory(file, new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        mainHandler.post(command);
+                    }
+                });
+                instances.put(file, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Add an entry to the history. The entry is encoded immediately and written later.
+     * @param expression The evaluated expression.
+     * @param result     The result of the expression.
+     * @param maxSize    The maximum number of entries kept when the log is compacted.
+     */
+    void add(@NonNull Expression expression, @NonNull BigDecimal result, final int maxSize) {
+        final byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(System.currentTimeMillis());
+            Expression.writeNumber(out, result);
+            expression.writeTo(out);
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            // Can't happen with a byte array stream.
+            throw new IllegalStateException(e);
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                    append(payload);
+                    if (count >= 2L * maxSize) {
+                        compact(maxSize);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to add history entry.", e);
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Load a page of entries, from newest to oldest.
+     * @param position Position returned by the previous page, or {@link #PAGE_NEWEST}.
+     * @param size     Maximum number of entries to load.
+     * @param callback Callback called on the main thread with the entries.
+     */
+    void loadPage(final long position, final int size, @NonNull final PageCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> entries = new ArrayList<>(size);
+                long next;
+                try {
+                    open();
+                    long start = (position == PAGE_NEWEST ? raf.length() : getPagePosition(position));
+                    next = (start == PAGE_NONE ? PAGE_NONE : readPage(start, size, entries));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read history entries.", e);
+                    close();
+                    next = PAGE_NONE;
+                }
+
+                final long nextPosition = next;
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPageLoaded(entries, nextPosition);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Search entries containing a value in a range, from newest to oldest.
+     * @param min         Minimum value, inclusive.
+     * @param max         Maximum value, inclusive.
+     * @param resultsOnly Whether to only match results or any number of the expression.
+     * @param position    Position returned by the previous page, or {@link #PAGE_NEWEST}.
+     * @param size        Maximum number of entries to load.
+     * @param callback    Callback called on the main thread with the entries.
+     */
+    void search(@NonNull final BigDecimal min, @NonNull final BigDecimal max, final boolean resultsOnly,
+                final long position, final int size, @NonNull final PageCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> entries = new ArrayList<>(size);
+                long next;
+                try {
+                    open();
+                    // Stale position is PAGE_NONE, for which nothing is found.
+                    long before = (position == PAGE_NEWEST ? Long.MAX_VALUE : getPagePosition(position));
+                    long[] positions;
+                    try {
+                        loadIndex();
+                        positions = index.find(min, max, resultsOnly, before, size);
+                        readEntries(positions, entries);
+                    } catch (IOException e) {
+                        // Index doesn't match the log, rebuild it and search again.
+                        Log.w(TAG, "History index is corrupted, rebuilding it.", e);
+                        deleteIndex();
+                        entries.clear();
+                        loadIndex();
+                        positions = index.find(min, max, resultsOnly, before, size);
+                        readEntries(positions, entries);
+                    }
+                    next = (positions.length == size ? makePagePosition(positions[size - 1]) : PAGE_NONE);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to search history entries.", e);
+                    close();
+                    next = PAGE_NONE;
+                }
+
+                final long nextPosition = next;
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPageLoaded(entries, nextPosition);
+                    }
+                });
+            }
+        });
+    }
+
+    @WorkerThread
+    private void open() throws IOException {
+        if (raf != null) return;
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create history directory.");
+        }
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+            // New file or unknown format, start a new log.
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(0);
+            count = 0;
+        } else {
+            count = raf.readInt();
+            if (!isLastRecordValid()) {
+                recover();
+            }
+        }
+    }
+
+    @WorkerThread
+    private void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            raf = null;
+        }
+    }
+
+    @WorkerThread
+    private void append(byte[] payload) throws IOException {
+        long start = raf.length();
+        raf.seek(start);
+        raf.writeInt(payload.length);
+        raf.write(payload);
+        raf.writeInt(payload.length);
+
+        count++;
+        raf.seek(HEADER_COUNT_POS);
+        raf.writeInt(count);
+
+        if (index != null && index.indexedLength == start) {
+            // Keep the loaded index up to date, it's saved once in a while.
+            Entry entry = decodeEntry(start, payload);
+            index.add(start, entry.expression, entry.result);
+            index.indexedLength = raf.length();
+            unsavedIndexEntries++;
+            if (unsavedIndexEntries >= INDEX_SAVE_INTERVAL) {
+                saveIndex();
+            }
+        }
+    }
+
+    /**
+     * Read the entries at record positions.
+     */
+    @WorkerThread
+    private void readEntries(long[] positions, List<Entry> entries) throws IOException {
+        long length = raf.length();
+        for (long position : positions) {
+            if (position < HEADER_SIZE || position + RECORD_OVERHEAD > length) {
+                throw new IOException("Invalid history record position.");
+            }
+            raf.seek(position);
+            int recordLength = raf.readInt();
+            if (recordLength <= 0 || position + RECORD_OVERHEAD + recordLength > length) {
+                throw new IOException("Invalid history record position.");
+            }
+            byte[] payload = new byte[recordLength];
+            raf.readFully(payload);
+            if (raf.readInt() != recordLength) {
+                throw new IOException("Invalid history record position.");
+            }
+            entries.add(decodeEntry(position, payload));
+        }
+    }
+
+    /**
+     * Load the index snapshot if not loaded and index the records added after it.
+     * If there's no valid snapshot, the whole log is indexed.
+     */
+    @WorkerThread
+    private void loadIndex() throws IOException {
+        if (index != null) return;
+
+        index = readIndexSnapshot();
+        if (index == null || index.indexedLength < HEADER_SIZE || index.indexedLength > raf.length()) {
+            index = new CalcHistoryIndex();
+            index.indexedLength = HEADER_SIZE;
+        }
+
+        // Catch up with the records added since the snapshot was saved.
+        long length = raf.length();
+        long position = index.indexedLength;
+        int added = 0;
+        while (position < length) {
+            raf.seek(position);
+            int recordLength = raf.readInt();
+            long end = position + RECORD_OVERHEAD + recordLength;
+            if (recordLength <= 0 || end > length) {
+                if (index.indexedLength == HEADER_SIZE) {
+                    throw new IOException("Corrupted history record.");
+                }
+                // Snapshot doesn't end on a record boundary, index the whole log.
+                index = new CalcHistoryIndex();
+                position = HEADER_SIZE;
+                added = 0;
+                continue;
+            }
+
+            byte[] payload = new byte[recordLength];
+            raf.readFully(payload);
+            if (raf.readInt() != recordLength) {
+                throw new IOException("Corrupted history record.");
+            }
+            try {
+                Entry entry = decodeEntry(position, payload);
+                index.add(position, entry.expression, entry.result);
+            } catch (IOException e) {
+                // Record is framed correctly but its content is corrupted, leave it out.
+                Log.w(TAG, "Failed to decode history entry, not indexing it.", e);
+            }
+            position = end;
+            added++;
+        }
+        index.indexedLength = position;
+
+        unsavedIndexEntries = added;
+        if (added > 0) {
+            saveIndex();
+        }
+    }
+
+    /**
+     * Read the index snapshot file.
+     * @return The index, or null if there's no snapshot or if it's corrupted.
+     */
+    @WorkerThread
+    private CalcHistoryIndex readIndexSnapshot() {
+        if (!indexFile.exists()) return null;
+        try {
+            byte[] bytes = new byte[(int) indexFile.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+
+            // Snapshot ends with a checksum of its content.
+            if (bytes.length < 16) return null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) return null;
+            CalcHistoryIndex snapshot = CalcHistoryIndex.readFrom(in);
+            if (in.readLong() != crc.getValue()) {
+                Log.w(TAG, "History index snapshot checksum doesn't match.");
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read history index snapshot.", e);
+            return null;
+        }
+    }
+
+    @WorkerThread
+    private void saveIndex() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new FileOutputStream(tempFile), new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                index.writeTo(out);
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Failed to replace history index.");
+            }
+            unsavedIndexEntries = 0;
+        } catch (IOException e) {
+            // Snapshot will be saved later or the index rebuilt.
+            Log.w(TAG, "Failed to save history index snapshot.", e);
+        }
+    }
+
+    /**
+     * Discard the loaded index and its snapshot, called when record positions change.
+     */
+    @WorkerThread
+    private void deleteIndex() {
+        index = null;
+        unsavedIndexEntries = 0;
+        if (indexFile.exists() && !indexFile.delete()) {
+            Log.w(TAG, "Failed to delete history index snapshot.");
+        }
+    }
+
+    /**
+     * Read entries backward from a position.
+     * @return The position of the next page, or {@link #PAGE_NONE} if there are no more entries.
+     */
+    @WorkerThread
+    private long readPage(long position, int size, List<Entry> entries) throws IOException {
+        if (position < HEADER_SIZE || position > raf.length()) {
+            throw new IOException("Invalid history page position.");
+        }
+        while (entries.size() < size && position > HEADER_SIZE) {
+            raf.seek(position - 4);
+            int length = raf.readInt();
+            long start = position - RECORD_OVERHEAD - length;
+            if (length <= 0 || start < HEADER_SIZE) {
+                throw new IOException("Corrupted history record.");
+            }
+            raf.seek(start);
+            if (raf.readInt() != length) {
+                throw new IOException("Corrupted history record.");
+            }
+
+            byte[] payload = new byte[length];
+            raf.readFully(payload);
+            try {
+                entries.add(decodeEntry(start, payload));
+            } catch (IOException e) {
+                // Record is framed correctly but its content is corrupted, skip it.
+                Log.w(TAG, "Failed to decode history entry, skipping it.", e);
+            }
+            position = start;
+        }
+        return position > HEADER_SIZE ? makePagePosition(position) : PAGE_NONE;
+    }
+
+    /**
+     * Stamp a record position with the log generation to return it as a page position.
+     */
+    @WorkerThread
+    private long makePagePosition(long position) {
+        return (long) generation << PAGE_POSITION_BITS | position;
+    }
+
+    /**
+     * Get the record position of a page position.
+     * @return The position, or {@link #PAGE_NONE} if the log was compacted since it was returned.
+     */
+    @WorkerThread
+    private long getPagePosition(long pagePosition) {
+        if ((int) (pagePosition >>> PAGE_POSITION_BITS) != generation) {
+            return PAGE_NONE;
+        }
+        return pagePosition & PAGE_POSITION_MASK;
+    }
+
+    /**
+     * Check whether the last record was completely written, which isn't
+     * the case if the process was killed during a write.
+     */
+    @WorkerThread
+    private boolean isLastRecordValid() throws IOException {
+        long length = raf.length();
+        if (length == HEADER_SIZE) return true;
+        if (length < HEADER_SIZE + RECORD_OVERHEAD) return false;
+
+        raf.seek(length - 4);
+        int recordLength = raf.readInt();
+        long start = length - RECORD_OVERHEAD - recordLength;
+        if (recordLength <= 0 || start < HEADER_SIZE) return false;
+        raf.seek(start);
+        return raf.readInt() == recordLength;
+    }
+
+    /**
+     * Scan the log from the start and truncate it after the last valid record.
+     */
+    @WorkerThread
+    private void recover() throws IOException {
+        Log.w(TAG, "History log is corrupted, truncating after last valid entry.");
+        deleteIndex();
+        long length = raf.length();
+        long position = HEADER_SIZE;
+        count = 0;
+        while (position + RECORD_OVERHEAD <= length) {
+            raf.seek(position);
+            int recordLength = raf.readInt();
+            long end = position + RECORD_OVERHEAD + recordLength;
+            if (recordLength <= 0 || end > length) break;
+            raf.seek(end - 4);
+            if (raf.readInt() != recordLength) break;
+            position = end;
+            count++;
+        }
+        raf.setLength(position);
+        raf.seek(HEADER_COUNT_POS);
+        raf.writeInt(count);
+    }
+
+    /**
+     * Rewrite the log to keep only the newest entries.
+     * @param size The number of entries to keep.
+     */
+    @WorkerThread
+    private void compact(int size) throws IOException {
+        // Find the start of the oldest entry kept by walking back from the end.
+        long start = raf.length();
+        int kept = 0;
+        while (kept < size && start > HEADER_SIZE) {
+            raf.seek(start - 4);
+            int length = raf.readInt();
+            start -= RECORD_OVERHEAD + length;
+            if (length <= 0 || start < HEADER_SIZE) {
+                throw new IOException("Corrupted history record.");
+            }
+            kept++;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        try {
+            temp.setLength(0);
+            temp.writeInt(MAGIC);
+            temp.writeInt(VERSION);
+            temp.writeInt(kept);
+
+            byte[] buffer = new byte[8192];
+            raf.seek(start);
+            int read;
+            while ((read = raf.read(buffer)) > 0) {
+                temp.write(buffer, 0, read);
+            }
+        } finally {
+            temp.close();
+        }
+
+        // Positions change, delete the index before replacing the log so it's never stale,
+        // and invalidate the page positions returned so far.
+        deleteIndex();
+        generation = (generation + 1) & PAGE_GENERATION_MASK;
+        close();
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Failed to replace history log.");
+        }
+        open();
+    }
+
+    /**
+     * Decode the payload of a record.
+     * @throws IOException If the payload is corrupted, whatever the exception thrown when decoding it.
+     */
+    @NonNull
+    private static Entry decodeEntry(long position, byte[] payload) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long time = in.readLong();
+            BigDecimal result = Expression.readNumber(in);
+            Expression expression = Expression.readFrom(in);
+            return new Entry(position, time, expression, result);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted history entry.", e);
+        }
+    }
+
+    interface PageCallback {
+        /**
+         * Called when a page of entries was loaded.
+         * @param entries The entries, from newest to oldest.
+         * @param next    The position of the next page, or {@link #PAGE_NONE} if there are none.
+         */
+        void onPageLoaded(@NonNull List<Entry> entries, long next);
+    }
+
+    /**
+     * An entry of the history.
+     */
+    static final class Entry {
+
+        /** Position of the entry record in the log. */
+        final long position;
+
+        /** Time at which the expression was evaluated, in millis since epoch. */
+        final long time;
+
+        @NonNull
+        final Expression expression;
+
+        @NonNull
+        final BigDecimal result;
+
+        Entry(long position, long time, @NonNull Expression expression, @NonNull BigDecimal result) {
+            this.position = position;
+            this.time = time;
+            this.expression = expression;
+            this.result = result;
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Adapter for the history panel, loading entries one page at a time as the list is scrolled.
+ */
+class CalcHistoryAdapter extends RecyclerView.Adapter<CalcHistoryAdapter.ViewHolder> {
+
+    private static final int PAGE_SIZE = 30;
+
+    /** Next page is loaded when an item this close to the end is bound. */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private final List<CalcHistory.Entry> entries = new ArrayList<>();
+    private final Listener listener;
+
+    private CalcHistory history;
+    private NumberFormat nbFormat;
+
+    /** Only entries containing this value are shown if not null. */
+    @Nullable
+    private BigDecimal filter;
+
+    private long nextPage = CalcHistory.PAGE_NONE;
+    private boolean loading;
+
+    /** Incremented on each reload so that pages requested before are ignored. */
+    private int generation;
+
+    CalcHistoryAdapter(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Clear the entries and load the first page of a history.
+     * @param history  The history.
+     * @param nbFormat The format used to format the entries.
+     * @param filter   If not null, only entries containing this value are loaded.
+     */
+    void load(@NonNull CalcHistory history, @NonNull NumberFormat nbFormat, @Nullable BigDecimal filter) {
+        this.history = history;
+        this.nbFormat = nbFormat;
+        this.filter = filter;
+
+        entries.clear();
+        notifyDataSetChanged();
+
+        generation++;
+        loading = false;
+        nextPage = CalcHistory.PAGE_NEWEST;
+        loadNextPage();
+    }
+
+    private void loadNextPage() {
+        if (loading || nextPage == CalcHistory.PAGE_NONE) return;
+
+        loading = true;
+        final int requestGeneration = generation;
+        final boolean firstPage = entries.isEmpty();
+        CalcHistory.PageCallback callback = new CalcHistory.PageCallback() {
+            @Override
+            public void onPageLoaded(@NonNull List<CalcHistory.Entry> page, long next) {
+                if (requestGeneration != generation) return;
+
+                loading = false;
+                nextPage = next;
+                int start = entries.size();
+                entries.addAll(page);
+                notifyItemRangeInserted(start, page.size());
+
+                if (page.isEmpty() && next != CalcHistory.PAGE_NONE) {
+                    // No entries were read in the page, but there are more to load.
+                    loadNextPage();
+                    return;
+                }
+                if (firstPage) {
+                    listener.onHistoryLoaded(entries.isEmpty());
+                }
+            }
+        };
+        if (filter == null) {
+            history.loadPage(nextPage, PAGE_SIZE, callback);
+        } else {
+            history.search(filter, filter, false, nextPage, PAGE_SIZE, callback);
+        }
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.calc_item_history, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        CalcHistory.Entry entry = entries.get(position);
+        holder.expressionTxv.setText(entry.expression.format(nbFormat));
+        holder.valueTxv.setText(nbFormat.format(entry.result));
+
+        if (position >= entries.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView expressionTxv;
+        final TextView valueTxv;
+
+        ViewHolder(@NonNull View view) {
+            super(view);
+            expressionTxv = view.findViewById(R.id.calc_txv_history_expression);
+            valueTxv = view.findViewById(R.id.calc_txv_history_value);
+
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        listener.onEntryClicked(entries.get(position));
+                    }
+                }
+            });
+        }
+    }
+
+    interface Listener {
+        void onEntryClicked(@NonNull CalcHistory.Entry entry);
+
+        /**
+         * Called when the first page of a history is loaded.
+         * @param empty Whether the history has no entries.
+         */
+        void onHistoryLoaded(boolean empty);
+    }
+
+}
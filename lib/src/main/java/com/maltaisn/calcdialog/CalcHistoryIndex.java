@@ -0,0 +1,229 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Index of the history log mapping numeric values to the positions of the records containing them.
+ * Values are ordered by {@link BigDecimal#compareTo(BigDecimal)}, so the scale doesn't matter:
+ * {@code 1249.5} and {@code 1249.50} are the same key. Results are indexed separately from all
+ * values so that a search can be restricted to results. Lookups by exact value or by range
+ * only visit the matching keys instead of decoding every record.
+ */
+final class CalcHistoryIndex {
+
+    private final TreeMap<BigDecimal, Positions> values = new TreeMap<>();
+    private final TreeMap<BigDecimal, Positions> results = new TreeMap<>();
+
+    /** Length of the log indexed so far, records after it must be added to the index. */
+    long indexedLength;
+
+    /**
+     * Add the values of a record to the index.
+     * @param position   Position of the record in the log, records must be added in log order.
+     * @param expression The record expression.
+     * @param result     The record result.
+     */
+    void add(long position, @NonNull Expression expression, @NonNull BigDecimal result) {
+        put(results, result, position);
+        put(values, result, position);
+        addNumbers(expression, position);
+    }
+
+    private void addNumbers(Expression expression, long position) {
+        for (Expression.Term term : expression.getNumberTerms()) {
+            if (term.number == null) {
+                // Variables have no value.
+                continue;
+            }
+            put(values, term.number, position);
+            if (term.group != null) {
+                // Numbers in parentheses are also searchable.
+                addNumbers(term.group, position);
+            }
+        }
+    }
+
+    /**
+     * Find the records with a value in a range.
+     * @param min         Minimum value, inclusive.
+     * @param max         Maximum value, inclusive.
+     * @param resultsOnly Whether to only match results or any number of the expression.
+     * @param before      Only positions before this one are returned.
+     * @param limit       Maximum number of positions returned.
+     * @return The matching record positions, from newest to oldest.
+     */
+    @NonNull
+    long[] find(@NonNull BigDecimal min, @NonNull BigDecimal max,
+                boolean resultsOnly, long before, int limit) {
+        if (min.compareTo(max) > 0) return new long[0];
+
+        NavigableMap<BigDecimal, Positions> range = (resultsOnly ? results : values)
+                .subMap(min, true, max, true);
+
+        // Positions of each value are in log order. Merge them backward from the last position
+        // before `before` and stop at the limit, so that older positions aren't visited.
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        int total = 0;
+        for (Positions positions : range.values()) {
+            int index = positions.indexBefore(before);
+            if (index >= 0) {
+                cursors.add(new Cursor(positions, index));
+                total += index + 1;
+            }
+        }
+
+        long[] matches = new long[Math.min(limit, total)];
+        int count = 0;
+        while (count < matches.length && !cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            long position = cursor.getPosition();
+            if (count == 0 || matches[count - 1] != position) {
+                // A record can contain a value more than once, don't return it twice.
+                matches[count] = position;
+                count++;
+            }
+            cursor.index--;
+            if (cursor.index >= 0) {
+                cursors.add(cursor);
+            }
+        }
+        return count == matches.length ? matches : Arrays.copyOf(matches, count);
+    }
+
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeLong(indexedLength);
+        writeMap(out, values);
+        writeMap(out, results);
+    }
+
+    @NonNull
+    static CalcHistoryIndex readFrom(@NonNull DataInput in) throws IOException {
+        CalcHistoryIndex index = new CalcHistoryIndex();
+        index.indexedLength = in.readLong();
+        readMap(in, index.values);
+        readMap(in, index.results);
+        return index;
+    }
+
+    private static void put(TreeMap<BigDecimal, Positions> map, BigDecimal value, long position) {
+        Positions positions = map.get(value);
+        if (positions == null) {
+            positions = new Positions();
+            map.put(value, positions);
+        }
+        positions.add(position);
+    }
+
+    private static void writeMap(DataOutput out, TreeMap<BigDecimal, Positions> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<BigDecimal, Positions> entry : map.entrySet()) {
+            Positions positions = entry.getValue();
+            Expression.writeNumber(out, entry.getKey());
+            out.writeInt(positions.size);
+            for (int i = 0; i < positions.size; i++) {
+                out.writeLong(positions.array[i]);
+            }
+        }
+    }
+
+    private static void readMap(DataInput in, TreeMap<BigDecimal, Positions> map) throws IOException {
+        int size = in.readInt();
+        if (size < 0) throw new IOException("Corrupted history index.");
+        for (int i = 0; i < size; i++) {
+            BigDecimal value = Expression.readNumber(in);
+            int count = in.readInt();
+            if (count <= 0) throw new IOException("Corrupted history index.");
+            Positions positions = new Positions();
+            for (int j = 0; j < count; j++) {
+                positions.add(in.readLong());
+            }
+            map.put(value, positions);
+        }
+    }
+
+    /**
+     * Growable list of record positions, avoiding boxing.
+     */
+    private static final class Positions {
+
+        long[] array = new long[2];
+        int size;
+
+        void add(long position) {
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+            }
+            array[size] = position;
+            size++;
+        }
+
+        /**
+         * Get the index of the last position before a position, or -1 if there's none.
+         */
+        int indexBefore(long position) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (array[mid] < position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low - 1;
+        }
+    }
+
+    /**
+     * Cursor going backward in the positions of a value, ordered from the newest position.
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+
+        final Positions positions;
+        int index;
+
+        Cursor(Positions positions, int index) {
+            this.positions = positions;
+            this.index = index;
+        }
+
+        long getPosition() {
+            return positions.array[index];
+        }
+
+        @Override
+        public int compareTo(@NonNull Cursor other) {
+            long position = getPosition();
+            long otherPosition = other.getPosition();
+            return position > otherPosition ? -1 : (position < otherPosition ? 1 : 0);
+        }
+    }
+
+}
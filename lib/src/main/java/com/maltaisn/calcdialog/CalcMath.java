@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.EvaluationException;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Power and square root operations on BigDecimal, which has neither on API < 33.
+ * Results are rounded to a number of fraction digits, and only the digits needed
+ * for that are computed.
+ */
+final class CalcMath {
+
+    /** Extra digits of precision used for intermediate results, to absorb rounding errors. */
+    private static final int GUARD_DIGITS = 10;
+
+    /** Maximum absolute value of an integer exponent, other than for 1 and -1. */
+    private static final BigDecimal MAX_EXPONENT = BigDecimal.valueOf(Integer.MAX_VALUE);
+
+    private static final int MAX_SQRT_ITERATIONS = 64;
+
+    private static final int MAX_LN_ITERATIONS = 16;
+
+    /** Number of exact digits of a double. */
+    private static final int DOUBLE_DIGITS = 15;
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    private static final double LOG10_2 = Math.log10(2);
+
+    private CalcMath() {
+        // No instances
+    }
+
+    /**
+     * Raise a number to a power. Integer exponents are computed with binary exponentiation,
+     * fractional exponents are computed as {@code exp(exponent * ln(base))}.
+     * @param base         The base.
+     * @param exponent     The exponent.
+     * @param scale        Number of fraction digits of the result.
+     * @param roundingMode Rounding mode used for the result.
+     * @param maxDigits    Maximum number of integer digits of the result,
+     *                     above it the power isn't computed.
+     * @return The result.
+     * @throws EvaluationException if the result is undefined, not real, or too large.
+     */
+    @NonNull
+    static BigDecimal pow(@NonNull BigDecimal base, @NonNull BigDecimal exponent,
+                          int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+        if (base.signum() == 0) {
+            if (exponent.signum() < 0) {
+                throw new EvaluationException(EvaluationException.DIVISION_BY_ZERO);
+            }
+            return exponent.signum() == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+
+        boolean isInteger = exponent.signum() == 0 || exponent.stripTrailingZeros().scale() <= 0;
+        if (isInteger && base.abs().compareTo(BigDecimal.ONE) == 0) {
+            // Any integer exponent is allowed for 1 and -1, even if it doesn't fit in a long.
+            boolean odd = exponent.toBigInteger().testBit(0);
+            return base.signum() < 0 && odd ? BigDecimal.ONE.negate() : BigDecimal.ONE;
+        }
+
+        if (!isInteger && base.signum() < 0) {
+            // Root of a negative number.
+            throw new EvaluationException(EvaluationException.INVALID_OPERATION);
+        }
+
+        // Estimate the result magnitude from the base magnitude before doing anything.
+        double magnitude = log10(base.abs()) * exponent.doubleValue();
+        if (magnitude < -(scale + 1)) {
+            // Result is too small to be shown.
+            return BigDecimal.ZERO;
+        } else if (magnitude > maxDigits || isInteger && exponent.abs().compareTo(MAX_EXPONENT) > 0) {
+            throw new EvaluationException(EvaluationException.TOO_LARGE);
+        }
+
+        // Only keep the digits needed for the result, using the estimated magnitude.
+        int integerDigits = (int) Math.ceil(Math.abs(magnitude)) + 1;
+        int digits = integerDigits + scale + GUARD_DIGITS;
+
+        if (!isInteger) {
+            // The logarithm of the result must be exact to as many digits after the point
+            // as the result has significant digits, the one of the base even more.
+            int exponentDigits = Math.max(0, exponent.precision() - exponent.scale());
+            BigDecimal log = ln(base, digits + exponentDigits);
+            BigDecimal result = exp(log.multiply(exponent), digits);
+            return result.setScale(scale, roundingMode);
+        }
+
+        long n = exponent.longValue();
+        boolean negative = n < 0;
+        if (negative) n = -n;
+
+        MathContext mc = new MathContext(digits, roundingMode);
+
+        BigDecimal result = BigDecimal.ONE;
+        BigDecimal square = base;
+        while (n > 0) {
+            if ((n & 1) == 1) {
+                result = result.multiply(square, mc);
+            }
+            n >>= 1;
+            if (n > 0) {
+                square = square.multiply(square, mc);
+            }
+        }
+
+        if (negative) {
+            result = BigDecimal.ONE.divide(result, mc);
+        }
+        return result.setScale(Math.min(result.scale(), scale), roundingMode);
+    }
+
+    /**
+     * Compute the square root of a number with Newton's method, starting
+     * from the double precision root and stopping once the result is stable.
+     * @param value        The number.
+     * @param scale        Number of fraction digits of the result.
+     * @param roundingMode Rounding mode used for the result.
+     * @return The square root.
+     * @throws EvaluationException if the number is negative.
+     */
+    @NonNull
+    static BigDecimal sqrt(@NonNull BigDecimal value, int scale, @NonNull RoundingMode roundingMode) {
+        if (value.signum() < 0) {
+            throw new EvaluationException(EvaluationException.INVALID_OPERATION);
+        } else if (value.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+
+        // Shift the value by an even power of 10 so it fits in a double for the first guess.
+        int shift = (value.precision() - value.scale()) / 2;
+        double reduced = value.movePointLeft(shift * 2).doubleValue();
+        BigDecimal root = new BigDecimal(Math.sqrt(reduced)).movePointRight(shift);
+
+        MathContext mc = new MathContext(Math.max(shift, 0) + 1 + scale + GUARD_DIGITS, roundingMode);
+        BigDecimal two = BigDecimal.valueOf(2);
+        for (int i = 0; i < MAX_SQRT_ITERATIONS; i++) {
+            BigDecimal next = root.add(value.divide(root, mc)).divide(two, mc);
+            if (next.compareTo(root) == 0) break;
+            root = next;
+        }
+        return root.setScale(scale, roundingMode);
+    }
+
+    /**
+     * Compute the natural logarithm of a positive number with Halley's method, starting from
+     * the double precision logarithm. Each iteration triples the number of exact digits.
+     * @param value  The number.
+     * @param digits Number of exact digits after the point.
+     */
+    @NonNull
+    private static BigDecimal ln(@NonNull BigDecimal value, int digits) {
+        double guess = log10(value) * Math.log(10);
+        int integerDigits = (int) Math.ceil(Math.log10(Math.abs(guess) + 1)) + 1;
+        BigDecimal epsilon = BigDecimal.ONE.movePointLeft(digits + 1);
+
+        // Since the exact digits triple, only the last iterations are done with all digits.
+        BigDecimal log = new BigDecimal(guess);
+        int precision = DOUBLE_DIGITS;
+        for (int i = 0; i < MAX_LN_ITERATIONS; i++) {
+            precision = Math.min(digits, precision * 3);
+            MathContext mc = new MathContext(integerDigits + precision + 2, RoundingMode.HALF_EVEN);
+
+            // The correction is relative, so exp only needs as many digits as the logarithm.
+            BigDecimal power = exp(log, precision + 2);
+            BigDecimal delta = value.subtract(power).multiply(TWO).divide(value.add(power), mc);
+            log = log.add(delta, mc);
+            if (precision == digits && delta.abs().compareTo(epsilon) < 0) break;
+        }
+        return log;
+    }
+
+    /**
+     * Compute the exponential of a number with its Taylor series. The number is first halved
+     * until it's small so that the series converges quickly, then the result is squared back.
+     * @param value  The number.
+     * @param digits Number of significant digits of the result.
+     */
+    @NonNull
+    private static BigDecimal exp(@NonNull BigDecimal value, int digits) {
+        double abs = Math.abs(value.doubleValue());
+        int halvings = abs > 1e-3 ? (int) Math.ceil(Math.log(abs * 1e3) / Math.log(2)) : 0;
+
+        // Each squaring doubles the relative error, add digits to compensate.
+        int extraDigits = (int) Math.ceil(halvings * LOG10_2) + 2;
+        MathContext mc = new MathContext(digits + extraDigits, RoundingMode.HALF_EVEN);
+        BigDecimal epsilon = BigDecimal.ONE.movePointLeft(digits + extraDigits);
+
+        BigDecimal x = value.divide(TWO.pow(halvings), mc);
+        BigDecimal sum = BigDecimal.ONE;
+        BigDecimal term = BigDecimal.ONE;
+        for (int n = 1; term.signum() != 0; n++) {
+            term = term.multiply(x, mc).divide(BigDecimal.valueOf(n), mc);
+            sum = sum.add(term, mc);
+            if (term.abs().compareTo(epsilon) < 0) break;
+        }
+        for (int i = 0; i < halvings; i++) {
+            sum = sum.multiply(sum, mc);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the base 10 logarithm of a positive number of any magnitude.
+     */
+    private static double log10(BigDecimal value) {
+        int magnitude = value.precision() - value.scale();
+        return Math.log10(value.movePointLeft(magnitude).doubleValue()) + magnitude;
+    }
+
+}
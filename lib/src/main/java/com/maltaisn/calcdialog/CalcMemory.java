@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import java.math.BigDecimal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The memory register of the calculator, a running sum of the values added with M+ and M−.
+ * <p>
+ * While the sum fits, it's kept as an unscaled long and a scale, so that adding a value
+ * is a few arithmetic operations. The unscaled value of the last value added is kept too,
+ * so adding the same value again, which is the common case, doesn't allocate anything.
+ * If the sum overflows, it's kept as a {@link BigDecimal} until the memory is cleared.
+ */
+final class CalcMemory {
+
+    /** Name of the preferences in which memories with a name are kept. */
+    static final String PREFERENCES_NAME = "calc_memory";
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Returned when a value doesn't fit in a long, never a valid sum since it can't be negated. */
+    private static final long OVERFLOW = Long.MIN_VALUE;
+
+    // Value of the memory if big is null.
+    private long unscaled;
+    private int scale;
+
+    /** Value of the memory if it doesn't fit in a long, otherwise null. */
+    @Nullable
+    private BigDecimal big;
+
+    // Last value added and its unscaled value, OVERFLOW if it doesn't fit.
+    @Nullable
+    private BigDecimal lastValue;
+    private long lastUnscaled;
+    private int lastScale;
+
+
+    boolean isZero() {
+        return big != null ? big.signum() == 0 : unscaled == 0;
+    }
+
+    @NonNull
+    BigDecimal getValue() {
+        return big != null ? big : CalcDecimals.valueOf(unscaled, scale);
+    }
+
+    void clear() {
+        unscaled = 0;
+        scale = 0;
+        big = null;
+    }
+
+    void add(@NonNull BigDecimal value) {
+        addValue(value, false);
+    }
+
+    void subtract(@NonNull BigDecimal value) {
+        addValue(value, true);
+    }
+
+    private void addValue(@NonNull BigDecimal value, boolean negate) {
+        if (big == null) {
+            if (value != lastValue) {
+                lastValue = value;
+                lastScale = Math.max(0, value.scale());
+                lastUnscaled = getUnscaled(value);
+            }
+            if (lastUnscaled != OVERFLOW && addUnscaled(negate ? -lastUnscaled : lastUnscaled, lastScale)) {
+                return;
+            }
+            big = BigDecimal.valueOf(unscaled, scale);
+        }
+        big = negate ? big.subtract(value) : big.add(value);
+    }
+
+    /**
+     * Add an unscaled value to the memory.
+     * @return False if the sum doesn't fit, in which case the memory is unchanged.
+     */
+    private boolean addUnscaled(long value, int valueScale) {
+        int newScale = Math.max(scale, valueScale);
+        long a = multiplyByPowerOfTen(unscaled, newScale - scale);
+        long b = multiplyByPowerOfTen(value, newScale - valueScale);
+        if (a == OVERFLOW || b == OVERFLOW) {
+            return false;
+        }
+        long sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0 || sum == OVERFLOW) {
+            return false;
+        }
+        unscaled = sum;
+        scale = newScale;
+        return true;
+    }
+
+    /**
+     * Get the unscaled value of a value at a non-negative scale, or {@link #OVERFLOW}.
+     */
+    private static long getUnscaled(@NonNull BigDecimal value) {
+        if (value.precision() >= POWERS_OF_TEN.length || value.scale() >= POWERS_OF_TEN.length) {
+            return OVERFLOW;
+        }
+        long unscaled = CalcDecimals.unscaledLong(value);
+        return value.scale() < 0 ? multiplyByPowerOfTen(unscaled, -value.scale()) : unscaled;
+    }
+
+    private static long multiplyByPowerOfTen(long value, int power) {
+        if (power == 0 || value == 0) {
+            return value;
+        } else if (power >= POWERS_OF_TEN.length) {
+            return OVERFLOW;
+        }
+        long factor = POWERS_OF_TEN[power];
+        if (value > Long.MAX_VALUE / factor || value < -Long.MAX_VALUE / factor) {
+            return OVERFLOW;
+        }
+        return value * factor;
+    }
+
+    void writeToBundle(@NonNull Bundle bundle) {
+        if (big != null) {
+            bundle.putSerializable("memory", big);
+        } else if (unscaled != 0) {
+            bundle.putLong("memoryUnscaled", unscaled);
+            bundle.putInt("memoryScale", scale);
+        }
+    }
+
+    void readFromBundle(@NonNull Bundle bundle) {
+        clear();
+        if (bundle.containsKey("memory")) {
+            add((BigDecimal) bundle.getSerializable("memory"));
+        } else {
+            unscaled = bundle.getLong("memoryUnscaled");
+            scale = bundle.getInt("memoryScale");
+        }
+    }
+
+    /**
+     * Write the memory to preferences, removing it if it's zero.
+     * @param prefs The preferences named {@link #PREFERENCES_NAME}.
+     * @param name  The memory name.
+     */
+    void writeToPreferences(@NonNull SharedPreferences prefs, @NonNull String name) {
+        SharedPreferences.Editor editor = prefs.edit();
+        if (isZero()) {
+            editor.remove(name);
+        } else {
+            editor.putString(name, getValue().toString());
+        }
+        editor.apply();
+    }
+
+    void readFromPreferences(@NonNull SharedPreferences prefs, @NonNull String name) {
+        clear();
+        String value = prefs.getString(name, null);
+        if (value != null) {
+            try {
+                add(new BigDecimal(value));
+            } catch (NumberFormatException e) {
+                // Not a memory value, ignore it.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Timings of the calculator dialog, registered with {@link CalcSettings#setMetrics(CalcMetrics)}.
+ * The duration of each event is added to a histogram of its type, from which percentiles can be
+ * read, and is also reported to a listener if there's one. Histograms are allocated when created,
+ * so recording a duration doesn't allocate anything.
+ * <p>
+ * Durations are in nanoseconds and are bucketed with a relative precision of 1/8 of a power of two.
+ * Events are recorded on the main thread, metrics should only be read on the main thread too.
+ */
+public final class CalcMetrics {
+
+    /**
+     * Types of events timed.
+     */
+    public enum Event {
+        /** Handling of a button press or touch by the calculator, including all events below. */
+        INPUT,
+
+        /** Evaluation of the expression. */
+        EVALUATE,
+
+        /** Formatting of the value and expression texts. */
+        FORMAT,
+
+        /** Update of the value, expression and preview views. */
+        VIEW_UPDATE,
+
+        /** Resolution of the dialog theme attributes when the dialog is attached. */
+        ATTRIBUTES,
+
+        /** Inflation of the dialog layout. */
+        INFLATE,
+
+        /** Attachment of the presenter to the dialog, up to the first update of the views. */
+        ATTACH
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    /** Number of buckets per power of two is {@code 2^SUB_BUCKET_BITS}. */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** Durations of more than {@code 2^MAX_BIT} ns, about 18 minutes, are all in the last bucket. */
+    private static final int MAX_BIT = 40;
+
+    private static final int BUCKET_COUNT = (MAX_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final long[][] buckets = new long[EVENTS.length][BUCKET_COUNT];
+    private final long[] counts = new long[EVENTS.length];
+    private final long[] maxDurations = new long[EVENTS.length];
+
+    @Nullable
+    private Listener listener;
+
+
+    /**
+     * Set a listener called on the main thread after each event.
+     * @param listener The listener, or {@code null} for none.
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the number of times an event was recorded.
+     */
+    public long getCount(@NonNull Event event) {
+        return counts[event.ordinal()];
+    }
+
+    /**
+     * Get the longest duration recorded for an event, in nanoseconds.
+     */
+    public long getMax(@NonNull Event event) {
+        return maxDurations[event.ordinal()];
+    }
+
+    /**
+     * Get a percentile of the durations recorded for an event.
+     * @param event      The event.
+     * @param percentile The percentile, between 0 and 100, for example 99 for p99.
+     * @return The highest duration in nanoseconds of the bucket containing the percentile,
+     * or 0 if the event was never recorded.
+     */
+    public long getPercentile(@NonNull Event event, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        }
+
+        int e = event.ordinal();
+        long count = counts[e];
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long[] eventBuckets = buckets[e];
+        long total = 0;
+        int i;
+        for (i = 0; i < BUCKET_COUNT - 1; i++) {
+            total += eventBuckets[i];
+            if (total >= rank) {
+                break;
+            }
+        }
+        return i < BUCKET_COUNT - 1 ? Math.min(getBucketMax(i), maxDurations[e]) : maxDurations[e];
+    }
+
+    /**
+     * Clear all recorded durations.
+     */
+    public void reset() {
+        for (int e = 0; e < EVENTS.length; e++) {
+            long[] eventBuckets = buckets[e];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                eventBuckets[i] = 0;
+            }
+            counts[e] = 0;
+            maxDurations[e] = 0;
+        }
+    }
+
+    /**
+     * Record the duration of an event.
+     * @param event    The event.
+     * @param duration The duration in nanoseconds.
+     */
+    void record(@NonNull Event event, long duration) {
+        if (duration < 0) duration = 0;
+
+        int e = event.ordinal();
+        buckets[e][getBucketIndex(duration)]++;
+        counts[e]++;
+        if (duration > maxDurations[e]) {
+            maxDurations[e] = duration;
+        }
+
+        if (listener != null) {
+            listener.onEvent(event, duration);
+        }
+    }
+
+    /**
+     * Get the start time of an event, or 0 if there are no metrics, to be passed to
+     * {@link #end(CalcMetrics, Event, long)}. Nothing is timed when metrics aren't used.
+     */
+    static long start(@Nullable CalcMetrics metrics) {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the duration of an event started with {@link #start(CalcMetrics)}, if there are metrics.
+     */
+    static void end(@Nullable CalcMetrics metrics, @NonNull Event event, long start) {
+        if (metrics != null) {
+            metrics.record(event, System.nanoTime() - start);
+        }
+    }
+
+    private static int getBucketIndex(long duration) {
+        if (duration < SUB_BUCKET_COUNT) {
+            return (int) duration;
+        }
+        int bit = Math.min(63 - Long.numberOfLeadingZeros(duration), MAX_BIT);
+        int sub = (int) (duration >>> (bit - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        if (bit == MAX_BIT && duration >>> (MAX_BIT + 1) != 0) {
+            sub = SUB_BUCKET_COUNT - 1;
+        }
+        return (bit - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    private static long getBucketMax(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long sub = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+    }
+
+    public interface Listener {
+        /**
+         * Called after an event. This is called on the main thread
+         * for every key press, it should return quickly.
+         * @param event    The event.
+         * @param duration The duration of the event in nanoseconds.
+         */
+        void onEvent(@NonNull Event event, long duration);
+    }
+
+}
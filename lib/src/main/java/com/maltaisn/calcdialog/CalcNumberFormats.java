@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Cache of number formats shared by all calculators. Formats with the same configuration,
+ * that is the same pattern, symbols (and so the same locale), digit counts and rounding,
+ * are given as the same instance, so that many calculators don't each keep their own copy.
+ * <p>
+ * Shared formats must never be modified: a format is copied before being cached, and
+ * variants of a format are obtained with {@link #withMinimumFractionDigits(NumberFormat, int)}.
+ * Like all number formats they aren't thread-safe, they must only be used on the main thread.
+ */
+final class CalcNumberFormats {
+
+    static final int MAX_SIZE = 32;
+
+    /** Formats by configuration, the least recently used is evicted when the cache is full. */
+    private static final Map<Key, NumberFormat> cache = new LinkedHashMap<Key, NumberFormat>(
+            MAX_SIZE + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, NumberFormat> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private CalcNumberFormats() {
+        // No instances
+    }
+
+    /**
+     * Get the shared format with the same configuration as a format.
+     * @param format The format, not modified and not kept.
+     * @return The shared format. Formats other than {@link DecimalFormat} can't be
+     * compared, so a copy is returned for them instead, which isn't shared.
+     */
+    @NonNull
+    static NumberFormat share(@NonNull NumberFormat format) {
+        if (!(format instanceof DecimalFormat)) {
+            return (NumberFormat) format.clone();
+        }
+
+        Key key = new Key((DecimalFormat) format);
+        synchronized (cache) {
+            NumberFormat shared = cache.get(key);
+            if (shared == null) {
+                shared = (NumberFormat) format.clone();
+                cache.put(key, shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Get the shared format with the same configuration as a format,
+     * except for the minimum number of fraction digits.
+     * @param format The format, not modified.
+     * @param digits The minimum number of fraction digits.
+     */
+    @NonNull
+    static NumberFormat withMinimumFractionDigits(@NonNull NumberFormat format, int digits) {
+        NumberFormat copy = (NumberFormat) format.clone();
+        copy.setMinimumFractionDigits(digits);
+        return share(copy);
+    }
+
+    static final class Key {
+
+        private final Class<?> type;
+        private final String pattern;
+        private final DecimalFormatSymbols symbols;
+        private final RoundingMode roundingMode;
+        private final int minIntDigits;
+        private final int maxIntDigits;
+        private final int minFracDigits;
+        private final int maxFracDigits;
+        private final int multiplier;
+        private final boolean groupingUsed;
+        private final boolean decimalSeparatorAlwaysShown;
+        private final boolean parseBigDecimal;
+        private final boolean parseIntegerOnly;
+
+        private final int hash;
+
+        Key(@NonNull DecimalFormat format) {
+            type = format.getClass();
+            pattern = format.toPattern();
+            symbols = format.getDecimalFormatSymbols();
+            roundingMode = format.getRoundingMode();
+            minIntDigits = format.getMinimumIntegerDigits();
+            maxIntDigits = format.getMaximumIntegerDigits();
+            minFracDigits = format.getMinimumFractionDigits();
+            maxFracDigits = format.getMaximumFractionDigits();
+            multiplier = format.getMultiplier();
+            groupingUsed = format.isGroupingUsed();
+            decimalSeparatorAlwaysShown = format.isDecimalSeparatorAlwaysShown();
+            parseBigDecimal = format.isParseBigDecimal();
+            parseIntegerOnly = format.isParseIntegerOnly();
+
+            int h = pattern.hashCode();
+            h = 31 * h + symbols.hashCode();
+            h = 31 * h + (roundingMode != null ? roundingMode.hashCode() : 0);
+            h = 31 * h + minIntDigits;
+            h = 31 * h + maxIntDigits;
+            h = 31 * h + minFracDigits;
+            h = 31 * h + maxFracDigits;
+            h = 31 * h + multiplier;
+            h = 31 * h + (groupingUsed ? 1 : 0);
+            h = 31 * h + (decimalSeparatorAlwaysShown ? 1 : 0);
+            h = 31 * h + (parseBigDecimal ? 1 : 0);
+            h = 31 * h + (parseIntegerOnly ? 1 : 0);
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return hash == key.hash
+                    && type == key.type
+                    && pattern.equals(key.pattern)
+                    && symbols.equals(key.symbols)
+                    && roundingMode == key.roundingMode
+                    && minIntDigits == key.minIntDigits
+                    && maxIntDigits == key.maxIntDigits
+                    && minFracDigits == key.minFracDigits
+                    && maxFracDigits == key.maxFracDigits
+                    && multiplier == key.multiplier
+                    && groupingUsed == key.groupingUsed
+                    && decimalSeparatorAlwaysShown == key.decimalSeparatorAlwaysShown
+                    && parseBigDecimal == key.parseBigDecimal
+                    && parseIntegerOnly == key.parseIntegerOnly;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Parses pasted text into numbers and operators, in a single pass over the text.
+ * Numbers are read with the symbols of the number format, like "1 249,50 €" in French, and
+ * operators can be typed or symbols like "×" and "÷". A minus sign before a number is its sign.
+ * <p>
+ * Grouping separators are only accepted between digits of the integer part, and each one must
+ * be followed by as many digits as the grouping size of the format, so that "12,34" isn't read
+ * as 1234. Spaces are grouping separators if the format uses one, otherwise they separate numbers
+ * and operators. Currency symbols and formatting characters are ignored. Parentheses aren't supported.
+ */
+final class CalcPasteParser {
+
+    private final char decimalSep;
+    private final char groupingSep;
+    private final char minusSign;
+    private final boolean groupingUsed;
+    private final boolean spaceGrouping;
+    private final int groupingSize;
+
+    private final int maxIntDigits;
+    private final int maxFracDigits;
+    private final RoundingMode roundingMode;
+    private final boolean powerAllowed;
+
+    /** Digits of the number being read, reused for each number. */
+    private final StringBuilder digits = new StringBuilder();
+
+    /**
+     * @param nbFormat     The number format, from which symbols and maximum fraction digits are taken.
+     * @param maxIntDigits The maximum number of integer digits, more can't be pasted.
+     * @param powerAllowed Whether the power operator can be pasted.
+     */
+    CalcPasteParser(@NonNull NumberFormat nbFormat, int maxIntDigits, boolean powerAllowed) {
+        DecimalFormatSymbols symbols = nbFormat instanceof DecimalFormat
+                ? ((DecimalFormat) nbFormat).getDecimalFormatSymbols()
+                : DecimalFormatSymbols.getInstance();
+        decimalSep = symbols.getDecimalSeparator();
+        groupingSep = symbols.getGroupingSeparator();
+        minusSign = symbols.getMinusSign();
+        groupingSize = nbFormat instanceof DecimalFormat ? ((DecimalFormat) nbFormat).getGroupingSize() : 3;
+        groupingUsed = nbFormat.isGroupingUsed() && groupingSize > 0;
+        spaceGrouping = groupingUsed && isSpace(groupingSep);
+
+        this.maxIntDigits = maxIntDigits;
+        maxFracDigits = nbFormat.getMaximumFractionDigits();
+        roundingMode = nbFormat.getRoundingMode();
+        this.powerAllowed = powerAllowed;
+    }
+
+    /**
+     * Parse text.
+     * @param text The text to parse.
+     * @return The result, or {@code null} if the text isn't a number or an expression,
+     * if a number has too many integer digits or if its digits aren't grouped correctly.
+     */
+    @Nullable
+    Result parse(@NonNull CharSequence text) {
+        Result result = new Result();
+        digits.setLength(0);
+
+        boolean inNumber = false;
+        boolean afterNumber = false;
+        boolean hasPoint = false;
+        boolean hasDigit = false;
+        int fracDigits = 0;
+
+        // Number of digits since the last grouping separator, -1 if there was none in the number.
+        int groupDigits = -1;
+        int intDigits = 0;
+
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (Character.isDigit(c)) {
+                if (afterNumber) {
+                    // Two numbers without an operator between them.
+                    return null;
+                }
+                digits.append((char) ('0' + Character.digit(c, 10)));
+                inNumber = true;
+                hasDigit = true;
+                if (hasPoint) {
+                    fracDigits++;
+                } else {
+                    intDigits++;
+                    if (groupDigits != -1) {
+                        groupDigits++;
+                    }
+                }
+                continue;
+            }
+
+            if (groupingUsed && inNumber && !hasPoint && hasDigit
+                    && (c == groupingSep || spaceGrouping && isSpace(c))
+                    && i + 1 < length && Character.isDigit(text.charAt(i + 1))) {
+                // Grouping separator between digits of the integer part.
+                if (groupDigits == -1 ? intDigits > groupingSize : groupDigits != groupingSize) {
+                    return null;
+                }
+                groupDigits = 0;
+                continue;
+            }
+
+            if (groupDigits != -1 && groupDigits != groupingSize
+                    && (inNumber || afterNumber) && hasDigit && !hasPoint) {
+                // Last group of the integer part is incomplete.
+                return null;
+            }
+
+            if (c == decimalSep || (c == '.' || c == ',') && !(groupingUsed && c == groupingSep)) {
+                if (hasPoint || afterNumber) {
+                    return null;
+                }
+                digits.append('.');
+                inNumber = true;
+                hasPoint = true;
+                continue;
+            }
+
+            if (isSpace(c) || Character.getType(c) == Character.CURRENCY_SYMBOL
+                    || Character.getType(c) == Character.FORMAT) {
+                if (inNumber && hasDigit) {
+                    inNumber = false;
+                    afterNumber = true;
+                }
+                continue;
+            }
+
+            Expression.Operator operator = getOperator(c);
+            if (operator == null) {
+                return null;
+            }
+
+            if (inNumber && hasDigit || afterNumber) {
+                if (!addNumber(result, hasPoint, fracDigits)) {
+                    return null;
+                }
+                result.operators.add(operator);
+                digits.setLength(0);
+                inNumber = false;
+                afterNumber = false;
+                hasPoint = false;
+                hasDigit = false;
+                fracDigits = 0;
+                groupDigits = -1;
+                intDigits = 0;
+
+            } else if (operator == Expression.Operator.SUBTRACT && digits.length() == 0) {
+                // Sign of the next number.
+                digits.append('-');
+                inNumber = true;
+
+            } else if (operator == Expression.Operator.ADD && digits.length() == 0) {
+                // Explicit positive sign of the next number, ignored.
+
+            } else {
+                return null;
+            }
+        }
+
+        if (inNumber || afterNumber) {
+            if (!hasDigit || !hasPoint && groupDigits != -1 && groupDigits != groupingSize
+                    || !addNumber(result, hasPoint, fracDigits)) {
+                return null;
+            }
+            result.lastScale = hasPoint ? Math.min(fracDigits, maxFracDigits) : -1;
+        } else if (result.numbers.isEmpty()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Add the number read to the result.
+     * @return False if it has too many integer digits.
+     */
+    private boolean addNumber(@NonNull Result result, boolean hasPoint, int fracDigits) {
+        BigDecimal number = new BigDecimal(digits.toString());
+        if (number.precision() - number.scale() > maxIntDigits) {
+            return false;
+        }
+        if (hasPoint && fracDigits > maxFracDigits) {
+            number = number.setScale(maxFracDigits, roundingMode);
+        }
+        result.numbers.add(number);
+        return true;
+    }
+
+    @Nullable
+    private Expression.Operator getOperator(char c) {
+        if (c == minusSign) {
+            return Expression.Operator.SUBTRACT;
+        }
+        switch (c) {
+            case '+':
+                return Expression.Operator.ADD;
+            case '-':
+            case '−':  // Minus sign
+            case '–':  // En dash
+                return Expression.Operator.SUBTRACT;
+            case '*':
+            case 'x':
+            case 'X':
+            case '×':  // Multiplication sign
+                return Expression.Operator.MULTIPLY;
+            case '/':
+            case '÷':  // Division sign
+                return Expression.Operator.DIVIDE;
+            case '^':
+                return powerAllowed ? Expression.Operator.POWER : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    static final class Result {
+
+        /** The numbers read, there's always at least one. */
+        final List<BigDecimal> numbers = new ArrayList<>();
+
+        /** The operators after each number, the last number may not be followed by one. */
+        final List<Expression.Operator> operators = new ArrayList<>();
+
+        /**
+         * Number of fraction digits typed for the last number, or -1 if it has no decimal
+         * separator or if the text ends with an operator.
+         */
+        int lastScale = -1;
+
+    }
+
+}
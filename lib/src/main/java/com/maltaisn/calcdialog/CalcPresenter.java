@@ -16,32 +16,90 @@
 
 package com.maltaisn.calcdialog;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
-
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 class CalcPresenter {
 
+    private static final String TAG = CalcPresenter.class.getSimpleName();
+
     private static final int ERROR_NONE = -1;
     private static final int ERROR_DIV_ZERO = 0;
     private static final int ERROR_OUT_OF_BOUNDS = 1;
     private static final int ERROR_WRONG_SIGN_POS = 2;
     private static final int ERROR_WRONG_SIGN_NEG = 3;
+    private static final int ERROR_INVALID = 4;
+    private static final int ERROR_TOO_LARGE = 5;
 
-    private CalcDialog view;
+    private CalcView view;
     private CalcSettings settings;
     private NumberFormat nbFormat;
 
-    /** The typed expression. */
+    /**
+     * Variants of the number format showing trailing zeroes, indexed by minimum fraction digits.
+     * Number formats are shared with other calculators, so they are never modified.
+     */
+    private NumberFormat[] fractionFormats;
+
+    /** The history where evaluated expressions are added, null if disabled. */
+    @Nullable
+    private CalcHistory history;
+
+    /** The memory register of the M+ and M− buttons. */
+    private final CalcMemory memory = new CalcMemory();
+
+    /** Preferences in which the memory is kept when the dialog is dismissed, null if it isn't kept. */
+    @Nullable
+    private SharedPreferences memoryPrefs;
+
+    /** Metrics in which timings are recorded, null if disabled. */
+    @Nullable
+    private CalcMetrics metrics;
+
+    /** Stream in which the state is emitted after each input. */
+    @Nullable
+    private CalcStateStream stateStream;
+
+    private final Runnable stateProducer = new Runnable() {
+        @Override
+        public void run() {
+            publishState();
+        }
+    };
+
+    /** The typed expression, or the expression in the innermost open parenthesis. */
     @NonNull
     private Expression expression = new Expression();
 
+    /**
+     * Expressions containing the open parentheses, outermost first. Each one ends
+     * with the operator before its parenthesis and has its own evaluation tree,
+     * so closing a parenthesis only evaluates the expression inside it.
+     */
+    @NonNull
+    private final ArrayList<Expression> parentExpressions = new ArrayList<>();
+
     /**
      * The current displayed value. Can be user input, evaluated result, answer from the answer
      * button, or can be null if there's no current value.
@@ -60,6 +118,24 @@ class CalcPresenter {
      */
     private int currentValueScale;
 
+    /** File in which the expression was written on last state save, if it was too big. */
+    @Nullable
+    private File spilledExpressionFile;
+
+    /** Whether the presenter state was initialized, either reset or read from a Bundle. */
+    private boolean initialized;
+
+    /** Whether the history panel is shown. */
+    private boolean historyShown;
+
+    /** If not null, only history entries containing this value are shown. */
+    @Nullable
+    private BigDecimal historyFilter;
+
+    /** The expression text currently shown by the view. */
+    @NonNull
+    private String expressionText = "";
+
     /** If there's an error, the error code. */
     private int errorCode;
 
@@ -69,6 +145,16 @@ class CalcPresenter {
     /** Whether {@link #currentValue} is the result from the equal button. */
     private boolean currentIsResult;
 
+    /**
+     * If {@link #currentValue} is the value of a closed parenthesis, the expression
+     * in the parenthesis, otherwise null. The expression isn't modified once closed.
+     */
+    @Nullable
+    private Expression currentGroup;
+
+    /** Whether {@link #currentValue} is the result of the percent or square root button. */
+    private boolean currentIsComputed;
+
     /**
      * Whether user can edit {@link #currentValue} or not.
      * If not editable, a button press clears the current value,
@@ -82,41 +168,144 @@ class CalcPresenter {
      */
     private boolean canEditExpression;
 
+    /** Whether the answer button is shown. */
+    private boolean answerBtnShown;
+
+    /** Computes the result preview shown below the current value. */
+    private final CalcPreview preview = new CalcPreview();
+
+    /** States before each undoable action, last action on top. */
+    private final ArrayDeque<State> undoStack = new ArrayDeque<>();
+
+    /** States before each undone action, last undone action on top. */
+    private final ArrayDeque<State> redoStack = new ArrayDeque<>();
+
+    /**
+     * Position of the expression term selected to be edited, or -1 if none.
+     * Numbers are at even positions and operators at odd positions.
+     */
+    private int selectedTerm = -1;
+
+    /** State when the term was selected, the whole edit is a single undoable action. */
+    @Nullable
+    private State selectionUndoState;
+
+    /** Start and end positions of each term in {@link #expressionText}. */
+    @NonNull
+    private int[] termBounds = new int[0];
+
+    // Current value when the term was selected, restored when it's deselected.
+    @Nullable
+    private BigDecimal selectionValue;
+    @Nullable
+    private Expression selectionGroup;
+    private int selectionValueScale;
+    private boolean selectionIsAnswer;
+    private boolean selectionCanEdit;
+
 
-    void attach(CalcDialog v, Bundle state) {
+    /**
+     * Attach the presenter to a view.
+     * @param v            The view.
+     * @param state        The saved state, used only if the presenter has no state yet, that is
+     *                     if it wasn't retained from a view before a configuration change.
+     * @param initialValue The value shown if the presenter has no state and there's no saved state.
+     */
+    void attach(CalcView v, @Nullable Bundle state, @Nullable BigDecimal initialValue) {
         view = v;
 
         settings = view.getSettings();
         settings.validate();
 
-        nbFormat = settings.nbFormat;
-
-        if (state == null) {
-            reset();
-            currentValue = settings.initialValue;
-
-        } else {
-            readStateFromBundle(state);
+        nbFormat = settings.getSharedNumberFormat();
+        fractionFormats = new NumberFormat[nbFormat.getMaximumFractionDigits() + 1];
+        history = view.getHistory();
+        memoryPrefs = view.getMemoryPreferences();
+        metrics = settings.metrics;
+
+        if (!initialized) {
+            if (state == null) {
+                reset();
+                currentValue = initialValue;
+                if (memoryPrefs != null) {
+                    //noinspection ConstantConditions
+                    memory.readFromPreferences(memoryPrefs, settings.memoryName);
+                } else {
+                    memory.clear();
+                }
+            } else {
+                CalcTracer.begin("CalcPresenter.readStateFromBundle");
+                readStateFromBundle(state);
+                CalcTracer.end();
+            }
+            answerBtnShown = settings.isAnswerBtnShown && resultValue != null;
+            undoStack.clear();
+            redoStack.clear();
+            initialized = true;
         }
 
+        expressionText = "";
+
+        view.setValueNumberFormat(nbFormat);
         view.setExpressionVisible(settings.isExpressionShown);
         view.setDecimalSepBtnEnabled(nbFormat.getMaximumFractionDigits() > 0);
-        view.setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
+        view.setAnswerBtnVisible(answerBtnShown);
         view.setSignBtnVisible(settings.isSignBtnShown);
+        view.setParenthesisBtnsVisible(settings.isExpressionShown && settings.isParenthesisBtnShown);
+        view.setExtraOperationBtnsVisible(settings.isExtraOperationBtnShown);
+        view.setHistoryBtnVisible(history != null);
+        view.setHistoryVisible(historyShown, historyFilter);
+        view.setUndoBtnsVisible(settings.isUndoBtnShown);
+        view.setMemoryBtnsVisible(settings.isMemoryBtnShown);
+        updateUndoBtns();
+        updateMemoryBtns();
 
-        updateCurrentValue();
+        if (errorCode != ERROR_NONE) {
+            view.showErrorText(errorCode);
+            updatePreview();
+        } else {
+            updateCurrentValue();
+        }
         updateExpression();
+
+        stateStream = view.getStateStream();
+        stateStream.setProducer(stateProducer);
+        publishState();
     }
 
     void detach() {
+        preview.cancel();
+        if (stateStream != null) {
+            stateStream.setProducer(null);
+            stateStream = null;
+        }
         view = null;
         settings = null;
+        history = null;
+        memoryPrefs = null;
+        metrics = null;
     }
 
-    void writeStateToBundle(Bundle bundle) {
+    /**
+     * Write the presenter state to a Bundle. If the parcelled Bundle is bigger than
+     * {@link CalcSettings#maxSavedStateSize}, the expression is written to a file and
+     * only a reference to it is kept in the Bundle.
+     * @param bundle   The Bundle to write to, which may already contain other saved state.
+     * @param spillDir The directory in which to write the expression if needed.
+     */
+    void writeStateToBundle(Bundle bundle, @NonNull File spillDir) {
+        // Selection isn't saved, commit the edited term.
+        deselectTerm();
+
         bundle.putParcelable("expression", expression);
+        if (!parentExpressions.isEmpty()) {
+            bundle.putParcelableArrayList("parentExpressions", parentExpressions);
+        }
         if (currentValue != null) {
             bundle.putSerializable("currentValue", currentValue);
+            if (currentGroup != null) {
+                bundle.putParcelable("currentGroup", currentGroup);
+            }
         }
         if (resultValue != null) {
             bundle.putSerializable("resultValue", resultValue);
@@ -125,15 +314,38 @@ class CalcPresenter {
         bundle.putInt("errorCode", errorCode);
         bundle.putBoolean("currentIsAnswer", currentIsAnswer);
         bundle.putBoolean("currentIsResult", currentIsResult);
+        bundle.putBoolean("currentIsComputed", currentIsComputed);
         bundle.putBoolean("canEditCurrentValue", canEditCurrentValue);
         bundle.putBoolean("canEditExpression", canEditExpression);
+        memory.writeToBundle(bundle);
+
+        // Delete expression file from previous save, it's outdated.
+        deleteSpilledExpression();
+        if (expression.numbers.size() > 1) {
+            spilledExpressionFile = spillExpression(expression, getParcelledSize(bundle),
+                    settings.maxSavedStateSize, spillDir);
+            if (spilledExpressionFile != null) {
+                bundle.remove("expression");
+                bundle.putString("expressionFile", spilledExpressionFile.getPath());
+            }
+        }
     }
 
     private void readStateFromBundle(Bundle bundle) {
         Expression expr = bundle.getParcelable("expression");
+        if (expr == null && bundle.containsKey("expressionFile")) {
+            // Expression was too big for the Bundle, read it from the file. It's read
+            // right away since the expression is shown as soon as the view is attached.
+            //noinspection ConstantConditions
+            expr = readExpressionFromFile(new File(bundle.getString("expressionFile")));
+        }
         if (expr != null) {
             this.expression = expr;
         }
+        ArrayList<Expression> parents = bundle.getParcelableArrayList("parentExpressions");
+        if (parents != null) {
+            parentExpressions.addAll(parents);
+        }
         if (bundle.containsKey("currentValue")) {
             currentValue = (BigDecimal) bundle.getSerializable("currentValue");
         }
@@ -144,49 +356,148 @@ class CalcPresenter {
         errorCode = bundle.getInt("errorCode");
         currentIsAnswer = bundle.getBoolean("currentIsAnswer");
         currentIsResult = bundle.getBoolean("currentIsResult");
+        if (currentValue != null) {
+            currentGroup = bundle.getParcelable("currentGroup");
+        }
+        currentIsComputed = bundle.getBoolean("currentIsComputed");
         canEditCurrentValue = bundle.getBoolean("canEditCurrentValue");
         canEditExpression = bundle.getBoolean("canEditExpression");
+        memory.readFromBundle(bundle);
+    }
+
+    /**
+     * Delete the file in which the expression was written on last state save, if any.
+     * The file is only needed to restore the state after process death, it must be
+     * deleted once the calculator is closed for good.
+     */
+    void deleteSpilledExpression() {
+        if (spilledExpressionFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            spilledExpressionFile.delete();
+            spilledExpressionFile = null;
+        }
+    }
+
+    private static int getParcelledSize(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Write an expression to a file if the saved state is bigger than the maximum size.
+     * @param expression   The expression to write.
+     * @param stateSize    The size of the parcelled state, in bytes.
+     * @param maxStateSize The maximum size of the parcelled state, in bytes.
+     * @param dir          The directory in which to write the file.
+     * @return The file, or null if the state isn't too big or if the expression couldn't be written.
+     */
+    @Nullable
+    static File spillExpression(@NonNull Expression expression, int stateSize,
+                                int maxStateSize, @NonNull File dir) {
+        if (stateSize <= maxStateSize) {
+            return null;
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("calc_expression", null, dir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                expression.writeTo(out);
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write expression to file.", e);
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read an expression written by {@link #spillExpression}. The file is deleted after.
+     * @return The expression, or null if the file couldn't be read.
+     */
+    @Nullable
+    static Expression readExpressionFromFile(@NonNull File file) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            return Expression.readFrom(in);
+        } catch (IOException e) {
+            // File was deleted with the cache or is corrupted, expression is lost.
+            Log.e(TAG, "Failed to read expression from file.", e);
+            return null;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
     }
 
     void onErasedOnce() {
+        State before = getState();
         clearExpressionIfNeeded();
-        if (dismissError()) return;
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
 
         currentIsAnswer = false;
         currentIsResult = false;
-        view.setAnswerBtnVisible(false);
+        currentIsComputed = false;
+        setAnswerBtnVisible(false);
+
+        if (selectedTerm % 2 == 1 || (selectedTerm >= 0 && currentValue == null && canEditCurrentValue)) {
+            // Selected operator or selected number already erased: remove it from the expression.
+            // An operator is removed with the number after it.
+            expression.removeNumber((selectedTerm + 1) / 2);
+            deselectTerm();
+            return;
+        }
 
-        if (!canEditCurrentValue) {
+        if (currentGroup != null) {
+            // Remove the closing parenthesis, the last number inside becomes the current value.
+            reopenGroup();
+
+        } else if (!canEditCurrentValue) {
             currentValue = null;
             canEditCurrentValue = true;
 
         } else if (currentValue != null) {
-            String valueStr = getCurrentValueString();
-            valueStr = valueStr.substring(0, valueStr.length() - 1);
-            try {
-                currentValue = new BigDecimal(valueStr);
-                if (currentValueScale >= 0) {
+            if (currentValueScale == 0) {
+                // Erase the decimal separator.
+                currentValueScale = -1;
+            } else if (currentValueScale < 0 && currentValue.abs().compareTo(BigDecimal.TEN) < 0) {
+                // Erase the only digit.
+                currentValue = null;
+            } else {
+                currentValue = CalcDecimals.eraseDigit(currentValue, Math.max(0, currentValueScale));
+                if (currentValueScale > 0) {
                     currentValueScale--;
                 }
-            } catch (NumberFormatException e) {
-                // Happens if string is empty or "-".
-                currentValue = null;
-                currentValueScale = -1;
             }
 
+        } else if (expression.isEmpty() && !parentExpressions.isEmpty()) {
+            // Remove the empty open parenthesis.
+            expression = parentExpressions.remove(parentExpressions.size() - 1);
+            updateExpression();
+
         } else if (settings.isExpressionEditable && !expression.isEmpty()) {
             // No more digits to erase: pop last expression number and operator and make it current value
-            currentValue = expression.numbers.remove(expression.numbers.size() - 1);
-            expression.operators.remove(expression.operators.size() - 1);
-
-            assert currentValue != null;
-            currentValueScale = currentValue.scale();
-            if (currentValueScale == 0) currentValueScale = -1;
+            expression.removeLastOperator();
+            popLastNumber();
 
             updateExpression();
         }
 
+        updateSelectedNumber();
         updateCurrentValue();
+        pushUndoState(before);
     }
 
     void onErasedAll() {
@@ -194,60 +505,209 @@ class CalcPresenter {
     }
 
     void onDigitBtnClicked(int digit) {
+        if (selectedTerm % 2 == 1) {
+            // Digits can only replace a selected number.
+            deselectTerm();
+        }
+
+        State before = getState();
         clearExpressionIfNeeded();
         dismissOldValue();
 
-        String valueStr = getCurrentValueString();
-
         // Check if max digits has been exceeded
-        int pointPos = valueStr.indexOf('.');
-        int intDigits = (pointPos == -1 ? valueStr.length() : pointPos) - (!valueStr.isEmpty() && valueStr.charAt(0) == '-' ? 1 : 0);
+        int intDigits = 0;
+        if (currentValue != null) {
+            intDigits = Math.max(1, currentValue.precision() - currentValue.scale());
+        }
         boolean maxIntReached = (intDigits >= settings.maxIntDigits);
-        boolean maxFracReached = (pointPos != -1 && valueStr.length() - pointPos - 1 >= nbFormat.getMaximumFractionDigits());
+        boolean maxFracReached = (currentValueScale >= nbFormat.getMaximumFractionDigits());
         if (maxIntReached || maxFracReached) {
             // Can't add a new digit, it's already at the maximum.
+            pushUndoState(before);
             return;
         }
 
-        if (pointPos != -1) {
+        // Digits are added to the unscaled value, small values typed are never allocated.
+        int scale = Math.max(0, currentValueScale);
+        if (currentValueScale >= 0) {
             currentValueScale++;
         }
-
-        currentValue = new BigDecimal(valueStr + digit);
+        currentValue = CalcDecimals.appendDigit(currentValue, scale, digit, Math.max(0, currentValueScale));
+        updateSelectedNumber();
         updateCurrentValue();
+        pushUndoState(before);
     }
 
     void onOperatorBtnClicked(@NonNull Expression.Operator operator) {
+        if (selectedTerm % 2 == 1) {
+            // Replace the selected operator.
+            expression.setOperator(selectedTerm / 2, operator);
+            deselectTerm();
+            return;
+        }
+        deselectTerm();
+
+        State before = getState();
         clearExpressionIfNeeded();
-        if (dismissError()) return;
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
 
         currentIsResult = false;
         currentValueScale = -1;
 
-        if (!currentIsAnswer && !canEditCurrentValue && !expression.operators.isEmpty()) {
+        if (!isCurrentValueOperand() && !expression.operators.isEmpty()) {
             // Undo previous operator button click if the current value is the
             // result of the expression calculated on the last button click.
-            expression.operators.set(expression.operators.size() - 1, operator);
+            expression.setLastOperator(operator);
 
         } else {
             if (currentValue == null) {
                 currentValue = BigDecimal.ZERO;
             }
-            expression.numbers.add(currentValue);
-            calculate();
-            expression.operators.add(operator);
+            addCurrentValue();
+            if (settings.shouldEvaluateOnOperation) {
+                calculate();
+            } else {
+                clearWithoutCalculating();
+            }
+            expression.addOperator(operator);
+        }
 
-            if (!settings.shouldEvaluateOnOperation) {
-                currentValue = null;
+        setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
+        updateCurrentValue();
+        updateExpression();
+        pushUndoState(before);
+    }
+
+    void onOpenParenthesisBtnClicked() {
+        deselectTerm();
+
+        State before = getState();
+        clearExpressionIfNeeded();
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
+
+        if (currentValue != null && isCurrentValueOperand()) {
+            // A value was entered before the parenthesis, multiply it by the parenthesis.
+            addCurrentValue();
+            expression.addOperator(Expression.Operator.MULTIPLY);
+        }
+
+        parentExpressions.add(expression);
+        expression = new Expression();
+
+        currentValue = null;
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsResult = false;
+        currentGroup = null;
+        currentIsComputed = false;
+        canEditCurrentValue = true;
+
+        setAnswerBtnVisible(false);
+        updateCurrentValue();
+        updateExpression();
+        pushUndoState(before);
+    }
+
+    void onCloseParenthesisBtnClicked() {
+        deselectTerm();
+        if (parentExpressions.isEmpty() || errorCode != ERROR_NONE) {
+            return;
+        }
+
+        State before = getState();
+        if (closeGroup()) {
+            setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
+            updateCurrentValue();
+        }
+        updateExpression();
+        pushUndoState(before);
+    }
+
+    void onPercentBtnClicked() {
+        applyFunction(true);
+    }
+
+    void onSquareRootBtnClicked() {
+        applyFunction(false);
+    }
+
+    /**
+     * Replace the current value by its percentage or its square root,
+     * if it's a value entered by the user and not the result of the last operation.
+     */
+    private void applyFunction(boolean percent) {
+        deselectTerm();
+
+        State before = getState();
+        clearExpressionIfNeeded();
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
+
+        if (currentValue == null || (!isCurrentValueOperand() && !expression.isEmpty())) {
+            pushUndoState(before);
+            return;
+        }
+
+        BigDecimal value = currentValue;
+        try {
+            if (percent) {
+                value = getPercentValue(value);
+            } else {
+                value = CalcDecimals.stripTrailingZeros(CalcMath.sqrt(value,
+                        nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode()));
             }
+        } catch (ArithmeticException e) {
+            setError(getErrorCode(e));
+            updateExpression();
+            pushUndoState(before);
+            return;
         }
 
-        view.setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null);
+        currentValue = value;
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsResult = false;
+        currentGroup = null;
+        currentIsComputed = true;
+        canEditCurrentValue = false;
+
+        setAnswerBtnVisible(false);
         updateCurrentValue();
         updateExpression();
+        pushUndoState(before);
+    }
+
+    /**
+     * Get a percentage of the current value. After an addition or a subtraction,
+     * it's a percentage of the value before the operator, otherwise it's a fraction of 100.
+     */
+    @NonNull
+    private BigDecimal getPercentValue(@NonNull BigDecimal value) {
+        value = value.movePointLeft(2);
+        if (!expression.operators.isEmpty()) {
+            Expression.Operator last = expression.operators.get(expression.operators.size() - 1);
+            if (last == Expression.Operator.ADD || last == Expression.Operator.SUBTRACT) {
+                value = value.multiply(evaluateExpression());
+            }
+        }
+        return CalcDecimals.stripTrailingZeros(value);
     }
 
     void onDecimalSepBtnClicked() {
+        if (selectedTerm % 2 == 1) {
+            // Digits can only replace a selected number.
+            deselectTerm();
+        }
+
+        State before = getState();
         clearExpressionIfNeeded();
         dismissOldValue();
 
@@ -257,17 +717,25 @@ class CalcPresenter {
                 currentValue = BigDecimal.ZERO;
             }
             currentValueScale = 0;
+            updateSelectedNumber();
             updateCurrentValue();
         }
+        pushUndoState(before);
     }
 
     void onSignBtnClicked() {
+        if (selectedTerm % 2 == 1) {
+            deselectTerm();
+        }
+
+        State before = getState();
         dismissError();
 
         currentIsAnswer = false;
-        view.setAnswerBtnVisible(false);
+        setAnswerBtnVisible(false);
 
-        if (!canEditCurrentValue && !currentIsResult && !expression.isEmpty()) {
+        if (!canEditCurrentValue && !currentIsResult && selectedTerm == -1
+                && (!expression.isEmpty() || currentGroup != null)) {
             // If current value is result, it's not editable but still allow negation.
             // If current value is result and isn't editable, but expression is empty,
             // that means current value is initial value, so allow negation too.
@@ -275,6 +743,8 @@ class CalcPresenter {
             currentValue = null;
             canEditCurrentValue = true;
             currentValueScale = -1;
+            currentGroup = null;
+            currentIsComputed = false;
         }
 
         // Negate value if there's one and it's not zero.
@@ -282,36 +752,271 @@ class CalcPresenter {
             currentValue = currentValue.negate();
         }
 
+        updateSelectedNumber();
         updateCurrentValue();
+        pushUndoState(before);
     }
 
     void onEqualBtnClicked() {
+        deselectTerm();
+
+        State before = getState();
         clearExpressionIfNeeded();
-        if (dismissError()) return;
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
         equal();
+        pushUndoState(before);
     }
 
     void onAnswerBtnClicked() {
+        deselectTerm();
+
+        State before = getState();
         assert resultValue != null;
 
         currentValue = resultValue;
         currentValueScale = -1;
         currentIsAnswer = true;
+        currentGroup = null;
+        currentIsComputed = false;
         canEditCurrentValue = false;
 
-        view.setAnswerBtnVisible(false);
+        setAnswerBtnVisible(false);
         updateCurrentValue();
+        pushUndoState(before);
     }
 
     void onClearBtnClicked() {
+        deselectTerm();
+
+        State before = getState();
         clearExpressionIfNeeded();
-        if (dismissError()) return;
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
 
         reset();
 
-        view.setAnswerBtnVisible(false);
+        setAnswerBtnVisible(false);
         updateCurrentValue();
         updateExpression();
+        pushUndoState(before);
+    }
+
+    void onHistoryBtnClicked() {
+        historyShown = !historyShown;
+
+        // If a value is being entered, search the entries containing it.
+        historyFilter = (historyShown && canEditCurrentValue) ? currentValue : null;
+        view.setHistoryVisible(historyShown, historyFilter);
+    }
+
+    void onHistoryEntryClicked(@NonNull BigDecimal value) {
+        deselectTerm();
+
+        State before = getState();
+        clearExpressionIfNeeded();
+        dismissError();
+
+        // Enter the result of the entry like an answer, it can't be edited.
+        currentValue = value;
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsResult = false;
+        currentGroup = null;
+        currentIsComputed = false;
+        canEditCurrentValue = false;
+
+        historyShown = false;
+        historyFilter = null;
+        view.setHistoryVisible(false, null);
+        setAnswerBtnVisible(false);
+        updateCurrentValue();
+        pushUndoState(before);
+    }
+
+    void onMemoryAddBtnClicked() {
+        addCurrentValueToMemory(false);
+    }
+
+    void onMemorySubtractBtnClicked() {
+        addCurrentValueToMemory(true);
+    }
+
+    /**
+     * Add the current value to the memory or subtract it. The value being typed is ended,
+     * so that a digit starts a new value, but it's still an operand of the expression.
+     * Memory changes aren't undoable, and pressing again on the button doesn't allocate.
+     */
+    private void addCurrentValueToMemory(boolean subtract) {
+        deselectTerm();
+        if (currentValue == null || errorCode != ERROR_NONE) {
+            return;
+        }
+
+        BigDecimal value = currentValue;
+        if (subtract) {
+            memory.subtract(value);
+        } else {
+            memory.add(value);
+        }
+        updateMemoryBtns();
+
+        if (canEditCurrentValue) {
+            State before = getState();
+            currentValueScale = -1;
+            currentIsComputed = true;
+            canEditCurrentValue = false;
+            updateCurrentValue();
+            pushUndoState(before);
+        }
+    }
+
+    void onMemoryRecallBtnClicked() {
+        deselectTerm();
+        if (memory.isZero()) return;
+
+        State before = getState();
+        clearExpressionIfNeeded();
+        dismissError();
+
+        // Enter the memory like a computed value, it can't be edited.
+        currentValue = CalcDecimals.stripTrailingZeros(memory.getValue());
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsResult = false;
+        currentGroup = null;
+        currentIsComputed = true;
+        canEditCurrentValue = false;
+
+        setAnswerBtnVisible(false);
+        updateCurrentValue();
+        pushUndoState(before);
+    }
+
+    void onMemoryClearBtnClicked() {
+        memory.clear();
+        updateMemoryBtns();
+    }
+
+    void onUndoBtnClicked() {
+        deselectTerm();
+        if (undoStack.isEmpty()) return;
+        redoStack.push(getState());
+        setState(undoStack.pop());
+        updateUndoBtns();
+    }
+
+    void onRedoBtnClicked() {
+        deselectTerm();
+        if (redoStack.isEmpty()) return;
+        undoStack.push(getState());
+        setState(redoStack.pop());
+        updateUndoBtns();
+    }
+
+    /**
+     * Called when the expression is clicked, to select the term at a position or deselect it.
+     * A selected number is shown as the current value and can be edited with the usual buttons.
+     * A selected operator can be replaced with an operator button. Both can be removed with erase.
+     * @param position The position of the click in the expression text.
+     */
+    void onExpressionClicked(int position) {
+        int term = findTerm(position);
+        if (term == -1 || term == selectedTerm || !settings.isExpressionEditable
+                || !canEditExpression || errorCode != ERROR_NONE || !parentExpressions.isEmpty()) {
+            deselectTerm();
+            return;
+        }
+
+        if (selectedTerm == -1) {
+            selectionUndoState = getState();
+            selectionValue = currentValue;
+            selectionGroup = currentGroup;
+            selectionValueScale = currentValueScale;
+            selectionIsAnswer = currentIsAnswer;
+            selectionCanEdit = canEditCurrentValue;
+        }
+        selectedTerm = term;
+
+        if (term % 2 == 0) {
+            // Show the selected number, the first digit typed replaces it.
+            // A selected parenthesis is shown as its value and is replaced by the typed number.
+            currentValue = expression.numbers.get(term / 2);
+            currentValueScale = currentValue.scale() > 0 ? currentValue.scale() : -1;
+        } else {
+            currentValue = null;
+            currentValueScale = -1;
+        }
+        currentIsAnswer = false;
+        canEditCurrentValue = false;
+        updateCurrentValue();
+        updateExpressionSelection();
+    }
+
+    void onValueLongClicked() {
+        view.showValueActions(currentValue != null && errorCode == ERROR_NONE);
+    }
+
+    void onValueCopyClicked() {
+        if (currentValue != null && errorCode == ERROR_NONE) {
+            // Copy the value with all its digits, whatever the display mode.
+            view.copyValueToClipboard(nbFormat.format(currentValue));
+        }
+    }
+
+    /**
+     * Enter pasted text. A number replaces the current value, and can be edited like a typed one.
+     * In an expression, the numbers and operators are added to the expression, like if they were
+     * typed, but it's only evaluated once after the last operator.
+     */
+    void onValuePasted(@NonNull CharSequence text) {
+        deselectTerm();
+
+        CalcPasteParser.Result result = new CalcPasteParser(nbFormat, settings.maxIntDigits,
+                settings.isExtraOperationBtnShown).parse(text);
+        if (result == null) {
+            view.showPasteFailedMessage();
+            return;
+        }
+
+        State before = getState();
+        clearExpressionIfNeeded();
+        dismissOldValue();
+
+        List<BigDecimal> numbers = result.numbers;
+        List<Expression.Operator> operators = result.operators;
+        int last = operators.size() - 1;
+        boolean endsWithOperator = operators.size() == numbers.size();
+        for (int i = 0; i <= last; i++) {
+            expression.addNumber(numbers.get(i));
+            if (i == last && endsWithOperator) {
+                if (settings.shouldEvaluateOnOperation) {
+                    calculate();
+                } else {
+                    clearWithoutCalculating();
+                }
+            }
+            expression.addOperator(operators.get(i));
+        }
+
+        if (!endsWithOperator) {
+            currentValue = numbers.get(numbers.size() - 1);
+            currentValueScale = result.lastScale;
+            currentIsAnswer = false;
+            currentGroup = null;
+            currentIsComputed = false;
+            canEditCurrentValue = true;
+        }
+        currentIsResult = false;
+
+        setAnswerBtnVisible(settings.isAnswerBtnShown && resultValue != null && last >= 0);
+        updateCurrentValue();
+        updateExpression();
+        pushUndoState(before);
     }
 
     void onCancelBtnClicked() {
@@ -319,14 +1024,21 @@ class CalcPresenter {
     }
 
     void onOkBtnClicked() {
+        deselectTerm();
+
+        State before = getState();
         clearExpressionIfNeeded();
-        if (dismissError()) return;
+        if (dismissError()) {
+            pushUndoState(before);
+            return;
+        }
 
         equal();
 
         if (expression.numbers.size() > 1) {
             // If the expression still has more than 1 number it means it was just calculated.
             // Don't dismiss already to let user see the result.
+            pushUndoState(before);
             return;
         }
 
@@ -339,6 +1051,7 @@ class CalcPresenter {
                 } else {
                     setError(ERROR_OUT_OF_BOUNDS);
                 }
+                pushUndoState(before);
                 return;
             } else if (settings.minValue != null && resultValue.compareTo(settings.minValue) < 0) {
                 if (settings.minValue.compareTo(BigDecimal.ZERO) == 0) {
@@ -346,6 +1059,7 @@ class CalcPresenter {
                 } else {
                     setError(ERROR_OUT_OF_BOUNDS);
                 }
+                pushUndoState(before);
                 return;
             }
         }
@@ -353,15 +1067,35 @@ class CalcPresenter {
         if (errorCode == ERROR_NONE) {
             view.sendValueResult(resultValue);
             view.exit();
+        } else {
+            pushUndoState(before);
         }
     }
 
     void onDismissed() {
+        if (memoryPrefs != null) {
+            //noinspection ConstantConditions
+            memory.writeToPreferences(memoryPrefs, settings.memoryName);
+        }
+        memory.clear();
+        deleteSpilledExpression();
+        selectedTerm = -1;
+        selectionUndoState = null;
         reset();
+        historyShown = false;
+        historyFilter = null;
+        undoStack.clear();
+        redoStack.clear();
+        initialized = false;
     }
 
     private void clearExpressionIfNeeded() {
         if (!canEditExpression) {
+            if (!parentExpressions.isEmpty()) {
+                // An error occurred while closing parentheses, start over from the outermost.
+                expression = parentExpressions.get(0);
+                parentExpressions.clear();
+            }
             expression.clear();
             canEditExpression = true;
             currentIsResult = false;
@@ -374,12 +1108,14 @@ class CalcPresenter {
 
         currentIsAnswer = false;
 
-        view.setAnswerBtnVisible(false);
+        setAnswerBtnVisible(false);
 
         if (!canEditCurrentValue) {
             currentValue = null;
             canEditCurrentValue = true;
             currentValueScale = -1;
+            currentGroup = null;
+            currentIsComputed = false;
         }
     }
 
@@ -387,6 +1123,10 @@ class CalcPresenter {
      * Reset all variables to their initial value. Doesn't update the display.
      */
     private void reset() {
+        if (!parentExpressions.isEmpty()) {
+            expression = parentExpressions.get(0);
+            parentExpressions.clear();
+        }
         expression.clear();
         currentValue = null;
         resultValue = null;
@@ -395,41 +1135,70 @@ class CalcPresenter {
 
         currentIsAnswer = false;
         currentIsResult = false;
+        currentGroup = null;
+        currentIsComputed = false;
         canEditCurrentValue = false;
         canEditExpression = true;
 
-        view.setAnswerBtnVisible(false);
+        setAnswerBtnVisible(false);
     }
 
     private void calculate() {
         try {
-            currentValue = expression.evaluate(settings.isOrderOfOperationsApplied,
-                    settings.nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode());
+            currentValue = evaluateExpression();
+        } catch (ArithmeticException e) {
+            setError(getErrorCode(e));
+            return;
+        }
+
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentGroup = null;
+        currentIsComputed = false;
+        canEditCurrentValue = false;
+    }
+
+    /**
+     * Clear the current value after a number was added to the expression, without evaluating it.
+     * Only the group of the number added is checked, so that errors are reported on the same
+     * button press as when the expression is evaluated on operation.
+     */
+    private void clearWithoutCalculating() {
+        try {
+            expression.checkLastGroup(settings.isOrderOfOperationsApplied,
+                    nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode(),
+                    settings.maxResultDigits);
         } catch (ArithmeticException e) {
-            // Division by zero occurred.
-            setError(ERROR_DIV_ZERO);
+            setError(getErrorCode(e));
             return;
         }
 
+        currentValue = null;
         currentValueScale = -1;
         currentIsAnswer = false;
+        currentGroup = null;
+        currentIsComputed = false;
         canEditCurrentValue = false;
     }
 
     private void equal() {
-        if (!currentIsAnswer && !canEditCurrentValue && !expression.operators.isEmpty()) {
-            // Remove unused last operator
-            expression.operators.remove(expression.operators.size() - 1);
-        } else {
-            if (currentValue == null) {
-                currentValue = BigDecimal.ZERO;
+        // Close all open parentheses first.
+        while (!parentExpressions.isEmpty()) {
+            if (!closeGroup()) {
+                updateExpression();
+                return;
             }
-            expression.numbers.add(currentValue);
         }
 
+        finishExpression();
         calculate();
 
         if (errorCode == ERROR_NONE) {
+            if (history != null && expression.numbers.size() > 1) {
+                assert currentValue != null;
+                history.add(expression, currentValue, settings.historyMaxSize);
+            }
+
             resultValue = currentValue;
             currentIsResult = true;
             currentValueScale = -1;
@@ -440,6 +1209,247 @@ class CalcPresenter {
         updateExpression();
     }
 
+    /**
+     * Evaluate the expression with the current settings.
+     * @throws Expression.EvaluationException if an error occurred.
+     */
+    @NonNull
+    private BigDecimal evaluateExpression() {
+        long start = CalcMetrics.start(metrics);
+        try {
+            return expression.evaluate(settings.isOrderOfOperationsApplied,
+                    nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode(),
+                    settings.maxResultDigits);
+        } finally {
+            CalcMetrics.end(metrics, CalcMetrics.Event.EVALUATE, start);
+        }
+    }
+
+    /**
+     * Whether the current value was entered by the user, as opposed to being the
+     * result of the expression evaluated when the last operator was added.
+     */
+    private boolean isCurrentValueOperand() {
+        return canEditCurrentValue || currentIsAnswer || currentGroup != null || currentIsComputed;
+    }
+
+    /**
+     * Complete the expression so it can be evaluated, either by removing the unused last operator
+     * or by adding the current value to it.
+     */
+    private void finishExpression() {
+        if (!isCurrentValueOperand() && !expression.operators.isEmpty()) {
+            // Remove unused last operator
+            expression.removeLastOperator();
+        } else {
+            if (currentValue == null) {
+                currentValue = BigDecimal.ZERO;
+            }
+            addCurrentValue();
+        }
+    }
+
+    /**
+     * Add the current value at the end of the expression, as a group if it's a closed parenthesis.
+     */
+    private void addCurrentValue() {
+        assert currentValue != null;
+        if (currentGroup != null) {
+            expression.addGroup(currentValue, currentGroup);
+        } else {
+            expression.addNumber(currentValue);
+        }
+    }
+
+    /**
+     * Close the innermost open parenthesis. Its expression is evaluated and
+     * becomes the current value, as a number keeping the expression for display.
+     * @return False if an error occurred during evaluation.
+     */
+    private boolean closeGroup() {
+        finishExpression();
+
+        BigDecimal value;
+        try {
+            value = evaluateExpression();
+        } catch (ArithmeticException e) {
+            setError(getErrorCode(e));
+            return false;
+        }
+
+        currentGroup = expression;
+        expression = parentExpressions.remove(parentExpressions.size() - 1);
+        currentValue = value;
+        currentValueScale = -1;
+        currentIsAnswer = false;
+        currentIsResult = false;
+        currentIsComputed = false;
+        canEditCurrentValue = false;
+        return true;
+    }
+
+    /**
+     * Open the parenthesis of the current value again, making its last number the current value.
+     */
+    private void reopenGroup() {
+        assert currentGroup != null;
+        currentIsComputed = false;
+
+        // The group expression may be shared with undo states, so it's copied.
+        parentExpressions.add(expression);
+        expression = currentGroup.copy();
+        canEditCurrentValue = true;
+        popLastNumber();
+        updateExpression();
+    }
+
+    /**
+     * Remove the last number from the expression and make it the current value,
+     * setting its scale and flags.
+     */
+    private void popLastNumber() {
+        currentGroup = expression.getGroup(expression.numbers.size() - 1);
+        currentValue = expression.removeLastNumber();
+        assert currentValue != null;
+        if (currentGroup != null) {
+            canEditCurrentValue = false;
+            currentValueScale = -1;
+        } else {
+            currentValueScale = currentValue.scale();
+            if (currentValueScale == 0) currentValueScale = -1;
+        }
+    }
+
+    /**
+     * Find the selectable term at a position in the expression text.
+     * The operator after the last number can't be selected.
+     * @return The term position, or -1 if there's none.
+     */
+    private int findTerm(int position) {
+        int count = Math.min(expression.getTermCount(), expression.numbers.size() * 2 - 1);
+        for (int i = 0; i < count; i++) {
+            if (position >= termBounds[i * 2] && position <= termBounds[i * 2 + 1]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the current value to the selected number if there's one.
+     */
+    private void updateSelectedNumber() {
+        if (selectedTerm >= 0 && selectedTerm % 2 == 0) {
+            expression.setNumber(selectedTerm / 2, currentValue != null ? currentValue : BigDecimal.ZERO);
+            updateExpression();
+        }
+    }
+
+    /**
+     * Deselect the selected term, restoring the current value as it was before selection.
+     * If the current value was the result of the expression, it's evaluated again,
+     * which only combines the changed terms.
+     */
+    private void deselectTerm() {
+        if (selectedTerm == -1) return;
+        selectedTerm = -1;
+        restoreSelectionValue();
+
+        if (!canEditCurrentValue && !currentIsAnswer && settings.shouldEvaluateOnOperation
+                && !expression.isEmpty()) {
+            calculate();
+        }
+        if (errorCode == ERROR_NONE) {
+            updateCurrentValue();
+        }
+        updateExpression();
+
+        assert selectionUndoState != null;
+        State undoState = selectionUndoState;
+        selectionUndoState = null;
+        pushUndoState(undoState);
+    }
+
+    private void restoreSelectionValue() {
+        currentValue = selectionValue;
+        currentGroup = selectionGroup;
+        currentValueScale = selectionValueScale;
+        currentIsAnswer = selectionIsAnswer;
+        canEditCurrentValue = selectionCanEdit;
+        selectionValue = null;
+        selectionGroup = null;
+    }
+
+    private void setAnswerBtnVisible(boolean visible) {
+        answerBtnShown = visible;
+        view.setAnswerBtnVisible(visible);
+    }
+
+    @NonNull
+    private State getState() {
+        return new State(this);
+    }
+
+    /**
+     * Restore a state and update the view. The expression is restored from its snapshot
+     * and values are restored as they were, nothing is evaluated again.
+     */
+    private void setState(@NonNull State state) {
+        while (parentExpressions.size() > state.parentExpressions.length) {
+            parentExpressions.remove(parentExpressions.size() - 1);
+        }
+        while (parentExpressions.size() < state.parentExpressions.length) {
+            parentExpressions.add(new Expression());
+        }
+        for (int i = 0; i < state.parentExpressions.length; i++) {
+            parentExpressions.get(i).restore(state.parentExpressions[i]);
+        }
+        expression.restore(state.expression);
+        currentValue = state.currentValue;
+        resultValue = state.resultValue;
+        currentValueScale = state.currentValueScale;
+        errorCode = state.errorCode;
+        currentIsAnswer = state.currentIsAnswer;
+        currentIsResult = state.currentIsResult;
+        currentGroup = state.currentGroup;
+        currentIsComputed = state.currentIsComputed;
+        canEditCurrentValue = state.canEditCurrentValue;
+        canEditExpression = state.canEditExpression;
+
+        setAnswerBtnVisible(state.answerBtnShown);
+        if (errorCode != ERROR_NONE) {
+            view.showErrorText(errorCode);
+            updatePreview();
+        } else {
+            updateCurrentValue();
+        }
+        updateExpression();
+    }
+
+    /**
+     * Add the state before an action to the undo stack if the action changed the state.
+     */
+    private void pushUndoState(@NonNull State before) {
+        if (selectedTerm != -1) {
+            // Term edit is pushed as a single action when it's deselected.
+            return;
+        }
+        if (!before.equals(getState())) {
+            undoStack.push(before);
+            redoStack.clear();
+            updateUndoBtns();
+        }
+    }
+
+    private void updateUndoBtns() {
+        view.setUndoBtnEnabled(!undoStack.isEmpty());
+        view.setRedoBtnEnabled(!redoStack.isEmpty());
+    }
+
+    private void updateMemoryBtns() {
+        view.setMemoryRecallBtnsEnabled(!memory.isZero());
+    }
+
     private void setError(int error) {
         errorCode = error;
 
@@ -452,6 +1462,19 @@ class CalcPresenter {
         canEditExpression = false;
 
         view.showErrorText(error);
+        updatePreview();
+    }
+
+    private static int getErrorCode(ArithmeticException e) {
+        if (e instanceof Expression.EvaluationException) {
+            switch (((Expression.EvaluationException) e).reason) {
+                case Expression.EvaluationException.INVALID_OPERATION:
+                    return ERROR_INVALID;
+                case Expression.EvaluationException.TOO_LARGE:
+                    return ERROR_TOO_LARGE;
+            }
+        }
+        return ERROR_DIV_ZERO;
     }
 
     private boolean dismissError() {
@@ -464,11 +1487,14 @@ class CalcPresenter {
     }
 
     private void updateCurrentValue() {
+        updatePreview();
+
         if (currentIsAnswer) {
             view.showAnswerText();
             return;
         }
 
+        long formatStart = CalcMetrics.start(metrics);
         BigDecimal value = currentValue;
         if (value == null && settings.isZeroShownWhenNoValue) {
             value = BigDecimal.ZERO;
@@ -477,57 +1503,241 @@ class CalcPresenter {
         String text = null;
         if (value != null) {
             if (currentValueScale > 0 && nbFormat.getMinimumFractionDigits() < currentValueScale) {
-                // Set a minimum number of fraction digits so that trailing zeroes are shown.
-                int minFracBefore = nbFormat.getMinimumFractionDigits();
-                nbFormat.setMinimumFractionDigits(currentValueScale);
-                text = nbFormat.format(value);
-                nbFormat.setMinimumFractionDigits(minFracBefore);
+                // Use a minimum number of fraction digits so that trailing zeroes are shown.
+                text = getFractionFormat(currentValueScale).format(value);
 
             } else if (currentValueScale == 0
                     && nbFormat.getMinimumFractionDigits() == 0
                     && nbFormat instanceof DecimalFormat) {
-                // Append the decimal separator at the end of the number.
+                // Insert the decimal separator at the end of the number, before the suffix.
                 DecimalFormat fmt = (DecimalFormat) nbFormat;
                 char sep = fmt.getDecimalFormatSymbols().getDecimalSeparator();
-                if (value.compareTo(BigDecimal.ZERO) >= 0) {
-                    String suffixBefore = fmt.getPositiveSuffix();
-                    fmt.setPositiveSuffix(sep + suffixBefore);
-                    text = nbFormat.format(value);
-                    fmt.setPositiveSuffix(suffixBefore);
-                } else {
-                    String suffixBefore = fmt.getNegativeSuffix();
-                    fmt.setNegativeSuffix(sep + suffixBefore);
-                    text = nbFormat.format(value);
-                    fmt.setNegativeSuffix(suffixBefore);
-                }
-            } else {
+                String suffix = value.signum() >= 0 ? fmt.getPositiveSuffix() : fmt.getNegativeSuffix();
                 text = nbFormat.format(value);
+                int end = text.length() - suffix.length();
+                text = text.substring(0, end) + sep + text.substring(end);
+            } else if (canEditCurrentValue) {
+                text = nbFormat.format(value);
+            } else {
+                // Only format the digits shown, the full value is formatted if copied.
+                text = settings.displayMode.format(nbFormat, value, settings.maxDisplayDigits);
             }
         }
 
+        CalcMetrics.end(metrics, CalcMetrics.Event.FORMAT, formatStart);
+
+        long viewStart = CalcMetrics.start(metrics);
         view.updateCurrentValue(text);
+        CalcMetrics.end(metrics, CalcMetrics.Event.VIEW_UPDATE, viewStart);
+    }
+
+    /**
+     * Get the variant of the number format with a minimum number of fraction digits.
+     */
+    private NumberFormat getFractionFormat(int digits) {
+        if (digits >= fractionFormats.length) {
+            return CalcNumberFormats.withMinimumFractionDigits(nbFormat, digits);
+        }
+        NumberFormat format = fractionFormats[digits];
+        if (format == null) {
+            format = CalcNumberFormats.withMinimumFractionDigits(nbFormat, digits);
+            fractionFormats[digits] = format;
+        }
+        return format;
+    }
+
+    /**
+     * Update the preview of the result with the current value added to the expression,
+     * or hide it if there's no value or if the value is already the result.
+     */
+    private void updatePreview() {
+        if (!settings.isPreviewShown) return;
+
+        final BigDecimal value = currentValue;
+        if (errorCode != ERROR_NONE || currentIsResult || selectedTerm != -1
+                || value == null || !isCurrentValueOperand()
+                || expression.isEmpty() && parentExpressions.isEmpty()
+                || expression.operators.size() != expression.numbers.size()) {
+            preview.cancel();
+            view.updatePreview(null);
+            return;
+        }
+
+        Expression[] levels = new Expression[parentExpressions.size() + 1];
+        parentExpressions.toArray(levels);
+        levels[levels.length - 1] = expression;
+        preview.compute(levels, value, settings.isOrderOfOperationsApplied,
+                nbFormat.getMaximumFractionDigits(), nbFormat.getRoundingMode(),
+                settings.maxResultDigits, new CalcPreview.Callback() {
+                    @Override
+                    public void onPreviewComputed(@Nullable BigDecimal result) {
+                        if (view == null) return;
+                        view.updatePreview(result == null ? null
+                                : settings.displayMode.format(nbFormat, result, settings.maxDisplayDigits));
+                    }
+                });
     }
 
     private void updateExpression() {
         if (settings.isExpressionShown) {
-            String text = expression.format(nbFormat);
-            if (currentIsResult) {
-                // If current value is the result from the equal button, append = to the expression.
-                text += " =";
+            long formatStart = CalcMetrics.start(metrics);
+            String text = formatExpression();
+            CalcMetrics.end(metrics, CalcMetrics.Event.FORMAT, formatStart);
+
+            // Only send the part that changed to the view, which is almost always at the end.
+            long viewStart = CalcMetrics.start(metrics);
+            int start = 0;
+            int maxStart = Math.min(text.length(), expressionText.length());
+            while (start < maxStart && text.charAt(start) == expressionText.charAt(start)) {
+                start++;
+            }
+            if (start < text.length() || start < expressionText.length()) {
+                view.updateExpression(start, text.substring(start));
+                expressionText = text;
+            }
+            updateExpressionSelection();
+            CalcMetrics.end(metrics, CalcMetrics.Event.VIEW_UPDATE, viewStart);
+        }
+    }
+
+    /**
+     * Format the expression as it's shown, including the parent expressions and
+     * the current group. If there's no parent, the bounds of each term are set.
+     */
+    private String formatExpression() {
+        String text;
+        if (parentExpressions.isEmpty()) {
+            if (termBounds.length < expression.getTermCount() * 2) {
+                termBounds = new int[expression.getTermCount() * 4];
             }
-            view.updateExpression(text);
+            text = expression.format(nbFormat, termBounds);
+        } else {
+            // Terms can't be selected in parentheses, no need for bounds.
+            StringBuilder sb = new StringBuilder();
+            for (Expression parent : parentExpressions) {
+                sb.append(parent.format(nbFormat));
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' '
+                        && sb.charAt(sb.length() - 1) != '(') {
+                    sb.append(' ');
+                }
+                sb.append('(');
+            }
+            sb.append(expression.format(nbFormat));
+            text = sb.toString();
+        }
+        if (currentGroup != null) {
+            // Show the closed parenthesis until it's added to the expression.
+            text += (text.isEmpty() || text.endsWith(" ") ? "(" : " (")
+                    + currentGroup.format(nbFormat).trim() + ')';
+        }
+        if (currentIsResult) {
+            // If current value is the result from the equal button, append = to the expression.
+            text += " =";
+        }
+        return text;
+    }
+
+    /**
+     * Emit the current state in the state stream, if it has subscribers.
+     */
+    void publishState() {
+        if (stateStream == null || !stateStream.hasSubscribers()) return;
+
+        BigDecimal value = currentGroup != null ? null : currentValue;
+        String text = settings.isExpressionShown ? expressionText : formatExpression();
+        stateStream.emit(value, text, errorCode);
+    }
+
+    private void updateExpressionSelection() {
+        if (selectedTerm == -1) {
+            view.setExpressionSelection(-1, -1);
+        } else {
+            view.setExpressionSelection(termBounds[selectedTerm * 2], termBounds[selectedTerm * 2 + 1]);
         }
     }
 
-    private String getCurrentValueString() {
-        if (currentValue == null) return "";
+    /**
+     * Immutable snapshot of the presenter state. The expression is kept as its last term,
+     * which shares all previous terms with other snapshots, so a snapshot has a constant size.
+     */
+    private static final class State {
+
+        @Nullable
+        final Expression.Term expression;
+
+        @NonNull
+        final Expression.Term[] parentExpressions;
+
+        @Nullable
+        final BigDecimal currentValue;
+
+        @Nullable
+        final BigDecimal resultValue;
+
+        final int currentValueScale;
+        final int errorCode;
+        final boolean currentIsAnswer;
+        final boolean currentIsResult;
+        @Nullable
+        final Expression currentGroup;
+        final boolean currentIsComputed;
+        final boolean canEditCurrentValue;
+        final boolean canEditExpression;
+        final boolean answerBtnShown;
+
+        State(@NonNull CalcPresenter presenter) {
+            expression = presenter.expression.getLastTerm();
+            parentExpressions = new Expression.Term[presenter.parentExpressions.size()];
+            for (int i = 0; i < parentExpressions.length; i++) {
+                parentExpressions[i] = presenter.parentExpressions.get(i).getLastTerm();
+            }
+            currentValue = presenter.currentValue;
+            resultValue = presenter.resultValue;
+            currentValueScale = presenter.currentValueScale;
+            errorCode = presenter.errorCode;
+            currentIsAnswer = presenter.currentIsAnswer;
+            currentIsResult = presenter.currentIsResult;
+            currentGroup = presenter.currentGroup;
+            currentIsComputed = presenter.currentIsComputed;
+            canEditCurrentValue = presenter.canEditCurrentValue;
+            canEditExpression = presenter.canEditExpression;
+            answerBtnShown = presenter.answerBtnShown;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof State)) return false;
+            State state = (State) o;
+            // Terms are compared by identity, an unchanged expression has the same last term.
+            return expression == state.expression
+                    && Arrays.equals(parentExpressions, state.parentExpressions)
+                    && equalsNullable(currentValue, state.currentValue)
+                    && equalsNullable(resultValue, state.resultValue)
+                    && currentValueScale == state.currentValueScale
+                    && errorCode == state.errorCode
+                    && currentIsAnswer == state.currentIsAnswer
+                    && currentIsResult == state.currentIsResult
+                    && currentGroup == state.currentGroup
+                    && currentIsComputed == state.currentIsComputed
+                    && canEditCurrentValue == state.canEditCurrentValue
+                    && canEditExpression == state.canEditExpression
+                    && answerBtnShown == state.answerBtnShown;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(expression);
+            result = 31 * result + (currentValue != null ? currentValue.hashCode() : 0);
+            result = 31 * result + (resultValue != null ? resultValue.hashCode() : 0);
+            result = 31 * result + currentValueScale;
+            result = 31 * result + errorCode;
+            return result;
+        }
 
-        String str = currentValue.setScale(Math.max(0, currentValueScale),
-                RoundingMode.UNNECESSARY).toPlainString();
-        if (currentValueScale == 0) {
-            str += '.';
+        private static boolean equalsNullable(@Nullable Object o1, @Nullable Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
         }
-        return str;
     }
 
 }
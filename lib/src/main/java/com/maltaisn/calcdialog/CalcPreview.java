@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Computes the value an expression would have if the value being typed was added to it.
+ * Each nesting level is evaluated with the value of the level inside it, from the innermost.
+ * <p>
+ * When all levels were already evaluated, only the terms of the last group of each level
+ * are combined again, so the preview is computed right away on the main thread. Otherwise,
+ * the levels are evaluated on a background thread from a snapshot of their terms and the
+ * evaluation is given back to the expressions if they didn't change. Only the latest
+ * preview is kept: a pending one is dropped when another is requested.
+ */
+final class CalcPreview {
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "CalcPreview");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Incremented for each request, a preview is only delivered if it's the latest. */
+    private volatile int generation;
+
+
+    /**
+     * Compute a preview.
+     * @param levels   Expressions of each nesting level, outermost first.
+     *                 They must all end with an operator.
+     * @param value    The value being typed, added to the innermost level.
+     * @param callback Callback called on the main thread with the result,
+     *                 right away if possible. Not called if a newer preview was requested.
+     */
+    void compute(@NonNull final Expression[] levels, @NonNull final BigDecimal value,
+                 final boolean priority, final int scale, final RoundingMode roundingMode,
+                 final int maxDigits, @NonNull final Callback callback) {
+        final int requested = ++generation;
+
+        boolean evaluated = true;
+        for (Expression level : levels) {
+            if (!level.isEvaluated(priority, scale, roundingMode, maxDigits)) {
+                evaluated = false;
+                break;
+            }
+        }
+        if (evaluated) {
+            callback.onPreviewComputed(evaluate(levels, value, priority, scale, roundingMode, maxDigits));
+            return;
+        }
+
+        // Terms are immutable, so the snapshot is only a reference to the last term of each level.
+        final Expression.Term[] terms = new Expression.Term[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            terms[i] = levels[i].getLastTerm();
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (requested != generation) return;
+
+                final Expression[] copies = new Expression[terms.length];
+                for (int i = 0; i < terms.length; i++) {
+                    copies[i] = new Expression();
+                    copies[i].restore(terms[i]);
+                }
+                final BigDecimal result = evaluate(copies, value, priority, scale, roundingMode, maxDigits);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < levels.length; i++) {
+                            levels[i].adoptEvaluation(copies[i]);
+                        }
+                        if (requested == generation) {
+                            callback.onPreviewComputed(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drop any pending preview.
+     */
+    void cancel() {
+        generation++;
+    }
+
+    /**
+     * Evaluate each level with the value of the level inside it.
+     * @return The value of the outermost level, or {@code null} if it can't be evaluated.
+     */
+    @Nullable
+    private static BigDecimal evaluate(Expression[] levels, BigDecimal value, boolean priority,
+                                       int scale, RoundingMode roundingMode, int maxDigits) {
+        try {
+            for (int i = levels.length - 1; i >= 0; i--) {
+                value = levels[i].evaluateWith(value, priority, scale, roundingMode, maxDigits);
+            }
+            return value;
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    interface Callback {
+        void onPreviewComputed(@Nullable BigDecimal result);
+    }
+
+}
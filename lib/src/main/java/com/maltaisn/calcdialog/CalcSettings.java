@@ -32,6 +32,10 @@ import androidx.annotation.Nullable;
 
 /**
  * Settings for the calculator dialog.
+ * <p>
+ * Settings can be frozen with {@link #freeze()} to get an immutable snapshot, which can be
+ * shared by many calculators. Frozen settings use a number format shared by all settings
+ * with the same number format configuration.
  */
 @SuppressWarnings("unused")
 public class CalcSettings implements Parcelable {
@@ -44,12 +48,19 @@ public class CalcSettings implements Parcelable {
     // Appearance settings
     @NonNull NumberFormat nbFormat = NumberFormat.getInstance();
     int maxIntDigits = 10;
+    @NonNull CalcDisplayMode displayMode = CalcDisplayMode.STANDARD;
+    int maxDisplayDigits = 16;
 
     @NonNull CalcNumpadLayout numpadLayout = CalcNumpadLayout.CALCULATOR;
     boolean isExpressionShown = false;
     boolean isZeroShownWhenNoValue = true;
     boolean isAnswerBtnShown = false;
     boolean isSignBtnShown = true;
+    boolean isUndoBtnShown = false;
+    boolean isParenthesisBtnShown = false;
+    boolean isExtraOperationBtnShown = false;
+    boolean isMemoryBtnShown = false;
+    boolean isPreviewShown = false;
     boolean isExpressionEditable = false;
     boolean shouldEvaluateOnOperation = false;
 
@@ -58,16 +69,113 @@ public class CalcSettings implements Parcelable {
     @Nullable BigDecimal minValue = new BigDecimal("-1E10");
     @Nullable BigDecimal maxValue = new BigDecimal("1E10");
     boolean isOrderOfOperationsApplied = true;
+    int maxSavedStateSize = 50 * 1024;
+    int maxResultDigits = 1000;
+    @Nullable CalcMetrics metrics = null;
+
+    // History settings
+    boolean isHistoryEnabled = false;
+    @NonNull String historyName = "default";
+    int historyMaxSize = 1000;
+
+    // Memory settings
+    @Nullable String memoryName = null;
+
+    private boolean frozen = false;
 
     CalcSettings() {
         nbFormat.setMaximumIntegerDigits(Integer.MAX_VALUE);
         nbFormat.setMaximumFractionDigits(8);
     }
 
+    private CalcSettings(@NonNull CalcSettings settings) {
+        requestCode = settings.requestCode;
+        nbFormat = CalcNumberFormats.share(settings.nbFormat);
+        maxIntDigits = settings.maxIntDigits;
+        displayMode = settings.displayMode;
+        maxDisplayDigits = settings.maxDisplayDigits;
+        numpadLayout = settings.numpadLayout;
+        isExpressionShown = settings.isExpressionShown;
+        isZeroShownWhenNoValue = settings.isZeroShownWhenNoValue;
+        isAnswerBtnShown = settings.isAnswerBtnShown;
+        isSignBtnShown = settings.isSignBtnShown;
+        isUndoBtnShown = settings.isUndoBtnShown;
+        isParenthesisBtnShown = settings.isParenthesisBtnShown;
+        isExtraOperationBtnShown = settings.isExtraOperationBtnShown;
+        isMemoryBtnShown = settings.isMemoryBtnShown;
+        isPreviewShown = settings.isPreviewShown;
+        isExpressionEditable = settings.isExpressionEditable;
+        shouldEvaluateOnOperation = settings.shouldEvaluateOnOperation;
+        initialValue = settings.initialValue;
+        minValue = settings.minValue;
+        maxValue = settings.maxValue;
+        isOrderOfOperationsApplied = settings.isOrderOfOperationsApplied;
+        maxSavedStateSize = settings.maxSavedStateSize;
+        maxResultDigits = settings.maxResultDigits;
+        metrics = settings.metrics;
+        isHistoryEnabled = settings.isHistoryEnabled;
+        historyName = settings.historyName;
+        historyMaxSize = settings.historyMaxSize;
+        memoryName = settings.memoryName;
+        frozen = true;
+    }
+
     void validate() {
         if (minValue != null && maxValue != null && minValue.compareTo(maxValue) >= 0) {
             throw new IllegalArgumentException("Minimum value must be less than maximum value.");
         }
+        if (historyMaxSize <= 0) {
+            throw new IllegalArgumentException("History maximum size must be positive.");
+        }
+        if (!isValidHistoryName(historyName)) {
+            throw new IllegalArgumentException("History name must only have letters, digits, "
+                    + "'.', '-' and '_', and must not start with '.'.");
+        }
+        if (maxDisplayDigits <= 0) {
+            throw new IllegalArgumentException("Maximum display digits must be positive.");
+        }
+        if (maxResultDigits <= 0) {
+            throw new IllegalArgumentException("Maximum result digits must be positive.");
+        }
+    }
+
+    private static boolean isValidHistoryName(@NonNull String name) {
+        if (name.isEmpty() || name.charAt(0) == '.') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '.' || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get an immutable copy of these settings, which can be shared by many calculators.
+     * The settings are validated first. Setters of the copy throw an exception, but these
+     * settings can still be changed without affecting it.
+     * @return The frozen settings, or these settings if they're already frozen.
+     */
+    @NonNull
+    public CalcSettings freeze() {
+        if (frozen) {
+            return this;
+        }
+        validate();
+        return new CalcSettings(this);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Frozen settings can't be changed.");
+        }
     }
 
     /**
@@ -76,6 +184,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setRequestCode(int requestCode) {
+        checkNotFrozen();
         this.requestCode = requestCode;
         return this;
     }
@@ -90,16 +199,18 @@ public class CalcSettings implements Parcelable {
      * changing the grouping settings, the minimum and maximum integer and fraction digits,
      * the decimal separator, the rounding mode, and probably more.
      * By default, the locale's default decimal format is used.
+     * The format is copied, so changing it afterwards has no effect on the settings.
      * @param format A number format.
      * @return The settings
      * @see NumberFormat
      */
     public CalcSettings setNumberFormat(@NonNull NumberFormat format) {
+        checkNotFrozen();
         if (format.getRoundingMode() == RoundingMode.UNNECESSARY) {
             throw new IllegalArgumentException("Cannot use RoundingMode.UNNECESSARY as a rounding mode.");
         }
 
-        this.nbFormat = format;
+        this.nbFormat = (NumberFormat) format.clone();
 
         // The max int setting on number format is used to set the maximum int digits that can be entered.
         // However, it is possible that the user evaluates expressions resulting in bigger numbers.
@@ -110,9 +221,21 @@ public class CalcSettings implements Parcelable {
         return this;
     }
 
+    /**
+     * Get the number format. If the settings are frozen, a copy is returned.
+     */
     @NonNull
     public NumberFormat getNumberFormat() {
-        return nbFormat;
+        return frozen ? (NumberFormat) nbFormat.clone() : nbFormat;
+    }
+
+    /**
+     * Get the number format shared by all settings with the same number format configuration.
+     * It must not be modified.
+     */
+    @NonNull
+    NumberFormat getSharedNumberFormat() {
+        return frozen ? nbFormat : CalcNumberFormats.share(nbFormat);
     }
 
     /**
@@ -123,6 +246,7 @@ public class CalcSettings implements Parcelable {
      * @see CalcNumpadLayout
      */
     public CalcSettings setNumpadLayout(@NonNull CalcNumpadLayout layout) {
+        checkNotFrozen();
         numpadLayout = layout;
         return this;
     }
@@ -132,6 +256,43 @@ public class CalcSettings implements Parcelable {
         return numpadLayout;
     }
 
+    /**
+     * Set the notation used to display values with more than a number of digits,
+     * see {@link #setMaxDisplayDigits(int)}. Values being entered are always shown with
+     * all digits, and long clicking on the value copies it with all digits.
+     * Default mode is {@link CalcDisplayMode#STANDARD}, which shows all digits.
+     * @param mode Display mode to use.
+     * @return The settings
+     * @see CalcDisplayMode
+     */
+    public CalcSettings setDisplayMode(@NonNull CalcDisplayMode mode) {
+        checkNotFrozen();
+        displayMode = mode;
+        return this;
+    }
+
+    @NonNull
+    public CalcDisplayMode getDisplayMode() {
+        return displayMode;
+    }
+
+    /**
+     * Set the maximum number of digits of a value shown without the notation of the display mode.
+     * This is also the maximum number of significant digits shown with the notation.
+     * Default maximum is 16 digits.
+     * @param digits Maximum number of digits.
+     * @return The settings
+     */
+    public CalcSettings setMaxDisplayDigits(int digits) {
+        checkNotFrozen();
+        maxDisplayDigits = digits;
+        return this;
+    }
+
+    public int getMaxDisplayDigits() {
+        return maxDisplayDigits;
+    }
+
     /**
      * Set whether to show the expression above the value when the user is typing it.
      * By default, the expression is not shown.
@@ -139,6 +300,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setExpressionShown(boolean shown) {
+        checkNotFrozen();
         isExpressionShown = shown;
         return this;
     }
@@ -154,6 +316,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setExpressionEditable(boolean editable) {
+        checkNotFrozen();
         isExpressionEditable = editable;
         return this;
     }
@@ -170,6 +333,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setZeroShownWhenNoValue(boolean shown) {
+        checkNotFrozen();
         isZeroShownWhenNoValue = shown;
         return this;
     }
@@ -186,6 +350,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setAnswerBtnShown(boolean shown) {
+        checkNotFrozen();
         isAnswerBtnShown = shown;
         return this;
     }
@@ -200,6 +365,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setSignBtnShown(boolean shown) {
+        checkNotFrozen();
         isSignBtnShown = shown;
         return this;
     }
@@ -208,14 +374,105 @@ public class CalcSettings implements Parcelable {
         return isSignBtnShown;
     }
 
+    /**
+     * Set whether the undo and redo buttons should be shown. These buttons allow the user
+     * to undo and redo any number of actions while the dialog is shown.
+     * By default they are not shown.
+     * @param shown Whether to show them or not.
+     * @return The settings
+     */
+    public CalcSettings setUndoBtnShown(boolean shown) {
+        checkNotFrozen();
+        isUndoBtnShown = shown;
+        return this;
+    }
+
+    public boolean isUndoBtnShown() {
+        return isUndoBtnShown;
+    }
+
+    /**
+     * Set whether the open and close parenthesis buttons should be shown. Parentheses are
+     * evaluated first, and a value entered before a parenthesis is multiplied by it.
+     * The buttons are never shown if the expression isn't shown. By default they are not shown.
+     * @param shown Whether to show them or not.
+     * @return The settings
+     */
+    public CalcSettings setParenthesisBtnShown(boolean shown) {
+        checkNotFrozen();
+        isParenthesisBtnShown = shown;
+        return this;
+    }
+
+    public boolean isParenthesisBtnShown() {
+        return isParenthesisBtnShown;
+    }
+
+    /**
+     * Set whether the percent, square root and power buttons should be shown.
+     * After an addition or a subtraction, percent is relative to the value before the operator,
+     * otherwise the value is divided by 100. Powers are evaluated before products and quotients
+     * when {@link #isOrderOfOperationsApplied} is true. By default they are not shown.
+     * @param shown Whether to show them or not.
+     * @return The settings
+     */
+    public CalcSettings setExtraOperationBtnShown(boolean shown) {
+        checkNotFrozen();
+        isExtraOperationBtnShown = shown;
+        return this;
+    }
+
+    public boolean isExtraOperationBtnShown() {
+        return isExtraOperationBtnShown;
+    }
+
+    /**
+     * Set whether the memory buttons should be shown: MC clears the memory, MR enters
+     * its value as the current value, and M+ and M− add the current value to it or subtract it.
+     * See {@link #setMemoryName(String)} to keep the memory after the dialog is dismissed.
+     * By default they are not shown.
+     * @param shown Whether to show them or not.
+     * @return The settings
+     */
+    public CalcSettings setMemoryBtnShown(boolean shown) {
+        checkNotFrozen();
+        isMemoryBtnShown = shown;
+        return this;
+    }
+
+    public boolean isMemoryBtnShown() {
+        return isMemoryBtnShown;
+    }
+
+    /**
+     * Set whether to show a preview of the result below the current value while it's typed,
+     * that is the value the expression would have if the current value was added to it.
+     * The preview is updated after every button press. By default it's not shown.
+     * @param shown Whether to show it or not.
+     * @return The settings
+     */
+    public CalcSettings setPreviewShown(boolean shown) {
+        checkNotFrozen();
+        isPreviewShown = shown;
+        return this;
+    }
+
+    public boolean isPreviewShown() {
+        return isPreviewShown;
+    }
+
     /**
      * Set whether to evaluate the expression when an operation button is pressed (+, -, * and /).
-     * If not, the display will show zero or no value if {@link #isZeroShownWhenNoValue} is true.
+     * If not, the display will show zero or no value if {@link #isZeroShownWhenNoValue} is true,
+     * and the expression is only evaluated when its value is needed, for example by the equal button.
+     * Errors are still reported when the operation button is pressed, by only combining the terms
+     * of the last group of the expression.
      * By default, the expression is evaluated.
      * @param shouldClear Whether to evaluate it or not.
      * @return The settings
      */
     public CalcSettings setShouldEvaluateOnOperation(boolean shouldClear) {
+        checkNotFrozen();
         shouldEvaluateOnOperation = shouldClear;
         return this;
     }
@@ -232,6 +489,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setInitialValue(@Nullable BigDecimal value) {
+        checkNotFrozen();
         initialValue = value;
         return this;
     }
@@ -249,6 +507,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setMinValue(@Nullable BigDecimal minValue) {
+        checkNotFrozen();
         this.minValue = minValue;
         return this;
     }
@@ -266,6 +525,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setMaxValue(@Nullable BigDecimal maxValue) {
+        checkNotFrozen();
         this.maxValue = maxValue;
         return this;
     }
@@ -283,6 +543,7 @@ public class CalcSettings implements Parcelable {
      * @return The settings
      */
     public CalcSettings setOrderOfOperationsApplied(boolean isApplied) {
+        checkNotFrozen();
         isOrderOfOperationsApplied = isApplied;
         return this;
     }
@@ -291,6 +552,136 @@ public class CalcSettings implements Parcelable {
         return isOrderOfOperationsApplied;
     }
 
+    /**
+     * Set the maximum size in bytes of the state saved by the dialog when it's destroyed.
+     * If this size is exceeded, usually because the expression is very long, the expression
+     * is written to a file in the app's cache directory and only a reference to it is saved.
+     * This prevents the saved state from exceeding the Binder transaction size limit.
+     * Default maximum is 50 kB.
+     * @param size Maximum size in bytes.
+     * @return The settings
+     */
+    public CalcSettings setMaxSavedStateSize(int size) {
+        checkNotFrozen();
+        maxSavedStateSize = size;
+        return this;
+    }
+
+    public int getMaxSavedStateSize() {
+        return maxSavedStateSize;
+    }
+
+    /**
+     * Set the maximum number of digits of the result of an operation. The size of each result
+     * is estimated before the operation is done, and if it's bigger, a "result too large" error
+     * is shown instead. This prevents expressions like repeated multiplications of big numbers
+     * from taking a long time to evaluate and to display.
+     * Default maximum is 1000 digits.
+     * @param digits Maximum number of digits.
+     * @return The settings
+     */
+    public CalcSettings setMaxResultDigits(int digits) {
+        checkNotFrozen();
+        maxResultDigits = digits;
+        return this;
+    }
+
+    public int getMaxResultDigits() {
+        return maxResultDigits;
+    }
+
+    /**
+     * Set the metrics in which the timings of the dialog are recorded. The same metrics
+     * can be used for many dialogs to aggregate their timings. Metrics are kept when the dialog
+     * is recreated after a configuration change, but not if the process was killed.
+     * By default, nothing is timed.
+     * @param metrics The metrics, or {@code null} for none.
+     * @return The settings
+     */
+    public CalcSettings setMetrics(@Nullable CalcMetrics metrics) {
+        checkNotFrozen();
+        this.metrics = metrics;
+        return this;
+    }
+
+    @Nullable
+    public CalcMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set whether evaluated expressions and their result are recorded in a history.
+     * If enabled, a history button is shown to display the history, and clicking on an
+     * entry enters its result as the current value. The history is stored in app storage.
+     * By default, history is disabled.
+     * @param enabled Whether to enable it or not.
+     * @return The settings
+     */
+    public CalcSettings setHistoryEnabled(boolean enabled) {
+        checkNotFrozen();
+        isHistoryEnabled = enabled;
+        return this;
+    }
+
+    public boolean isHistoryEnabled() {
+        return isHistoryEnabled;
+    }
+
+    /**
+     * Set the name of the history used by the dialog, so that different dialogs can have
+     * different histories. Dialogs with the same history name share the same history.
+     * The name is used as a file name, so it must only have ASCII letters, digits, '.', '-'
+     * and '_', and must not start with '.'. Default name is "default".
+     * @param name The history name.
+     * @return The settings
+     */
+    public CalcSettings setHistoryName(@NonNull String name) {
+        checkNotFrozen();
+        historyName = name;
+        return this;
+    }
+
+    @NonNull
+    public String getHistoryName() {
+        return historyName;
+    }
+
+    /**
+     * Set the maximum number of entries kept in the history. Older entries are removed
+     * periodically, so the history can temporarily have more entries.
+     * Default maximum is 1000 entries.
+     * @param size Maximum number of entries.
+     * @return The settings
+     */
+    public CalcSettings setHistoryMaxSize(int size) {
+        checkNotFrozen();
+        historyMaxSize = size;
+        return this;
+    }
+
+    public int getHistoryMaxSize() {
+        return historyMaxSize;
+    }
+
+    /**
+     * Set the name under which the memory is kept in app preferences when the dialog is
+     * dismissed, so that it's restored the next time it's shown. Dialogs with the same
+     * memory name share the same memory. By default, the name is {@code null} and the
+     * memory is cleared when the dialog is dismissed.
+     * @param name The memory name, {@code null} to not keep the memory.
+     * @return The settings
+     */
+    public CalcSettings setMemoryName(@Nullable String name) {
+        checkNotFrozen();
+        memoryName = name;
+        return this;
+    }
+
+    @Nullable
+    public String getMemoryName() {
+        return memoryName;
+    }
+
 
     ////////// PARCELABLE //////////
     private CalcSettings(Parcel in) {
@@ -300,10 +691,17 @@ public class CalcSettings implements Parcelable {
             requestCode = bundle.getInt("requestCode");
             //noinspection ConstantConditions
             numpadLayout = (CalcNumpadLayout) bundle.getSerializable("numpadLayout");
+            displayMode = (CalcDisplayMode) bundle.getSerializable("displayMode");
+            maxDisplayDigits = bundle.getInt("maxDisplayDigits");
             isExpressionShown = bundle.getBoolean("isExpressionShown");
             isZeroShownWhenNoValue = bundle.getBoolean("isZeroShownWhenNoValue");
             isAnswerBtnShown = bundle.getBoolean("isAnswerBtnShown");
             isSignBtnShown = bundle.getBoolean("isSignBtnShown");
+            isUndoBtnShown = bundle.getBoolean("isUndoBtnShown");
+            isParenthesisBtnShown = bundle.getBoolean("isParenthesisBtnShown");
+            isExtraOperationBtnShown = bundle.getBoolean("isExtraOperationBtnShown");
+            isMemoryBtnShown = bundle.getBoolean("isMemoryBtnShown");
+            isPreviewShown = bundle.getBoolean("isPreviewShown");
             shouldEvaluateOnOperation = bundle.getBoolean("shouldEvaluateOnOperation");
 
             if (bundle.containsKey("initialValue")) {
@@ -316,6 +714,17 @@ public class CalcSettings implements Parcelable {
                 maxValue = (BigDecimal) bundle.getSerializable("maxValue");
             }
             isOrderOfOperationsApplied = bundle.getBoolean("isOrderOfOperationsApplied");
+            maxSavedStateSize = bundle.getInt("maxSavedStateSize", maxSavedStateSize);
+            maxResultDigits = bundle.getInt("maxResultDigits", maxResultDigits);
+            isHistoryEnabled = bundle.getBoolean("isHistoryEnabled");
+            historyName = bundle.getString("historyName", historyName);
+            historyMaxSize = bundle.getInt("historyMaxSize", historyMaxSize);
+            memoryName = bundle.getString("memoryName");
+
+            frozen = bundle.getBoolean("frozen");
+            if (frozen) {
+                nbFormat = CalcNumberFormats.share(nbFormat);
+            }
         }
     }
 
@@ -325,12 +734,26 @@ public class CalcSettings implements Parcelable {
 
         bundle.putInt("requestCode", requestCode);
         bundle.putSerializable("numpadLayout", numpadLayout);
+        bundle.putSerializable("displayMode", displayMode);
+        bundle.putInt("maxDisplayDigits", maxDisplayDigits);
         bundle.putBoolean("isExpressionShown", isExpressionShown);
         bundle.putBoolean("isZeroShownWhenNoValue", isZeroShownWhenNoValue);
         bundle.putBoolean("isAnswerBtnShown", isAnswerBtnShown);
         bundle.putBoolean("isSignBtnShown", isSignBtnShown);
+        bundle.putBoolean("isUndoBtnShown", isUndoBtnShown);
+        bundle.putBoolean("isParenthesisBtnShown", isParenthesisBtnShown);
+        bundle.putBoolean("isExtraOperationBtnShown", isExtraOperationBtnShown);
+        bundle.putBoolean("isMemoryBtnShown", isMemoryBtnShown);
+        bundle.putBoolean("isPreviewShown", isPreviewShown);
         bundle.putBoolean("shouldEvaluateOnOperation", shouldEvaluateOnOperation);
         bundle.putBoolean("isOrderOfOperationsApplied", isOrderOfOperationsApplied);
+        bundle.putInt("maxSavedStateSize", maxSavedStateSize);
+        bundle.putInt("maxResultDigits", maxResultDigits);
+        bundle.putBoolean("isHistoryEnabled", isHistoryEnabled);
+        bundle.putString("historyName", historyName);
+        bundle.putInt("historyMaxSize", historyMaxSize);
+        bundle.putString("memoryName", memoryName);
+        bundle.putBoolean("frozen", frozen);
 
         putNumberFormatInBundle(bundle);
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.math.BigDecimal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable state of a calculator, emitted by a {@link CalcStateStream} as the user types.
+ */
+public final class CalcState {
+
+    /**
+     * Errors shown by the calculator instead of the value.
+     */
+    public enum Error {
+        /** Division by zero. */
+        DIVISION_BY_ZERO,
+
+        /** Value is out of the bounds set with the minimum and maximum values. */
+        OUT_OF_BOUNDS,
+
+        /** Value should be positive. */
+        WRONG_SIGN_POSITIVE,
+
+        /** Value should be negative. */
+        WRONG_SIGN_NEGATIVE,
+
+        /** Operation is undefined, like the square root of a negative number. */
+        INVALID_OPERATION,
+
+        /** Result would exceed the maximum number of result digits. */
+        RESULT_TOO_LARGE
+    }
+
+    @Nullable
+    private final BigDecimal value;
+
+    @NonNull
+    private final String expression;
+
+    @Nullable
+    private final Error error;
+
+
+    CalcState(@Nullable BigDecimal value, @NonNull String expression, @Nullable Error error) {
+        this.value = value;
+        this.expression = expression;
+        this.error = error;
+    }
+
+    /**
+     * Get the current value, either being typed or the result of the expression.
+     * @return The value, or {@code null} if there's none, or if it's a group in parentheses.
+     */
+    @Nullable
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    /**
+     * Get the expression as it's shown, with the calculator number format.
+     * The expression is given even if it's not shown.
+     */
+    @NonNull
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Get the error currently shown, or {@code null} if there's none.
+     */
+    @Nullable
+    public Error getError() {
+        return error;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "[value=" + value + ", expression=\"" + expression + "\", error=" + error + "]";
+    }
+
+}
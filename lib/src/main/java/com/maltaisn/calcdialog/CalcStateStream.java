@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.math.BigDecimal;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Stream of the states of a calculator, emitted as the user types. The stream of a calculator
+ * is obtained with {@link CalcView#getStateStream()} or {@link CalcDialog#getStateStream()}.
+ * <p>
+ * States are conflated: a subscriber that is still handling a state when others are emitted
+ * only receives the latest one afterwards. A subscriber receives the current state when
+ * subscribing. Nothing is done when there are no subscribers.
+ * <p>
+ * Subscribing and unsubscribing must be done on the main thread.
+ */
+public final class CalcStateStream {
+
+    private static final CalcState.Error[] ERRORS = CalcState.Error.values();
+
+    private static final SubscriptionImpl[] NO_SUBSCRIPTIONS = new SubscriptionImpl[0];
+
+    @Nullable
+    private static Handler mainHandler;
+
+    @NonNull
+    private SubscriptionImpl[] subscriptions = NO_SUBSCRIPTIONS;
+
+    @Nullable
+    private CalcState lastState;
+
+    /** Called to emit the current state when there's a first subscriber, null if detached. */
+    @Nullable
+    private Runnable producer;
+
+
+    /**
+     * Subscribe to the stream, states are delivered on the main thread.
+     * @param subscriber The subscriber.
+     * @return The subscription, to unsubscribe.
+     */
+    @NonNull
+    public Subscription subscribe(@NonNull Subscriber subscriber) {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        final Handler handler = mainHandler;
+        return subscribe(subscriber, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    /**
+     * Subscribe to the stream.
+     * @param subscriber The subscriber.
+     * @param executor   The executor on which states are delivered. States are never
+     *                   delivered concurrently to the same subscriber.
+     * @return The subscription, to unsubscribe.
+     */
+    @NonNull
+    public Subscription subscribe(@NonNull Subscriber subscriber, @NonNull Executor executor) {
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber, executor);
+
+        SubscriptionImpl[] newSubscriptions = new SubscriptionImpl[subscriptions.length + 1];
+        System.arraycopy(subscriptions, 0, newSubscriptions, 0, subscriptions.length);
+        newSubscriptions[subscriptions.length] = subscription;
+        subscriptions = newSubscriptions;
+
+        if (newSubscriptions.length == 1) {
+            // States weren't emitted without subscribers, the last one might be outdated.
+            lastState = null;
+            if (producer != null) {
+                producer.run();
+            }
+        } else if (lastState != null) {
+            subscription.deliver(lastState);
+        }
+        return subscription;
+    }
+
+    private void unsubscribe(@NonNull SubscriptionImpl subscription) {
+        subscription.active = false;
+
+        int index = -1;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == subscription) {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1) return;
+
+        if (subscriptions.length == 1) {
+            subscriptions = NO_SUBSCRIPTIONS;
+        } else {
+            SubscriptionImpl[] newSubscriptions = new SubscriptionImpl[subscriptions.length - 1];
+            System.arraycopy(subscriptions, 0, newSubscriptions, 0, index);
+            System.arraycopy(subscriptions, index + 1, newSubscriptions, index,
+                    newSubscriptions.length - index);
+            subscriptions = newSubscriptions;
+        }
+    }
+
+    boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    void setProducer(@Nullable Runnable producer) {
+        this.producer = producer;
+    }
+
+    /**
+     * Emit a state if it changed since the last one, on the main thread.
+     * @param error The error code, an index in {@link CalcState.Error}, or -1 for none.
+     */
+    void emit(@Nullable BigDecimal value, @NonNull String expression, int error) {
+        if (subscriptions.length == 0) return;
+
+        CalcState.Error stateError = error == -1 ? null : ERRORS[error];
+        CalcState last = lastState;
+        if (last != null && last.getError() == stateError
+                && (value == null ? last.getValue() == null : value.equals(last.getValue()))
+                && expression.equals(last.getExpression())) {
+            return;
+        }
+
+        CalcState state = new CalcState(value, expression, stateError);
+        lastState = state;
+        for (SubscriptionImpl subscription : subscriptions) {
+            subscription.deliver(state);
+        }
+    }
+
+    public interface Subscriber {
+        /**
+         * Called when the state of the calculator changed.
+         * @param state The latest state.
+         */
+        void onStateChanged(@NonNull CalcState state);
+    }
+
+    public interface Subscription {
+        /**
+         * Stop receiving states. A state being delivered on another thread
+         * might still be received. Must be called on the main thread.
+         */
+        void unsubscribe();
+    }
+
+    private final class SubscriptionImpl implements Subscription, Runnable {
+
+        private final Subscriber subscriber;
+        private final Executor executor;
+
+        /** The state waiting to be delivered, null if there's none. */
+        private final AtomicReference<CalcState> pending = new AtomicReference<>();
+
+        /** Whether a delivery is scheduled or running, there's only one at a time. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        volatile boolean active = true;
+
+        SubscriptionImpl(@NonNull Subscriber subscriber, @NonNull Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        void deliver(@NonNull CalcState state) {
+            // If a delivery is already scheduled or running, only replace the pending state.
+            pending.set(state);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                CalcState state = pending.getAndSet(null);
+                if (state != null && active) {
+                    subscriber.onStateChanged(state);
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // A state might have been emitted while the subscriber was handling the last one.
+            if (pending.get() != null && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            CalcStateStream.this.unsubscribe(this);
+        }
+    }
+
+}
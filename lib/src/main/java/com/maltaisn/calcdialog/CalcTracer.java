@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.os.Build;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+/**
+ * Receives named sections around the work done by the calculator, so that it can be seen
+ * in traces: dialog creation, presenter attachment, input handling, evaluation and
+ * formatting of the expression, and state save and restore. Sections are always nested,
+ * and are ended on the thread on which they were begun.
+ * <p>
+ * The tracer is set for all dialogs with {@link #setTracer(CalcTracer)}, by default
+ * sections are added to system traces with {@link #SYSTEM}. Section names are constant,
+ * so beginning a section with {@link #NONE} costs nothing.
+ */
+public abstract class CalcTracer {
+
+    /**
+     * Tracer doing nothing.
+     */
+    public static final CalcTracer NONE = new CalcTracer() {
+        @Override
+        public void beginSection(@NonNull String name) {
+            // Do nothing
+        }
+
+        @Override
+        public void endSection() {
+            // Do nothing
+        }
+    };
+
+    /**
+     * Tracer adding sections to system traces with {@link Trace}.
+     * Same as {@link #NONE} below API 18, where it's not available.
+     */
+    public static final CalcTracer SYSTEM = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+            ? new SystemTracer() : NONE;
+
+    @NonNull
+    private static CalcTracer tracer = SYSTEM;
+
+
+    /**
+     * Set the tracer used by all calculator dialogs.
+     * It should be set before a dialog is shown, from the main thread.
+     * @param tracer The tracer, {@link #NONE} to disable tracing.
+     */
+    public static void setTracer(@NonNull CalcTracer tracer) {
+        CalcTracer.tracer = tracer;
+    }
+
+    @NonNull
+    public static CalcTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Begin a section, must be followed by {@link #endSection()} on the same thread.
+     * @param name The section name.
+     */
+    public abstract void beginSection(@NonNull String name);
+
+    /**
+     * End the last section begun on this thread.
+     */
+    public abstract void endSection();
+
+    static void begin(@NonNull String name) {
+        tracer.beginSection(name);
+    }
+
+    static void end() {
+        tracer.endSection();
+    }
+
+    @RequiresApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static final class SystemTracer extends CalcTracer {
+        @Override
+        public void beginSection(@NonNull String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+    }
+
+}
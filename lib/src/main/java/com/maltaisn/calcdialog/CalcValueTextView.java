@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.widget.AppCompatTextView;
+
+/**
+ * TextView used to display the calculator value, shrinking the text size so that it fits
+ * the available width. The largest fitting text size is found by a binary search over the
+ * allowed sizes. Glyph advances of the characters used by the number format are measured
+ * once and cached, so the text width for a new value is only a sum over its characters.
+ * Attributes:
+ * - calcValueMinTextSize: Minimum text size, the maximum is the view's text size.
+ * Default value is 12sp.
+ * - calcValueTextSizeStep: Granularity of the text size. Default value is 1sp.
+ */
+class CalcValueTextView extends AppCompatTextView {
+
+    private static final int CACHE_INITIAL_CAPACITY = 8;
+
+    private final float maxTextSize;
+    private final float minTextSize;
+    private final float textSizeStep;
+
+    /** Paint used for measuring glyphs, always at the maximum text size. */
+    private TextPaint measurePaint;
+
+    /** The zero digit of the number format, digits are assumed to be contiguous after it. */
+    private char zeroDigit = '0';
+
+    /** Cached advances of the 10 digits at the maximum text size, NaN if not measured yet. */
+    private final float[] digitAdvances = new float[10];
+
+    /** Cached advances of other characters at the maximum text size. */
+    private char[] cachedChars = new char[CACHE_INITIAL_CAPACITY];
+    private float[] cachedAdvances = new float[CACHE_INITIAL_CAPACITY];
+    private int cachedCount;
+
+    private final char[] charBuffer = new char[1];
+
+    public CalcValueTextView(Context context) {
+        this(context, null);
+    }
+
+    public CalcValueTextView(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, android.R.attr.textViewStyle);
+    }
+
+    public CalcValueTextView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        TypedArray ta = getContext().obtainStyledAttributes(attrs, R.styleable.CalcValueTextView);
+        float density = getResources().getDisplayMetrics().scaledDensity;
+        minTextSize = ta.getDimension(R.styleable.CalcValueTextView_calcValueMinTextSize, 12 * density);
+        textSizeStep = Math.max(1f, ta.getDimension(R.styleable.CalcValueTextView_calcValueTextSizeStep, density));
+        ta.recycle();
+
+        maxTextSize = Math.max(minTextSize, getTextSize());
+        clearMeasureCache();
+    }
+
+    /**
+     * Set the number format used for the displayed values, so that
+     * the advances of its digits and separators can be cached in advance.
+     * @param format The number format.
+     */
+    void setNumberFormat(@NonNull NumberFormat format) {
+        clearMeasureCache();
+
+        if (format instanceof DecimalFormat) {
+            DecimalFormatSymbols symbols = ((DecimalFormat) format).getDecimalFormatSymbols();
+            zeroDigit = symbols.getZeroDigit();
+            getCharAdvance(symbols.getGroupingSeparator());
+            getCharAdvance(symbols.getDecimalSeparator());
+            getCharAdvance(symbols.getMinusSign());
+        } else {
+            zeroDigit = '0';
+        }
+
+        // Measure all digits at once.
+        char[] digits = new char[10];
+        for (int i = 0; i < 10; i++) {
+            digits[i] = (char) (zeroDigit + i);
+        }
+        getMeasurePaint().getTextWidths(digits, 0, 10, digitAdvances);
+
+        fitText();
+    }
+
+    @Override
+    public void setTypeface(@Nullable Typeface tf) {
+        super.setTypeface(tf);
+        measurePaint = null;
+        clearMeasureCache();
+    }
+
+    @Override
+    protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
+        super.onTextChanged(text, start, lengthBefore, lengthAfter);
+        fitText();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            fitText();
+        }
+    }
+
+    /**
+     * Set the text size to the largest allowed size for which the text fits the view width.
+     */
+    private void fitText() {
+        if (cachedAdvances == null) {
+            // Called from the super constructor, cache isn't initialized yet.
+            return;
+        }
+
+        int available = getWidth() - getCompoundPaddingLeft() - getCompoundPaddingRight();
+        CharSequence text = getText();
+        if (available <= 0 || text == null) {
+            // Not laid out yet, text will be fitted when size is known.
+            return;
+        }
+
+        float width = 0;
+        for (int i = 0; i < text.length(); i++) {
+            width += getCharAdvance(text.charAt(i));
+        }
+
+        // Text width is proportional to text size, find the largest step that fits.
+        int lo = 0;
+        int hi = (int) ((maxTextSize - minTextSize) / textSizeStep);
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            float size = minTextSize + mid * textSizeStep;
+            if (width * size / maxTextSize <= available) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        float size = Math.min(maxTextSize, minTextSize + lo * textSizeStep);
+        if (size != getTextSize()) {
+            setTextSize(TypedValue.COMPLEX_UNIT_PX, size);
+        }
+    }
+
+    private float getCharAdvance(char c) {
+        int digit = c - zeroDigit;
+        if (digit >= 0 && digit < 10) {
+            if (Float.isNaN(digitAdvances[digit])) {
+                digitAdvances[digit] = measureChar(c);
+            }
+            return digitAdvances[digit];
+        }
+
+        for (int i = 0; i < cachedCount; i++) {
+            if (cachedChars[i] == c) {
+                return cachedAdvances[i];
+            }
+        }
+
+        // Character wasn't measured yet, measure it and add it to the cache.
+        float advance = measureChar(c);
+        if (cachedCount == cachedChars.length) {
+            cachedChars = Arrays.copyOf(cachedChars, cachedCount * 2);
+            cachedAdvances = Arrays.copyOf(cachedAdvances, cachedCount * 2);
+        }
+        cachedChars[cachedCount] = c;
+        cachedAdvances[cachedCount] = advance;
+        cachedCount++;
+        return advance;
+    }
+
+    private float measureChar(char c) {
+        charBuffer[0] = c;
+        return getMeasurePaint().measureText(charBuffer, 0, 1);
+    }
+
+    private TextPaint getMeasurePaint() {
+        if (measurePaint == null) {
+            measurePaint = new TextPaint(getPaint());
+            measurePaint.setTextSize(maxTextSize);
+        }
+        return measurePaint;
+    }
+
+    private void clearMeasureCache() {
+        if (cachedAdvances == null) {
+            // Called from the super constructor, cache isn't initialized yet.
+            return;
+        }
+        Arrays.fill(digitAdvances, Float.NaN);
+        cachedCount = 0;
+    }
+
+}
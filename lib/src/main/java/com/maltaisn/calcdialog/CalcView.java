@@ -0,0 +1,810 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.util.AttributeSet;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.Button;
+import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
+import android.widget.PopupMenu;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Calculator with the same display and keypad as {@link CalcDialog}, to be used without
+ * a dialog, for example inline in a layout or in a bottom sheet. The view is bound to settings
+ * and a value with {@link #bind(CalcSettings, BigDecimal)} before being shown, and unbound
+ * with {@link #unbind()} when done. The inflated views and the presenter are kept between binds,
+ * so the same view can be bound again for another value, for example as the item being edited
+ * in a RecyclerView, without inflating anything.
+ * <p>
+ * The theme is the same as the dialog, from the {@code calcDialogStyle} attribute.
+ */
+public class CalcView extends FrameLayout {
+
+    // Indexes of text elements in R.array.calc_dialog_btn_texts
+    private static final int TEXT_INDEX_ADD = 10;
+    private static final int TEXT_INDEX_SUB = 11;
+    private static final int TEXT_INDEX_MUL = 12;
+    private static final int TEXT_INDEX_DIV = 13;
+    private static final int TEXT_INDEX_SIGN = 14;
+    private static final int TEXT_INDEX_DEC_SEP = 15;
+    private static final int TEXT_INDEX_EQUAL = 16;
+
+    // Items of the value actions menu
+    private static final int MENU_ITEM_COPY = 1;
+    private static final int MENU_ITEM_PASTE = 2;
+
+    private final CalcDialogTheme theme;
+
+    /** The settings the view was last bound to, kept after unbinding. */
+    private CalcSettings settings;
+
+    /** The presenter attached to the view, null if not bound. */
+    @Nullable
+    private CalcPresenter presenter;
+
+    /** The presenter created by {@link #bind(CalcSettings, BigDecimal)}, reused for the next binds. */
+    @Nullable
+    private CalcPresenter boundPresenter;
+
+    @Nullable
+    private Listener listener;
+
+    @NonNull
+    private CalcStateStream stateStream = new CalcStateStream();
+
+    /** The numpad layout with which digit buttons are set up, null if not set up yet. */
+    @Nullable
+    private CalcNumpadLayout numpadLayout;
+
+    private final View.OnClickListener[] digitBtnListeners = new View.OnClickListener[10];
+
+    private HorizontalScrollView expressionHsv;
+    private TextView expressionTxv;
+    private BackgroundColorSpan expressionSelectionSpan;
+    private CalcValueTextView valueTxv;
+    private TextView previewTxv;
+    private TextView decimalSepBtn;
+    private TextView equalBtn;
+    private TextView answerBtn;
+    private TextView signBtn;
+    private View openParenthesisBtn;
+    private View closeParenthesisBtn;
+    private View percentBtn;
+    private View squareRootBtn;
+    private View powerBtn;
+    private View undoBtn;
+    private View redoBtn;
+    private View memoryLayout;
+    private View memoryClearBtn;
+    private View memoryRecallBtn;
+    private Button historyBtn;
+    private RecyclerView historyRcv;
+    private TextView historyEmptyTxv;
+    private CalcHistoryAdapter historyAdapter;
+
+    private final Runnable expressionScrollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Scroll to the end, only if it's not visible.
+            int maxScroll = expressionTxv.getRight() + expressionHsv.getPaddingRight() - expressionHsv.getWidth();
+            if (expressionHsv.getScrollX() < maxScroll) {
+                expressionHsv.scrollTo(maxScroll, 0);
+            }
+        }
+    };
+
+
+    public CalcView(@NonNull Context context) {
+        this(context, null);
+    }
+
+    public CalcView(@NonNull Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+
+        // Inflate the layout with the calculator dialog's theme.
+        theme = CalcDialogTheme.get(context);
+        LayoutInflater.from(new ContextThemeWrapper(context, theme.style))
+                .inflate(R.layout.dialog_calc, this, true);
+
+        final CharSequence[] btnTexts = theme.btnTexts;
+
+        // Header
+        final View headerBgView = findViewById(R.id.calc_view_header_background);
+        final View headerElevationBgView = findViewById(R.id.calc_view_header_elevation);
+        headerBgView.setBackgroundColor(theme.headerColor);
+        headerElevationBgView.setBackgroundColor(theme.headerElevationColor);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            headerElevationBgView.setVisibility(View.GONE);
+        }
+
+        // Value and expression views
+        valueTxv = findViewById(R.id.calc_txv_value);
+        previewTxv = findViewById(R.id.calc_txv_preview);
+        valueTxv.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (presenter == null) return false;
+                long start = beginInput("CalcPresenter.onValueLongClicked");
+                presenter.onValueLongClicked();
+                endInput(start);
+                return true;
+            }
+        });
+
+        expressionHsv = findViewById(R.id.calc_hsv_expression);
+        expressionTxv = findViewById(R.id.calc_txv_expression);
+        expressionTxv.setText("", TextView.BufferType.EDITABLE);
+        expressionSelectionSpan = new BackgroundColorSpan(theme.operationBtnColor);
+        expressionTxv.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                // Scrolling the expression cancels the touch, so an up event is a click.
+                if (event.getAction() == MotionEvent.ACTION_UP && presenter != null) {
+                    long start = beginInput("CalcPresenter.onExpressionClicked");
+                    presenter.onExpressionClicked(expressionTxv.getOffsetForPosition(event.getX(), event.getY()));
+                    endInput(start);
+                    v.performClick();
+                }
+                return true;
+            }
+        });
+
+        // Erase button
+        CalcEraseButton eraseBtn = findViewById(R.id.calc_btn_erase);
+        eraseBtn.setOnEraseListener(new CalcEraseButton.EraseListener() {
+            @Override
+            public void onErase() {
+                if (presenter != null) {
+                    long start = beginInput("CalcPresenter.onErasedOnce");
+                    presenter.onErasedOnce();
+                    endInput(start);
+                }
+            }
+
+            @Override
+            public void onEraseAll() {
+                if (presenter != null) {
+                    long start = beginInput("CalcPresenter.onErasedAll");
+                    presenter.onErasedAll();
+                    endInput(start);
+                }
+            }
+        });
+
+        // Parenthesis buttons
+        openParenthesisBtn = findViewById(R.id.calc_btn_open_parenthesis);
+        openParenthesisBtn.setOnClickListener(timed("CalcPresenter.onOpenParenthesisBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOpenParenthesisBtnClicked();
+            }
+        }));
+        closeParenthesisBtn = findViewById(R.id.calc_btn_close_parenthesis);
+        closeParenthesisBtn.setOnClickListener(timed("CalcPresenter.onCloseParenthesisBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onCloseParenthesisBtnClicked();
+            }
+        }));
+
+        // Percent, square root and power buttons
+        percentBtn = findViewById(R.id.calc_btn_percent);
+        percentBtn.setOnClickListener(timed("CalcPresenter.onPercentBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onPercentBtnClicked();
+            }
+        }));
+        squareRootBtn = findViewById(R.id.calc_btn_sqrt);
+        squareRootBtn.setOnClickListener(timed("CalcPresenter.onSquareRootBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onSquareRootBtnClicked();
+            }
+        }));
+        powerBtn = findViewById(R.id.calc_btn_pow);
+        powerBtn.setOnClickListener(timed("CalcPresenter.onOperatorBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOperatorBtnClicked(Expression.Operator.POWER);
+            }
+        }));
+
+        // Undo and redo buttons
+        undoBtn = findViewById(R.id.calc_btn_undo);
+        undoBtn.setOnClickListener(timed("CalcPresenter.onUndoBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onUndoBtnClicked();
+            }
+        }));
+        redoBtn = findViewById(R.id.calc_btn_redo);
+        redoBtn.setOnClickListener(timed("CalcPresenter.onRedoBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onRedoBtnClicked();
+            }
+        }));
+
+        // Memory buttons
+        memoryLayout = findViewById(R.id.calc_layout_memory);
+        memoryClearBtn = findViewById(R.id.calc_btn_memory_clear);
+        memoryClearBtn.setOnClickListener(timed("CalcPresenter.onMemoryClearBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onMemoryClearBtnClicked();
+            }
+        }));
+        memoryRecallBtn = findViewById(R.id.calc_btn_memory_recall);
+        memoryRecallBtn.setOnClickListener(timed("CalcPresenter.onMemoryRecallBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onMemoryRecallBtnClicked();
+            }
+        }));
+        findViewById(R.id.calc_btn_memory_add).setOnClickListener(timed("CalcPresenter.onMemoryAddBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onMemoryAddBtnClicked();
+            }
+        }));
+        findViewById(R.id.calc_btn_memory_sub).setOnClickListener(timed("CalcPresenter.onMemorySubtractBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onMemorySubtractBtnClicked();
+            }
+        }));
+
+        // Digit buttons, set up when bound since their positions depend on the numpad layout.
+        for (int i = 0; i < 10; i++) {
+            final int digit = i;
+            digitBtnListeners[i] = timed("CalcPresenter.onDigitBtnClicked", new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    presenter.onDigitBtnClicked(digit);
+                }
+            });
+        }
+
+        final View numberBtnBgView = findViewById(R.id.calc_view_number_bg);
+        numberBtnBgView.setBackgroundColor(theme.numberBtnColor);
+
+        // Operator buttons
+        final TextView addBtn = findViewById(R.id.calc_btn_add);
+        final TextView subBtn = findViewById(R.id.calc_btn_sub);
+        final TextView mulBtn = findViewById(R.id.calc_btn_mul);
+        final TextView divBtn = findViewById(R.id.calc_btn_div);
+
+        addBtn.setText(btnTexts[TEXT_INDEX_ADD]);
+        subBtn.setText(btnTexts[TEXT_INDEX_SUB]);
+        mulBtn.setText(btnTexts[TEXT_INDEX_MUL]);
+        divBtn.setText(btnTexts[TEXT_INDEX_DIV]);
+
+        addBtn.setOnClickListener(timed("CalcPresenter.onOperatorBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOperatorBtnClicked(Expression.Operator.ADD);
+            }
+        }));
+        subBtn.setOnClickListener(timed("CalcPresenter.onOperatorBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOperatorBtnClicked(Expression.Operator.SUBTRACT);
+            }
+        }));
+        mulBtn.setOnClickListener(timed("CalcPresenter.onOperatorBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOperatorBtnClicked(Expression.Operator.MULTIPLY);
+            }
+        }));
+        divBtn.setOnClickListener(timed("CalcPresenter.onOperatorBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOperatorBtnClicked(Expression.Operator.DIVIDE);
+            }
+        }));
+
+        final View opBtnBgView = findViewById(R.id.calc_view_op_bg);
+        opBtnBgView.setBackgroundColor(theme.operationBtnColor);
+
+        // Sign button: +/-
+        signBtn = findViewById(R.id.calc_btn_sign);
+        signBtn.setText(btnTexts[TEXT_INDEX_SIGN]);
+        signBtn.setOnClickListener(timed("CalcPresenter.onSignBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onSignBtnClicked();
+            }
+        }));
+
+        // Decimal separator button
+        decimalSepBtn = findViewById(R.id.calc_btn_decimal);
+        decimalSepBtn.setText(btnTexts[TEXT_INDEX_DEC_SEP]);
+        decimalSepBtn.setOnClickListener(timed("CalcPresenter.onDecimalSepBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onDecimalSepBtnClicked();
+            }
+        }));
+
+        // Equal button
+        equalBtn = findViewById(R.id.calc_btn_equal);
+        equalBtn.setText(btnTexts[TEXT_INDEX_EQUAL]);
+        equalBtn.setOnClickListener(timed("CalcPresenter.onEqualBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onEqualBtnClicked();
+            }
+        }));
+
+        // Answer button
+        answerBtn = findViewById(R.id.calc_btn_answer);
+        answerBtn.setOnClickListener(timed("CalcPresenter.onAnswerBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onAnswerBtnClicked();
+            }
+        }));
+
+        // History panel
+        historyRcv = findViewById(R.id.calc_rcv_history);
+        historyEmptyTxv = findViewById(R.id.calc_txv_history_empty);
+        historyAdapter = new CalcHistoryAdapter(new CalcHistoryAdapter.Listener() {
+            @Override
+            public void onEntryClicked(@NonNull CalcHistory.Entry entry) {
+                if (presenter != null) {
+                    long start = beginInput("CalcPresenter.onHistoryEntryClicked");
+                    presenter.onHistoryEntryClicked(entry.result);
+                    endInput(start);
+                }
+            }
+
+            @Override
+            public void onHistoryLoaded(boolean empty) {
+                historyEmptyTxv.setVisibility(empty ? View.VISIBLE : View.GONE);
+            }
+        });
+        historyRcv.setAdapter(historyAdapter);
+
+        // Divider
+        final View footerDividerView = findViewById(R.id.calc_view_footer_divider);
+        footerDividerView.setBackgroundColor(theme.separatorColor);
+
+        // Dialog buttons
+        Button clearBtn = findViewById(R.id.calc_btn_clear);
+        clearBtn.setOnClickListener(timed("CalcPresenter.onClearBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onClearBtnClicked();
+            }
+        }));
+
+        historyBtn = findViewById(R.id.calc_btn_history);
+        historyBtn.setOnClickListener(timed("CalcPresenter.onHistoryBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onHistoryBtnClicked();
+            }
+        }));
+
+        Button cancelBtn = findViewById(R.id.calc_btn_cancel);
+        cancelBtn.setOnClickListener(timed("CalcPresenter.onCancelBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onCancelBtnClicked();
+            }
+        }));
+
+        Button okBtn = findViewById(R.id.calc_btn_ok);
+        okBtn.setOnClickListener(timed("CalcPresenter.onOkBtnClicked", new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                presenter.onOkBtnClicked();
+            }
+        }));
+    }
+
+    /**
+     * Bind the view to settings and a value. If the view was already bound, it's unbound first.
+     * Nothing is inflated, the views and the presenter are reused.
+     * @param settings The settings, which must not be changed while the view is bound.
+     *                 The initial value setting isn't used.
+     * @param value    The initial value, or null for none.
+     */
+    public void bind(@NonNull CalcSettings settings, @Nullable BigDecimal value) {
+        unbind();
+        if (boundPresenter == null) {
+            boundPresenter = new CalcPresenter();
+        }
+        CalcTracer.begin("CalcView.bind");
+        attach(boundPresenter, settings, null, value);
+        CalcTracer.end();
+    }
+
+    /**
+     * Unbind the view, clearing the value entered and the expression.
+     * Does nothing if the view isn't bound.
+     */
+    public void unbind() {
+        if (presenter != null) {
+            presenter.onDismissed();
+            detach();
+        }
+    }
+
+    /**
+     * Set the listener notified when a value is entered.
+     * @param listener The listener, or null for none.
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the stream in which the state of the calculator is emitted as the user types.
+     * The stream is kept when the view is unbound and bound again.
+     */
+    @NonNull
+    public CalcStateStream getStateStream() {
+        return stateStream;
+    }
+
+    /**
+     * Set the stream in which the state is emitted, must be set before attaching.
+     */
+    void setStateStream(@NonNull CalcStateStream stream) {
+        stateStream = stream;
+    }
+
+    /**
+     * Attach a presenter to the view.
+     * @param presenter The presenter.
+     * @param settings  The settings.
+     * @param state     The saved state, used only if the presenter has no state yet.
+     * @param value     The initial value if the presenter has no state, or null for none.
+     */
+    void attach(@NonNull CalcPresenter presenter, @NonNull CalcSettings settings,
+                @Nullable Bundle state, @Nullable BigDecimal value) {
+        this.settings = settings;
+        this.presenter = presenter;
+        setNumpadLayout(settings.numpadLayout);
+
+        CalcTracer.begin("CalcPresenter.attach");
+        long start = CalcMetrics.start(settings.metrics);
+        presenter.attach(this, state, value);
+        CalcMetrics.end(settings.metrics, CalcMetrics.Event.ATTACH, start);
+        CalcTracer.end();
+    }
+
+    /**
+     * Detach the presenter from the view, its state is kept.
+     */
+    void detach() {
+        if (presenter != null) {
+            presenter.detach();
+            presenter = null;
+        }
+    }
+
+    /**
+     * Set the digits of the digit buttons, only if the numpad layout changed.
+     */
+    private void setNumpadLayout(@NonNull CalcNumpadLayout layout) {
+        if (layout == numpadLayout) return;
+        numpadLayout = layout;
+        for (int i = 0; i < 10; i++) {
+            TextView digitBtn = findViewById(layout.buttonIds[i]);
+            digitBtn.setText(theme.btnTexts[i]);
+            digitBtn.setOnClickListener(digitBtnListeners[i]);
+        }
+    }
+
+    /**
+     * Wrap a click listener to time and trace the handling of the click.
+     * Clicks are ignored if the view isn't bound.
+     * @param section The trace section name.
+     */
+    @NonNull
+    private View.OnClickListener timed(@NonNull final String section,
+                                       @NonNull final View.OnClickListener listener) {
+        return new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (presenter == null) return;
+                long start = beginInput(section);
+                listener.onClick(v);
+                endInput(start);
+            }
+        };
+    }
+
+    /**
+     * Begin the handling of an input, to be ended with {@link #endInput(long)}.
+     * @param section The trace section name.
+     * @return The start time for the metrics.
+     */
+    private long beginInput(@NonNull String section) {
+        CalcTracer.begin(section);
+        return CalcMetrics.start(settings.metrics);
+    }
+
+    private void endInput(long start) {
+        if (presenter != null) {
+            presenter.publishState();
+        }
+        CalcMetrics.end(settings.metrics, CalcMetrics.Event.INPUT, start);
+        CalcTracer.end();
+    }
+
+    CalcSettings getSettings() {
+        return settings;
+    }
+
+    @Nullable
+    CalcHistory getHistory() {
+        if (settings.isHistoryEnabled) {
+            return CalcHistory.getInstance(getContext(), settings.historyName);
+        }
+        return null;
+    }
+
+    @Nullable
+    SharedPreferences getMemoryPreferences() {
+        if (settings.memoryName != null) {
+            return getContext().getSharedPreferences(CalcMemory.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        }
+        return null;
+    }
+
+    void exit() {
+        if (listener != null) {
+            listener.onExit();
+        }
+    }
+
+    void sendValueResult(@Nullable BigDecimal value) {
+        if (listener != null) {
+            listener.onValueEntered(settings.requestCode, value);
+        }
+    }
+
+    void setExpressionVisible(boolean visible) {
+        expressionHsv.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setAnswerBtnVisible(boolean visible) {
+        answerBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+        equalBtn.setVisibility(visible ? View.INVISIBLE : View.VISIBLE);
+    }
+
+    void setSignBtnVisible(boolean visible) {
+        signBtn.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+    }
+
+    void setParenthesisBtnsVisible(boolean visible) {
+        openParenthesisBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+        closeParenthesisBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setExtraOperationBtnsVisible(boolean visible) {
+        percentBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+        squareRootBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+        powerBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setUndoBtnsVisible(boolean visible) {
+        undoBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+        redoBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setUndoBtnEnabled(boolean enabled) {
+        undoBtn.setEnabled(enabled);
+    }
+
+    void setRedoBtnEnabled(boolean enabled) {
+        redoBtn.setEnabled(enabled);
+    }
+
+    void setMemoryBtnsVisible(boolean visible) {
+        memoryLayout.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setMemoryRecallBtnsEnabled(boolean enabled) {
+        memoryClearBtn.setEnabled(enabled);
+        memoryRecallBtn.setEnabled(enabled);
+    }
+
+    void setHistoryBtnVisible(boolean visible) {
+        historyBtn.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    void setHistoryVisible(boolean visible, @Nullable BigDecimal filter) {
+        historyEmptyTxv.setVisibility(View.GONE);
+        if (visible) {
+            historyEmptyTxv.setText(filter == null ? R.string.calc_history_empty
+                    : R.string.calc_history_no_match);
+            historyRcv.setVisibility(View.VISIBLE);
+            //noinspection ConstantConditions
+            historyAdapter.load(getHistory(), settings.getSharedNumberFormat(), filter);
+        } else {
+            historyRcv.setVisibility(View.GONE);
+        }
+    }
+
+    void setDecimalSepBtnEnabled(boolean enabled) {
+        decimalSepBtn.setEnabled(enabled);
+    }
+
+    /**
+     * Update the expression text by replacing the text after a position, editing it
+     * in place so that only the changed part is laid out again.
+     * @param start Position from which text is replaced.
+     * @param text  The new text after that position.
+     */
+    void updateExpression(int start, @NonNull String text) {
+        Editable editable = expressionTxv.getEditableText();
+        editable.replace(start, editable.length(), text);
+
+        expressionHsv.removeCallbacks(expressionScrollRunnable);
+        expressionHsv.post(expressionScrollRunnable);
+    }
+
+    /**
+     * Highlight a part of the expression text.
+     * @param start Start position, or -1 to remove the highlight.
+     * @param end   End position.
+     */
+    void setExpressionSelection(int start, int end) {
+        Editable editable = expressionTxv.getEditableText();
+        editable.removeSpan(expressionSelectionSpan);
+        if (start != -1) {
+            editable.setSpan(expressionSelectionSpan, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    void setValueNumberFormat(@NonNull NumberFormat format) {
+        valueTxv.setNumberFormat(format);
+    }
+
+    void updateCurrentValue(@Nullable String text) {
+        valueTxv.setText(text);
+    }
+
+    void updatePreview(@Nullable String text) {
+        previewTxv.setText(text);
+        previewTxv.setVisibility(text == null ? View.GONE : View.VISIBLE);
+    }
+
+    void showErrorText(int error) {
+        if (error < theme.errorMessages.length) {
+            valueTxv.setText(theme.errorMessages[error]);
+        } else {
+            // Custom error array doesn't have the newer errors, use the default message.
+            valueTxv.setText(getResources().getStringArray(R.array.calc_dialog_errors)[error]);
+        }
+    }
+
+    /**
+     * Show a menu with actions on the value, anchored to it.
+     * @param copyEnabled Whether the value can be copied.
+     */
+    void showValueActions(boolean copyEnabled) {
+        PopupMenu popup = new PopupMenu(getContext(), valueTxv);
+        Menu menu = popup.getMenu();
+        menu.add(Menu.NONE, MENU_ITEM_COPY, Menu.NONE, android.R.string.copy).setEnabled(copyEnabled);
+        menu.add(Menu.NONE, MENU_ITEM_PASTE, Menu.NONE, android.R.string.paste)
+                .setEnabled(getClipboardText() != null);
+        popup.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                if (presenter == null) return false;
+                if (item.getItemId() == MENU_ITEM_COPY) {
+                    long start = beginInput("CalcPresenter.onValueCopyClicked");
+                    presenter.onValueCopyClicked();
+                    endInput(start);
+                } else {
+                    CharSequence text = getClipboardText();
+                    if (text != null) {
+                        long start = beginInput("CalcPresenter.onValuePasted");
+                        presenter.onValuePasted(text);
+                        endInput(start);
+                    }
+                }
+                return true;
+            }
+        });
+        popup.show();
+    }
+
+    /**
+     * Get the text in the clipboard, or null if there's none.
+     */
+    @Nullable
+    private CharSequence getClipboardText() {
+        ClipboardManager clipboard = (ClipboardManager) getContext()
+                .getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard == null || !clipboard.hasPrimaryClip()) {
+            return null;
+        }
+        ClipData clip = clipboard.getPrimaryClip();
+        if (clip == null || clip.getItemCount() == 0) {
+            return null;
+        }
+        CharSequence text = clip.getItemAt(0).coerceToText(getContext());
+        return text == null || text.length() == 0 ? null : text;
+    }
+
+    void showPasteFailedMessage() {
+        Toast.makeText(getContext(), R.string.calc_paste_failed, Toast.LENGTH_SHORT).show();
+    }
+
+    void copyValueToClipboard(@NonNull String text) {
+        ClipboardManager clipboard = (ClipboardManager) getContext()
+                .getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard != null) {
+            clipboard.setPrimaryClip(ClipData.newPlainText(null, text));
+            Toast.makeText(getContext(), R.string.calc_value_copied, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    void showAnswerText() {
+        valueTxv.setText(R.string.calc_answer);
+    }
+
+    public interface Listener {
+        /**
+         * Called when the OK button is clicked with a valid value.
+         * The view should only be unbound after {@link #onExit()} is called.
+         * @param requestCode The request code from {@link CalcSettings#getRequestCode()}.
+         * @param value       The value entered. May be null if no value was entered, in this case,
+         *                    it should be interpreted as zero or absent value.
+         */
+        void onValueEntered(int requestCode, @Nullable BigDecimal value);
+
+        /**
+         * Called when the calculator is done, after a value was entered or when the
+         * cancel button is clicked. The view can be hidden or unbound.
+         */
+        void onExit();
+    }
+
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * An expression compiled with {@link Expression#compile(boolean, int, RoundingMode)},
+ * to be evaluated with many values of its variables.
+ * <p>
+ * The expression is compiled to an immutable plan: terms which don't depend on variables are
+ * combined when compiling, and only the operations involving variables are done when evaluating,
+ * in the same order and with the same scale and rounding as when evaluating the expression.
+ * A compiled expression can be used from many threads at once. Batches of more than
+ * a few thousand values are split between all processors.
+ */
+public final class CompiledExpression {
+
+    /** Minimum number of values for a batch to be split between processors. */
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    /** Number of values taken at once by each processor. */
+    private static final int CHUNK_SIZE = 512;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            Math.max(1, PARALLELISM - 1), Math.max(1, PARALLELISM - 1),
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "CompiledExpression-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private final int maxDigits;
+
+    /** Names of the variables, in the order of their values. */
+    private final String[] variableNames;
+
+    /** If the expression has a single number, the operand for it, otherwise null. */
+    @Nullable
+    private final Operand single;
+
+    /** Sum of the groups without variables, or an {@link ExpressionTree.ErrorValue}. */
+    private final BigDecimal constantSum;
+
+    /** Index of the first group without variables that failed, or -1 if none failed. */
+    private final int constantErrorGroup;
+
+    /** Groups with variables, in order. */
+    private final Group[] groups;
+
+
+    /**
+     * @param terms     The terms of the numbers and variables of the expression, in order.
+     * @param operators The operators between them.
+     */
+    CompiledExpression(@NonNull Expression.Term[] terms, @NonNull List<Operator> operators,
+                       boolean priority, int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.maxDigits = maxDigits;
+
+        List<String> names = new ArrayList<>();
+        Operand[] operands = new Operand[terms.length];
+        for (int i = 0; i < operands.length; i++) {
+            Expression.Term term = terms[i];
+            if (term.variable != null) {
+                int index = names.indexOf(term.variable);
+                if (index == -1) {
+                    index = names.size();
+                    names.add(term.variable);
+                }
+                operands[i] = new Operand(null, index);
+            } else {
+                operands[i] = new Operand(term.number, -1);
+            }
+        }
+        variableNames = names.toArray(new String[0]);
+
+        if (operands.length == 1) {
+            single = operands[0];
+            constantSum = BigDecimal.ZERO;
+            constantErrorGroup = -1;
+            groups = new Group[0];
+            return;
+        }
+        single = null;
+
+        // Split the numbers in groups added together, and each group in chains of powers.
+        // Without priority, the expression is a single group with single number chains.
+        List<Group> variableGroups = new ArrayList<>();
+        BigDecimal sum = BigDecimal.ZERO;
+        int errorGroup = -1;
+        int groupIndex = 0;
+        int start = 0;
+        while (start < operands.length) {
+            int end = start + 1;
+            while (end < operands.length && !(priority && isGroupStart(operators.get(end - 1)))) {
+                end++;
+            }
+            boolean negate = start > 0 && operators.get(start - 1) == Operator.SUBTRACT;
+            Group group = compileGroup(operands, operators, start, end, priority, negate, groupIndex);
+            if (group.chains.length > 0) {
+                variableGroups.add(group);
+            } else {
+                BigDecimal value = group.prefix;
+                if (value instanceof ExpressionTree.ErrorValue) {
+                    if (errorGroup == -1) {
+                        errorGroup = groupIndex;
+                        sum = value;
+                    }
+                } else if (errorGroup == -1) {
+                    sum = sum.add(negate ? value.negate() : value);
+                }
+            }
+            groupIndex++;
+            start = end;
+        }
+        constantSum = sum;
+        constantErrorGroup = errorGroup;
+        groups = variableGroups.toArray(new Group[0]);
+    }
+
+    private static boolean isGroupStart(Operator operator) {
+        return operator == Operator.ADD || operator == Operator.SUBTRACT;
+    }
+
+    /**
+     * Compile the numbers of a group, from {@code start} inclusive to {@code end} exclusive.
+     * Chains before the first one with a variable are combined in the prefix.
+     */
+    private Group compileGroup(Operand[] operands, List<Operator> operators, int start, int end,
+                               boolean priority, boolean negate, int index) {
+        List<Chain> chains = new ArrayList<>();
+        List<Operator> chainOperators = new ArrayList<>();
+        BigDecimal prefix = null;
+        int chainStart = start;
+        while (chainStart < end) {
+            int chainEnd = chainStart + 1;
+            while (priority && chainEnd < end && operators.get(chainEnd - 1) == Operator.POWER) {
+                chainEnd++;
+            }
+            Chain chain = new Chain(Arrays.copyOfRange(operands, chainStart, chainEnd));
+            Operator operator = chainStart > start ? operators.get(chainStart - 1) : null;
+            if (chains.isEmpty() && chain.constant != null) {
+                prefix = operator == null ? chain.constant : apply(prefix, operator, chain.constant);
+            } else {
+                chains.add(chain);
+                chainOperators.add(operator);
+            }
+            chainStart = chainEnd;
+        }
+        return new Group(index, negate, prefix,
+                chainOperators.toArray(new Operator[0]), chains.toArray(new Chain[0]));
+    }
+
+    /**
+     * Get the names of the variables of the expression, in the order in which their values
+     * are given to {@link #evaluate(BigDecimal...)}. The placeholder has an empty name.
+     */
+    @NonNull
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(Arrays.asList(variableNames));
+    }
+
+    /**
+     * Evaluate the expression with values of its variables.
+     * @param values The values of the variables, in the order of {@link #getVariableNames()}.
+     * @return The result.
+     * @throws ArithmeticException if a division by zero or an invalid operation occurred,
+     *                             or if a result would have more than the maximum digits.
+     */
+    @NonNull
+    public BigDecimal evaluate(@NonNull BigDecimal... values) {
+        if (values.length != variableNames.length) {
+            throw new IllegalArgumentException("Expected " + variableNames.length + " values.");
+        }
+
+        if (single != null) {
+            // Single number, returned as is like when evaluating the expression.
+            return single.get(values);
+        }
+
+        BigDecimal result = constantErrorGroup == -1 ? constantSum : BigDecimal.ZERO;
+        for (Group group : groups) {
+            if (constantErrorGroup != -1 && group.index > constantErrorGroup) {
+                break;
+            }
+            BigDecimal value = group.evaluate(values);
+            if (value instanceof ExpressionTree.ErrorValue) {
+                throw new Expression.EvaluationException(((ExpressionTree.ErrorValue) value).reason);
+            }
+            result = result.add(group.negate ? value.negate() : value);
+        }
+        if (constantErrorGroup != -1) {
+            throw new Expression.EvaluationException(((ExpressionTree.ErrorValue) constantSum).reason);
+        }
+        return CalcDecimals.stripTrailingZeros(result);
+    }
+
+    /**
+     * Evaluate the expression with values of its variables.
+     * @param values The values of the variables by name, there must be one for each variable.
+     * @see #evaluate(BigDecimal...)
+     */
+    @NonNull
+    public BigDecimal evaluate(@NonNull Map<String, BigDecimal> values) {
+        BigDecimal[] array = new BigDecimal[variableNames.length];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(variableNames[i]);
+            if (array[i] == null) {
+                throw new IllegalArgumentException("No value for variable '" + variableNames[i] + "'.");
+            }
+        }
+        return evaluate(array);
+    }
+
+    /**
+     * Apply the expression to a value, for an expression with a single variable.
+     * @param value The value of the variable.
+     * @return The result.
+     * @throws ArithmeticException if a division by zero or an invalid operation occurred,
+     *                             or if a result would have more than the maximum digits.
+     * @throws IllegalStateException if the expression has more than one variable.
+     */
+    @NonNull
+    public BigDecimal apply(@NonNull BigDecimal value) {
+        if (variableNames.length > 1) {
+            throw new IllegalStateException("Expression has more than one variable.");
+        }
+        return variableNames.length == 0 ? evaluate() : evaluate(value);
+    }
+
+    /**
+     * Apply the expression to many values, for an expression with a single variable.
+     * @param values The values.
+     * @return The results, in the same order. The result is {@code null} for a
+     * {@code null} value and for a value for which the evaluation failed.
+     * @throws IllegalStateException if the expression has more than one variable.
+     */
+    @NonNull
+    public BigDecimal[] applyAll(@NonNull final BigDecimal[] values) {
+        if (variableNames.length > 1) {
+            throw new IllegalStateException("Expression has more than one variable.");
+        }
+        final BigDecimal[] results = new BigDecimal[values.length];
+        forEachChunk(values.length, new ChunkTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    BigDecimal value = values[i];
+                    if (value != null) {
+                        try {
+                            results[i] = apply(value);
+                        } catch (ArithmeticException e) {
+                            // Evaluation failed, leave result null.
+                        }
+                    }
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Apply the expression to many values given as unscaled numbers, like amounts in cents,
+     * for an expression with a single variable.
+     * @param values     The unscaled values.
+     * @param valueScale The scale of the values and of the results, for example 2 for cents.
+     * @return The unscaled results, in the same order, rounded with the rounding mode.
+     * @throws ArithmeticException if the evaluation failed for any value,
+     *                             or if a result can't be represented with a long.
+     * @throws IllegalStateException if the expression has more than one variable.
+     */
+    @NonNull
+    public long[] applyAll(@NonNull final long[] values, final int valueScale) {
+        if (variableNames.length > 1) {
+            throw new IllegalStateException("Expression has more than one variable.");
+        }
+        final long[] results = new long[values.length];
+        forEachChunk(values.length, new ChunkTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    BigDecimal result = apply(CalcDecimals.valueOf(values[i], valueScale));
+                    BigInteger unscaled = result.setScale(valueScale, roundingMode).unscaledValue();
+                    if (unscaled.bitLength() > 63) {
+                        throw new ArithmeticException("Result doesn't fit in a long.");
+                    }
+                    results[i] = unscaled.longValue();
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Run a task on chunks of a batch of values.
+     * Small batches are done on the calling thread only.
+     * @throws RuntimeException the first exception thrown by the task, if any.
+     */
+    private void forEachChunk(final int size, @NonNull final ChunkTask task) {
+        if (size == 0) return;
+
+        int threads = size < PARALLEL_THRESHOLD ? 1 : Math.min(PARALLELISM, size / CHUNK_SIZE);
+        if (threads <= 1) {
+            task.run(0, size);
+            return;
+        }
+
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(threads - 1);
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (error.get() == null) {
+                        int start = nextChunk.getAndIncrement() * CHUNK_SIZE;
+                        if (start >= size) break;
+                        task.run(start, Math.min(start + CHUNK_SIZE, size));
+                    }
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+
+        for (int i = 1; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        // The calling thread takes chunks too, then waits for the others.
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        RuntimeException e = error.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    @NonNull
+    private BigDecimal apply(@NonNull BigDecimal n1, @NonNull Operator operator, @NonNull BigDecimal n2) {
+        return ExpressionTree.apply(n1, operator, n2, scale, roundingMode, maxDigits);
+    }
+
+    private interface ChunkTask {
+        /**
+         * Process values from {@code start} inclusive to {@code end} exclusive.
+         */
+        void run(int start, int end);
+    }
+
+    /**
+     * A number of the expression, either a constant or a variable.
+     */
+    private static final class Operand {
+
+        @Nullable
+        final BigDecimal constant;
+
+        /** Index of the variable value, -1 for a constant. */
+        final int variable;
+
+        Operand(@Nullable BigDecimal constant, int variable) {
+            this.constant = constant;
+            this.variable = variable;
+        }
+
+        @NonNull
+        BigDecimal get(@NonNull BigDecimal[] values) {
+            return variable == -1 ? constant : values[variable];
+        }
+    }
+
+    /**
+     * A chain of powers evaluated from left to right, or a single number.
+     */
+    private final class Chain {
+
+        @NonNull
+        final Operand[] operands;
+
+        /** The value of the chain if it has no variables, otherwise null. */
+        @Nullable
+        final BigDecimal constant;
+
+        Chain(@NonNull Operand[] operands) {
+            this.operands = operands;
+
+            boolean hasVariable = false;
+            for (Operand operand : operands) {
+                if (operand.variable != -1) {
+                    hasVariable = true;
+                    break;
+                }
+            }
+            constant = hasVariable ? null : evaluate(null);
+        }
+
+        @NonNull
+        BigDecimal evaluate(@Nullable BigDecimal[] values) {
+            if (constant != null) {
+                return constant;
+            }
+            BigDecimal value = operands[0].get(values);
+            for (int i = 1; i < operands.length; i++) {
+                value = apply(value, Operator.POWER, operands[i].get(values));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A group of chains combined from left to right, its value being added to the result.
+     */
+    private final class Group {
+
+        /** Index of the group in the expression. */
+        final int index;
+
+        /** Whether the group is subtracted instead of added. */
+        final boolean negate;
+
+        /** Value of the chains before the first one with a variable, null if there are none. */
+        @Nullable
+        final BigDecimal prefix;
+
+        /** Operator before each chain, null for the first chain if there's no prefix. */
+        @NonNull
+        final Operator[] operators;
+
+        @NonNull
+        final Chain[] chains;
+
+        Group(int index, boolean negate, @Nullable BigDecimal prefix,
+              @NonNull Operator[] operators, @NonNull Chain[] chains) {
+            this.index = index;
+            this.negate = negate;
+            this.prefix = prefix;
+            this.operators = operators;
+            this.chains = chains;
+        }
+
+        @NonNull
+        BigDecimal evaluate(@NonNull BigDecimal[] values) {
+            BigDecimal value = prefix;
+            for (int i = 0; i < chains.length; i++) {
+                BigDecimal chain = chains[i].evaluate(values);
+                value = value == null ? chain : apply(value, operators[i], chain);
+            }
+            assert value != null;
+            return value;
+        }
+    }
+
+}
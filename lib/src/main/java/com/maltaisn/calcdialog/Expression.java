@@ -19,24 +19,433 @@ package com.maltaisn.calcdialog;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-class Expression implements Parcelable {
+/**
+ * An expression of numbers separated by operators, as typed in the calculator.
+ * Expressions can be built with {@link #addNumber(BigDecimal)} and {@link #addOperator(Operator)},
+ * using {@link #addVariable(String)} or {@link #addPlaceholder()} for values given later, then
+ * compiled with {@link #compile(boolean, int, RoundingMode)} to be evaluated with many values.
+ */
+public final class Expression implements Parcelable {
+
+    /** Tag written instead of the number count by {@link #writeTo(DataOutput)} for the nested format. */
+    private static final int NESTED_FORMAT_TAG = -1;
+
+    /** Maximum size in bytes of the unscaled value of a number written in the binary format. */
+    private static final int MAX_NUMBER_SIZE = 1 << 20;
+
+    // Kinds of numbers in the nested format.
+    private static final int KIND_NUMBER = 0;
+    private static final int KIND_GROUP = 1;
+    private static final int KIND_VARIABLE = 2;
+
+    /** Maximum number of digits of the result of an operation, if not specified. */
+    static final int DEFAULT_MAX_DIGITS = 1000;
 
-    final List<BigDecimal> numbers = new ArrayList<>();
-    final List<Operator> operators = new ArrayList<>();
+    /** Shown in place of the placeholder when the expression is formatted. */
+    private static final String PLACEHOLDER_SYMBOL = "?";
 
-    Expression() {}
+    /**
+     * Numbers of the expression, null for a variable, whose name is kept in its term.
+     * The value of a group in parentheses is a number, its expression is kept in its term.
+     */
+    final TermList<BigDecimal> numbers = new TermList<>();
+    final TermList<Operator> operators = new TermList<>();
+
+    /**
+     * Last term of the persistent list of terms mirroring {@link #numbers} and {@link #operators}.
+     * Terms are immutable and shared, so a term is a snapshot of the expression up to it.
+     * The lists should be modified with the methods below for terms to be kept in sync,
+     * otherwise the terms are built again from the lists.
+     */
+    @Nullable
+    private Term lastTerm;
+
+    // Modifications of the lists when the terms were last in sync with them.
+    private int numbersModifications;
+    private int operatorsModifications;
+
+    /**
+     * Evaluator kept in sync with the lists by the methods below, so that the expression
+     * can be evaluated again after a change without combining all terms. Null if not created
+     * yet or if a change required to build it again.
+     */
+    @Nullable
+    private ExpressionTree tree;
+
+    /** Value of the last group when it was last checked, null if it wasn't checked yet. */
+    @Nullable
+    private GroupCheck groupCheck;
+
+    public Expression() {}
 
     void clear() {
         numbers.clear();
         operators.clear();
+        setLastTerm(null);
+        tree = null;
+    }
+
+    /**
+     * Add a number at the end of the expression, after an operator unless it's the first term.
+     */
+    public void addNumber(@NonNull BigDecimal number) {
+        addOperand(number, null, null);
+    }
+
+    /**
+     * Add the value of a group in parentheses at the end of the expression, after an operator
+     * unless it's the first term. The group is evaluated like a number, its expression is
+     * kept for formatting. The group expression must not be modified afterwards.
+     * @param value The value of the group expression.
+     * @param group The group expression.
+     */
+    void addGroup(@NonNull BigDecimal value, @NonNull Expression group) {
+        addOperand(value, null, group);
+    }
+
+    /**
+     * Add a variable at the end of the expression, after an operator unless it's the first term.
+     * The value of a variable is given when the compiled expression is evaluated, an expression
+     * with a variable can't be evaluated without being compiled. Variables with the same name
+     * are the same variable.
+     * @param name The name of the variable, shown when the expression is formatted.
+     */
+    public void addVariable(@NonNull String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Variable name must not be empty.");
+        }
+        addOperand(null, name, null);
+    }
+
+    /**
+     * Add the placeholder at the end of the expression, after an operator unless it's
+     * the first term. The placeholder is an unnamed variable, standing for the value to which
+     * the compiled expression is applied with {@link CompiledExpression#apply(BigDecimal)}.
+     */
+    public void addPlaceholder() {
+        addOperand(null, "", null);
+    }
+
+    private void addOperand(@Nullable BigDecimal number, @Nullable String variable,
+                            @Nullable Expression group) {
+        Term prev = getLastTerm();
+        numbers.add(number);
+        setLastTerm(new Term(prev, number, variable, group, null));
+        if (variable != null) {
+            // Variables have no value to evaluate.
+            tree = null;
+        } else if (tree != null && tree.size() == numbers.size() - 1) {
+            tree.onNumberAdded(numbers, operators);
+        }
+    }
+
+    /**
+     * Add an operator at the end of the expression, after a number.
+     */
+    public void addOperator(@NonNull Operator operator) {
+        Term prev = getLastTerm();
+        operators.add(operator);
+        setLastTerm(new Term(prev, null, null, null, operator));
+        if (operators.size() < numbers.size()) {
+            // Operator isn't after the last number.
+            tree = null;
+        }
+    }
+
+    /**
+     * Remove the last number or variable, which must be the last term.
+     * @return The removed number, null for a variable.
+     * @see #getGroup(int)
+     */
+    @Nullable
+    BigDecimal removeLastNumber() {
+        Term last = getLastTerm();
+        if (last == null || last.operator != null) {
+            throw new IllegalStateException("Last term isn't a number.");
+        }
+        if (tree != null && tree.size() == numbers.size()) {
+            tree.onLastNumberRemoved(numbers, operators);
+        }
+        BigDecimal number = numbers.remove(numbers.size() - 1);
+        setLastTerm(last.prev);
+        return number;
+    }
+
+    /**
+     * Remove the last operator, which must be the last term.
+     * @return The removed operator.
+     */
+    @NonNull
+    Operator removeLastOperator() {
+        Term last = getLastTerm();
+        if (last == null || last.operator == null) {
+            throw new IllegalStateException("Last term isn't an operator.");
+        }
+        if (operators.size() < numbers.size()) {
+            // Operator wasn't after the last number.
+            tree = null;
+        }
+        Operator operator = operators.remove(operators.size() - 1);
+        setLastTerm(last.prev);
+        return operator;
+    }
+
+    /**
+     * Replace the last operator, which must be the last term.
+     */
+    void setLastOperator(@NonNull Operator operator) {
+        removeLastOperator();
+        addOperator(operator);
+    }
+
+    /**
+     * Replace a number anywhere in the expression.
+     * @param index  The index of the number.
+     * @param number The new number.
+     */
+    void setNumber(int index, @NonNull BigDecimal number) {
+        List<Term> terms = getTermsFrom(index * 2);
+        numbers.set(index, number);
+        terms.set(0, new Term(null, number, null, null, null));
+        linkTerms(index * 2, terms);
+        if (tree != null && tree.size() == numbers.size()) {
+            tree.onNumberChanged(index, numbers, operators);
+        }
+    }
+
+    /**
+     * Replace an operator anywhere in the expression.
+     * @param index    The index of the operator.
+     * @param operator The new operator.
+     */
+    void setOperator(int index, @NonNull Operator operator) {
+        List<Term> terms = getTermsFrom(index * 2 + 1);
+        Operator old = operators.set(index, operator);
+        terms.set(0, new Term(null, null, null, null, operator));
+        linkTerms(index * 2 + 1, terms);
+        if (tree != null && tree.size() == numbers.size() && index < numbers.size() - 1) {
+            if (!tree.onOperatorChanged(index, old, numbers, operators)) {
+                tree = null;
+            }
+        }
+    }
+
+    /**
+     * Remove a number anywhere in the expression, with the operator before it,
+     * or with the operator after it for the first number.
+     * @param index The index of the number.
+     */
+    void removeNumber(int index) {
+        int position = (index > 0 ? index * 2 - 1 : 0);
+        List<Term> terms = getTermsFrom(position);
+        numbers.remove(index);
+        if (index > 0) {
+            operators.remove(index - 1);
+        } else if (!operators.isEmpty()) {
+            operators.remove(0);
+        }
+        terms.subList(0, Math.min(2, terms.size())).clear();
+        linkTerms(position, terms);
+        // Group structure may change, evaluator will be built again.
+        tree = null;
+    }
+
+    /**
+     * Get the number of terms, numbers and operators.
+     */
+    int getTermCount() {
+        return numbers.size() + operators.size();
+    }
+
+    /**
+     * Get the terms from a position to the end, in order.
+     * @param position Position of the first term, numbers are at even
+     *                 positions and operators at odd positions.
+     */
+    @NonNull
+    private List<Term> getTermsFrom(int position) {
+        List<Term> terms = new ArrayList<>();
+        for (Term term = getLastTerm(); term != null && term.size > position; term = term.prev) {
+            terms.add(term);
+        }
+        Collections.reverse(terms);
+        return terms;
+    }
+
+    /**
+     * Replace the terms from a position to the end by copies of other terms,
+     * sharing the terms before it with previous snapshots.
+     */
+    private void linkTerms(int position, @NonNull List<Term> terms) {
+        Term term = lastTerm;
+        while (term != null && term.size > position) {
+            term = term.prev;
+        }
+        for (Term t : terms) {
+            term = new Term(term, t);
+        }
+        setLastTerm(term);
+    }
+
+    /**
+     * Get the last term of the expression, which can be used
+     * as a snapshot to later {@link #restore(Term)} the expression.
+     * @return The last term, null if the expression is empty.
+     */
+    @Nullable
+    Term getLastTerm() {
+        if (numbers.getModifications() != numbersModifications
+                || operators.getModifications() != operatorsModifications) {
+            rebuildTerms();
+        }
+        return lastTerm;
+    }
+
+    private void setLastTerm(@Nullable Term term) {
+        lastTerm = term;
+        numbersModifications = numbers.getModifications();
+        operatorsModifications = operators.getModifications();
+    }
+
+    /**
+     * Build the terms again after the lists were modified directly. The evaluator is built
+     * again too. A number still in the same place keeps its group, and a variable is kept
+     * if there was one in the same place.
+     * @throws IllegalStateException if a variable was added to the list directly.
+     */
+    private void rebuildTerms() {
+        Term[] old = new Term[numbers.size()];
+        for (Term term = lastTerm; term != null; term = term.prev) {
+            int index = (term.size - 1) / 2;
+            if (term.operator == null && index < old.length) {
+                old[index] = term;
+            }
+        }
+
+        tree = null;
+        groupCheck = null;
+        Term term = null;
+        int size = getTermCount();
+        for (int i = 0; i * 2 < size; i++) {
+            BigDecimal number = numbers.get(i);
+            Term same = (old[i] != null && old[i].number == number ? old[i] : null);
+            if (same != null) {
+                term = new Term(term, same);
+            } else if (number == null) {
+                throw new IllegalStateException("Variables must be added with addVariable.");
+            } else {
+                term = new Term(term, number, null, null, null);
+            }
+            if (i * 2 + 1 < size) {
+                term = new Term(term, null, null, null, operators.get(i));
+            }
+        }
+        setLastTerm(term);
+    }
+
+    /**
+     * Get the expression of a group in parentheses.
+     * @param index The index of the number.
+     * @return The group expression, null if the number isn't the value of a group.
+     */
+    @Nullable
+    Expression getGroup(int index) {
+        Term term = getLastTerm();
+        while (term != null && term.size > index * 2 + 1) {
+            term = term.prev;
+        }
+        return (term == null ? null : term.group);
+    }
+
+    /**
+     * Get the terms of the numbers, groups and variables, in order.
+     */
+    @NonNull
+    Term[] getNumberTerms() {
+        Term[] terms = new Term[numbers.size()];
+        for (Term term = getLastTerm(); term != null; term = term.prev) {
+            if (term.operator == null) {
+                terms[(term.size - 1) / 2] = term;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Restore the expression to a snapshot. Only the terms after the
+     * last term shared by the snapshot and the current expression are changed.
+     * @param term The last term of the snapshot, null for an empty expression.
+     */
+    void restore(@Nullable Term term) {
+        Term current = getLastTerm();
+
+        // Find the last common term. Terms of same size are compared until they are the same.
+        Term target = term;
+        int targetSize = (target == null ? 0 : target.size);
+        int currentSize = (current == null ? 0 : current.size);
+        List<Term> added = new ArrayList<>();
+        while (targetSize > currentSize) {
+            assert target != null;
+            added.add(target);
+            target = target.prev;
+            targetSize--;
+        }
+        while (currentSize > targetSize) {
+            assert current != null;
+            current = current.prev;
+            currentSize--;
+        }
+        while (current != target) {
+            assert current != null && target != null;
+            added.add(target);
+            current = current.prev;
+            target = target.prev;
+        }
+
+        // Remove terms after the common term and add the snapshot terms.
+        int common = (current == null ? 0 : current.size);
+        int keptNumbers = (common + 1) / 2;
+        if (tree != null && tree.size() == numbers.size()) {
+            while (tree.size() > keptNumbers) {
+                tree.onLastNumberRemoved(numbers, operators);
+            }
+        } else {
+            tree = null;
+        }
+        numbers.subList(keptNumbers, numbers.size()).clear();
+        operators.subList(common / 2, operators.size()).clear();
+        for (int i = added.size() - 1; i >= 0; i--) {
+            Term t = added.get(i);
+            if (t.operator == null) {
+                numbers.add(t.number);
+                if (t.variable != null) {
+                    tree = null;
+                } else if (tree != null) {
+                    tree.onNumberAdded(numbers, operators);
+                }
+            } else {
+                operators.add(t.operator);
+            }
+        }
+        setLastTerm(term);
     }
 
     boolean isEmpty() {
@@ -44,62 +453,206 @@ class Expression implements Parcelable {
     }
 
     /**
-     * Evaluate the expression and return the result.
+     * Evaluate the expression and return the result. An operator after the last number is ignored.
+     * The evaluator is kept between calls, so only the terms changed since the
+     * last evaluation with the same parameters are combined again.
      * @param priority     Whether to apply operation priority or not.
      * @param scale        Scale used for division.
      * @param roundingMode Rounding mode used for division.
      * @return The result.
-     * @throws ArithmeticException if a division by zero occurred.
+     * @throws EvaluationException if a division by zero or an invalid operation occurred,
+     *                             or if a result would have more than {@link #DEFAULT_MAX_DIGITS}.
      */
     @NonNull
     BigDecimal evaluate(boolean priority, int scale, RoundingMode roundingMode) {
-        if (numbers.size() != operators.size() + 1) {
+        return evaluate(priority, scale, roundingMode, DEFAULT_MAX_DIGITS);
+    }
+
+    /**
+     * Evaluate the expression and return the result. An operator after the last number is ignored.
+     * The evaluator is kept between calls, so only the terms changed since the
+     * last evaluation with the same parameters are combined again.
+     * @param priority     Whether to apply operation priority or not.
+     * @param scale        Scale used for division.
+     * @param roundingMode Rounding mode used for division.
+     * @param maxDigits    Maximum number of digits of the result of each operation,
+     *                     an operation estimated to exceed it isn't done.
+     * @return The result.
+     * @throws EvaluationException if a division by zero or an invalid operation occurred,
+     *                             or if a result would have more than the maximum digits.
+     * @throws IllegalStateException if the expression has a variable, it must be compiled instead.
+     */
+    @NonNull
+    BigDecimal evaluate(boolean priority, int scale, RoundingMode roundingMode, int maxDigits) {
+        if (numbers.isEmpty() || operators.size() < numbers.size() - 1
+                || operators.size() > numbers.size()) {
             throw new IllegalStateException("Numbers and operators aren't balanced.");
         }
 
-        if (numbers.size() == 1) return numbers.get(0);
-
-        List<BigDecimal> nbs = new ArrayList<>(numbers);
-        List<Operator> ops = new ArrayList<>(operators);
-
-        if (priority) {
-            // Evaluate products and quotients
-            int i = 0;
-            while (i < ops.size()) {
-                Operator op = ops.get(i);
-                if (op == Operator.MULTIPLY) {
-                    ops.remove(i);
-                    BigDecimal n1 = nbs.get(i);
-                    BigDecimal n2 = nbs.remove(i + 1);
-                    nbs.set(i, n1.multiply(n2));
-                } else if (op == Operator.DIVIDE) {
-                    ops.remove(i);
-                    BigDecimal n1 = nbs.get(i);
-                    BigDecimal n2 = nbs.remove(i + 1);
-                    nbs.set(i, n1.divide(n2, scale, roundingMode));
-                } else {
-                    i++;
-                }
+        Term last = getLastTerm();
+        if (last != null && last.variableCount > 0) {
+            throw new IllegalStateException("Expression with a variable must be compiled.");
+        }
+        if (numbers.size() == 1) {
+            return numbers.get(0);
+        }
+
+        BigDecimal result;
+        CalcTracer.begin("Expression.evaluate");
+        try {
+            if (tree == null || !tree.matches(priority, scale, roundingMode, maxDigits)
+                    || tree.size() != numbers.size()) {
+                tree = new ExpressionTree(priority, scale, roundingMode, maxDigits);
+                tree.rebuild(numbers, operators);
             }
+            result = tree.getValue();
+        } finally {
+            CalcTracer.end();
         }
 
-        // Evaluate the rest
-        while (!ops.isEmpty()) {
-            Operator op = ops.remove(0);
-            BigDecimal n1 = nbs.get(0);
-            BigDecimal n2 = nbs.remove(1);
-            if (op == Operator.ADD) {
-                nbs.set(0, n1.add(n2));
-            } else if (op == Operator.SUBTRACT) {
-                nbs.set(0, n1.subtract(n2));
-            } else if (op == Operator.MULTIPLY) {
-                nbs.set(0, n1.multiply(n2));
-            } else {
-                nbs.set(0, n1.divide(n2, scale, roundingMode));
+        if (result instanceof ExpressionTree.ErrorValue) {
+            throw new EvaluationException(((ExpressionTree.ErrorValue) result).reason);
+        }
+        return CalcDecimals.stripTrailingZeros(result);
+    }
+
+    /**
+     * Evaluate the expression as if a number was added after its last operator,
+     * without changing it. If the expression was already evaluated with the same
+     * parameters, only the terms of the last group are combined.
+     * @param number The number added.
+     * @return The result.
+     * @throws EvaluationException if a division by zero or an invalid operation occurred,
+     *                             or if a result would have more than the maximum digits.
+     * @throws IllegalStateException if the expression has a variable.
+     * @see #evaluate(boolean, int, RoundingMode, int)
+     */
+    @NonNull
+    BigDecimal evaluateWith(@NonNull BigDecimal number, boolean priority, int scale,
+                            RoundingMode roundingMode, int maxDigits) {
+        if (operators.size() != numbers.size()) {
+            throw new IllegalStateException("Expression doesn't end with an operator.");
+        }
+        addNumber(number);
+        try {
+            return evaluate(priority, scale, roundingMode, maxDigits);
+        } finally {
+            removeLastNumber();
+        }
+    }
+
+    /**
+     * Check the group ending with the last number for errors, without evaluating the expression.
+     * With operation priority, groups are only added together, which never fails, so checking
+     * each group when its last number is added finds the errors found by evaluating.
+     * Without operation priority, the whole expression is a single group. The value of the group
+     * is kept, so that checking it again after a number was added only combines that number.
+     * @throws EvaluationException if a division by zero or an invalid operation occurred in the group,
+     *                             or if a result would have more than the maximum digits.
+     * @throws IllegalStateException if the expression has a variable.
+     * @see #evaluate(boolean, int, RoundingMode, int)
+     */
+    void checkLastGroup(boolean priority, int scale, RoundingMode roundingMode, int maxDigits) {
+        Term last = getLastTerm();
+        if (last == null || last.operator != null) {
+            throw new IllegalStateException("Last term isn't a number.");
+        }
+        if (last.variableCount > 0) {
+            throw new IllegalStateException("Expression with a variable must be compiled.");
+        }
+
+        GroupCheck check = groupCheck;
+        int index = numbers.size() - 1;
+        if (check != null && last.prev != null && last.prev.prev == check.term
+                && check.matches(priority, scale, roundingMode, maxDigits)
+                && !(priority && isGroupStart(operators.get(index - 1)))) {
+            // Only the last number was added to the group checked before.
+            check.add(operators.get(index - 1), numbers.get(index));
+        } else {
+            int start = index;
+            while (start > 0 && !(priority && isGroupStart(operators.get(start - 1)))) {
+                start--;
             }
+            check = new GroupCheck(priority, scale, roundingMode, maxDigits, numbers.get(start));
+            for (int i = start + 1; i <= index; i++) {
+                check.add(operators.get(i - 1), numbers.get(i));
+            }
+        }
+        check.term = last;
+        groupCheck = check;
+
+        if (check.value instanceof ExpressionTree.ErrorValue) {
+            throw new EvaluationException(((ExpressionTree.ErrorValue) check.value).reason);
         }
+    }
 
-        return nbs.remove(0).stripTrailingZeros();
+    private static boolean isGroupStart(Operator operator) {
+        return operator == Operator.ADD || operator == Operator.SUBTRACT;
+    }
+
+    /**
+     * Compile the expression so that it can be evaluated with many values of its variables.
+     * The result is the same as the result of {@link #evaluate(boolean, int, RoundingMode)}
+     * with the variables replaced by their values. Terms not depending on variables are
+     * combined once when compiling. The expression can be changed afterwards without
+     * affecting the compiled expression.
+     * @param priority     Whether to apply operation priority or not.
+     * @param scale        Scale used for division.
+     * @param roundingMode Rounding mode used for division.
+     * @return The compiled expression.
+     * @throws IllegalStateException if the expression is empty or has two consecutive operators.
+     */
+    @NonNull
+    public CompiledExpression compile(boolean priority, int scale, @NonNull RoundingMode roundingMode) {
+        return compile(priority, scale, roundingMode, DEFAULT_MAX_DIGITS);
+    }
+
+    /**
+     * Compile the expression so that it can be applied to many values.
+     * @param maxDigits Maximum number of digits of the result of each operation,
+     *                  an operation estimated to exceed it isn't done.
+     * @see #compile(boolean, int, RoundingMode)
+     */
+    @NonNull
+    public CompiledExpression compile(boolean priority, int scale,
+                                      @NonNull RoundingMode roundingMode, int maxDigits) {
+        if (numbers.isEmpty() || operators.size() < numbers.size() - 1
+                || operators.size() > numbers.size()) {
+            throw new IllegalStateException("Numbers and operators aren't balanced.");
+        }
+        List<Operator> ops = operators.size() == numbers.size()
+                ? operators.subList(0, operators.size() - 1) : operators;
+        return new CompiledExpression(getNumberTerms(), ops, priority, scale, roundingMode, maxDigits);
+    }
+
+    /**
+     * Whether the expression can be evaluated with these parameters without
+     * combining all its terms again.
+     */
+    boolean isEvaluated(boolean priority, int scale, RoundingMode roundingMode, int maxDigits) {
+        return numbers.size() <= 1 || tree != null && tree.size() == numbers.size()
+                && tree.matches(priority, scale, roundingMode, maxDigits);
+    }
+
+    /**
+     * Take the evaluation state of another expression with the same terms,
+     * so that this expression doesn't have to be evaluated again.
+     */
+    void adoptEvaluation(@NonNull Expression other) {
+        if (tree == null && other.tree != null && getLastTerm() == other.getLastTerm()
+                && other.tree.size() == numbers.size()) {
+            tree = other.tree;
+        }
+    }
+
+    /**
+     * Create a copy of this expression, sharing its terms.
+     */
+    @NonNull
+    Expression copy() {
+        Expression copy = new Expression();
+        copy.restore(getLastTerm());
+        return copy;
     }
 
     /**
@@ -108,19 +661,159 @@ class Expression implements Parcelable {
      * @return The expression string.
      */
     String format(NumberFormat nbFormat) {
+        return format(nbFormat, null);
+    }
+
+    /**
+     * Format the expression to a string.
+     * @param nbFormat   The format to use for formatting numbers.
+     * @param termBounds If not null, array of size {@code 2 * getTermCount()} in which the start
+     *                   and end positions of each term in the string are written.
+     * @return The expression string.
+     */
+    String format(NumberFormat nbFormat, @Nullable int[] termBounds) {
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < numbers.size(); i++) {
-            sb.append(nbFormat.format(numbers.get(i)));
-            sb.append(' ');
-            if (i < operators.size()) {
-                sb.append(operators.get(i).symbol);
+        CalcTracer.begin("Expression.format");
+        try {
+            Term[] terms = getNumberTerms();
+            for (int i = 0; i < terms.length; i++) {
+                int start = sb.length();
+                Term term = terms[i];
+                if (term.variable != null) {
+                    sb.append(term.variable.isEmpty() ? PLACEHOLDER_SYMBOL : term.variable);
+                } else if (term.group != null) {
+                    sb.append('(');
+                    sb.append(term.group.format(nbFormat).trim());
+                    sb.append(')');
+                } else {
+                    sb.append(nbFormat.format(term.number));
+                }
+                if (termBounds != null) {
+                    termBounds[i * 4] = start;
+                    termBounds[i * 4 + 1] = sb.length();
+                }
+                sb.append(' ');
+                if (i < operators.size()) {
+                    if (termBounds != null) {
+                        termBounds[i * 4 + 2] = sb.length();
+                        termBounds[i * 4 + 3] = sb.length() + 1;
+                    }
+                    sb.append(operators.get(i).symbol);
+                }
+                sb.append(' ');
+            }
+            if (sb.length() != 0) {
+                sb.deleteCharAt(sb.length() - 1);
+            }
+            return sb.toString();
+        } finally {
+            CalcTracer.end();
+        }
+    }
+
+    /**
+     * Write the expression to a stream in a compact binary format.
+     * @param out The stream to write to.
+     * @throws IOException if writing failed.
+     * @see #readFrom(DataInput)
+     */
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeInt(NESTED_FORMAT_TAG);
+        out.writeInt(numbers.size());
+        for (Term term : getNumberTerms()) {
+            if (term.variable != null) {
+                out.writeByte(KIND_VARIABLE);
+                out.writeUTF(term.variable);
+            } else if (term.group != null) {
+                out.writeByte(KIND_GROUP);
+                //noinspection ConstantConditions
+                writeNumber(out, term.number);
+                term.group.writeTo(out);
+            } else {
+                out.writeByte(KIND_NUMBER);
+                //noinspection ConstantConditions
+                writeNumber(out, term.number);
             }
-            sb.append(' ');
         }
-        if (sb.length() != 0) {
-            sb.deleteCharAt(sb.length() - 1);
+        out.writeInt(operators.size());
+        for (Operator operator : operators) {
+            out.writeByte(operator.ordinal());
         }
-        return sb.toString();
+    }
+
+    /**
+     * Read an expression written by {@link #writeTo(DataOutput)}.
+     * Expressions written without groups and variables by previous versions can also be read.
+     * @param in The stream to read from.
+     * @return The expression read.
+     * @throws IOException if reading failed or if data is invalid.
+     */
+    @NonNull
+    static Expression readFrom(@NonNull DataInput in) throws IOException {
+        int count = in.readInt();
+        boolean nested = (count == NESTED_FORMAT_TAG);
+        if (nested) {
+            count = in.readInt();
+        }
+        if (count < 0) {
+            throw new IOException("Invalid number count.");
+        }
+        // Operators are written after the numbers, numbers are kept as unlinked terms until then.
+        List<Term> operands = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int kind = (nested ? in.readUnsignedByte() : KIND_NUMBER);
+            if (kind == KIND_VARIABLE) {
+                operands.add(new Term(null, null, in.readUTF(), null, null));
+            } else if (kind == KIND_GROUP) {
+                BigDecimal value = readNumber(in);
+                operands.add(new Term(null, value, null, readFrom(in), null));
+            } else if (kind == KIND_NUMBER) {
+                operands.add(new Term(null, readNumber(in), null, null, null));
+            } else {
+                throw new IOException("Invalid number kind.");
+            }
+        }
+
+        int opCount = in.readInt();
+        if (opCount != count && opCount != count - 1 || count == 0 && opCount != 0) {
+            throw new IOException("Numbers and operators aren't balanced.");
+        }
+        Operator[] operators = Operator.values();
+        Expression expr = new Expression();
+        for (int i = 0; i < count; i++) {
+            Term operand = operands.get(i);
+            expr.addOperand(operand.number, operand.variable, operand.group);
+            if (i < opCount) {
+                int ordinal = in.readUnsignedByte();
+                if (ordinal >= operators.length) {
+                    throw new IOException("Invalid operator.");
+                }
+                expr.addOperator(operators[ordinal]);
+            }
+        }
+        return expr;
+    }
+
+    static void writeNumber(@NonNull DataOutput out, @NonNull BigDecimal number) throws IOException {
+        byte[] unscaled = number.unscaledValue().toByteArray();
+        if (unscaled.length > MAX_NUMBER_SIZE) {
+            throw new IOException("Number is too large.");
+        }
+        out.writeInt(number.scale());
+        out.writeInt(unscaled.length);
+        out.write(unscaled);
+    }
+
+    @NonNull
+    static BigDecimal readNumber(@NonNull DataInput in) throws IOException {
+        int scale = in.readInt();
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_NUMBER_SIZE) {
+            throw new IOException("Invalid number length.");
+        }
+        byte[] unscaled = new byte[length];
+        in.readFully(unscaled);
+        return CalcDecimals.valueOf(new BigInteger(unscaled), scale);
     }
 
     @NonNull
@@ -130,15 +823,29 @@ class Expression implements Parcelable {
     }
 
     ////////// PARCELABLE //////////
-    private Expression(Parcel in) {
-        in.readList(numbers, BigDecimal.class.getClassLoader());
-        in.readList(operators, Operator.class.getClassLoader());
+    // Groups can't be written as serializable numbers, so the binary format is used.
+
+    @NonNull
+    private static Expression readFromParcel(Parcel in) {
+        byte[] bytes = in.createByteArray();
+        try {
+            //noinspection ConstantConditions
+            return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
     public void writeToParcel(@NonNull Parcel out, int flags) {
-        out.writeList(numbers);
-        out.writeList(operators);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // Can't happen with a byte array stream.
+            throw new IllegalStateException(e);
+        }
+        out.writeByteArray(bytes.toByteArray());
     }
 
     @Override
@@ -149,7 +856,7 @@ class Expression implements Parcelable {
     public static final Creator<Expression> CREATOR = new Creator<Expression>() {
         @Override
         public Expression createFromParcel(Parcel in) {
-            return new Expression(in);
+            return readFromParcel(in);
         }
 
         @Override
@@ -158,8 +865,166 @@ class Expression implements Parcelable {
         }
     };
 
-    enum Operator {
-        ADD('+'), SUBTRACT('−'), MULTIPLY('×'), DIVIDE('÷');
+    /**
+     * Exception thrown when an expression can't be evaluated.
+     */
+    static final class EvaluationException extends ArithmeticException {
+
+        private static final long serialVersionUID = 1L;
+
+        static final int DIVISION_BY_ZERO = 0;
+        static final int INVALID_OPERATION = 1;
+        static final int TOO_LARGE = 2;
+
+        private static final String[] MESSAGES = {"Division by zero", "Invalid operation", "Result too large"};
+
+        /** The reason of the error, one of the constants of this class. */
+        final int reason;
+
+        EvaluationException(int reason) {
+            super(MESSAGES[reason]);
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Value of a group combined from left to right like {@link ExpressionTree} does,
+     * powers having priority over products and quotients if operation priority is applied.
+     */
+    private static final class GroupCheck {
+
+        final boolean priority;
+        final int scale;
+        @NonNull final RoundingMode roundingMode;
+        final int maxDigits;
+
+        /** The term of the last number of the group. */
+        @Nullable
+        Term term;
+
+        /** Value of the group, or an {@link ExpressionTree.ErrorValue}. */
+        @NonNull
+        BigDecimal value;
+
+        /** Value of the chain of powers ending with the last number. */
+        @NonNull
+        private BigDecimal power;
+
+        /** Value of the group before the chain of powers and the operator after it, null if the chain starts the group. */
+        @Nullable
+        private BigDecimal beforeChain;
+        @Nullable
+        private Operator chainOperator;
+
+        GroupCheck(boolean priority, int scale, @NonNull RoundingMode roundingMode,
+                   int maxDigits, @NonNull BigDecimal first) {
+            this.priority = priority;
+            this.scale = scale;
+            this.roundingMode = roundingMode;
+            this.maxDigits = maxDigits;
+            value = first;
+            power = first;
+        }
+
+        boolean matches(boolean priority, int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+            return this.priority == priority && this.scale == scale
+                    && this.roundingMode == roundingMode && this.maxDigits == maxDigits;
+        }
+
+        void add(@NonNull Operator operator, @NonNull BigDecimal number) {
+            if (priority && operator == Operator.POWER) {
+                power = apply(power, operator, number);
+                value = beforeChain == null ? power : apply(beforeChain, chainOperator, power);
+            } else {
+                beforeChain = value;
+                chainOperator = operator;
+                value = apply(value, operator, number);
+                power = number;
+            }
+        }
+
+        private BigDecimal apply(BigDecimal n1, Operator operator, BigDecimal n2) {
+            return ExpressionTree.apply(n1, operator, n2, scale, roundingMode, maxDigits);
+        }
+    }
+
+    /**
+     * List counting its modifications, so that the terms can be built again when
+     * the list was modified directly. Elements replaced with {@link #set(int, Object)} are
+     * counted, since the size alone doesn't show that the list changed.
+     */
+    static final class TermList<E> extends ArrayList<E> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Number of elements replaced. */
+        private int replaced;
+
+        @Override
+        public E set(int index, E element) {
+            replaced++;
+            return super.set(index, element);
+        }
+
+        /**
+         * Get the number of modifications of the list, structural or not.
+         */
+        int getModifications() {
+            return modCount + replaced;
+        }
+    }
+
+    /**
+     * A term of an expression, either a number, a group, a variable or an operator,
+     * linked to the term before it.
+     */
+    static final class Term {
+
+        @Nullable
+        final Term prev;
+
+        /** The number or the value of the group, null for a variable or an operator. */
+        @Nullable
+        final BigDecimal number;
+
+        /** The name of the variable, empty for the placeholder, null for a number or an operator. */
+        @Nullable
+        final String variable;
+
+        /** The expression of the group in parentheses, null if the term isn't a group. */
+        @Nullable
+        final Expression group;
+
+        @Nullable
+        final Operator operator;
+
+        /** Number of terms up to and including this one. */
+        final int size;
+
+        /** Number of variables up to and including this term. */
+        final int variableCount;
+
+        Term(@Nullable Term prev, @Nullable BigDecimal number, @Nullable String variable,
+             @Nullable Expression group, @Nullable Operator operator) {
+            this.prev = prev;
+            this.number = number;
+            this.variable = variable;
+            this.group = group;
+            this.operator = operator;
+            this.size = (prev == null ? 1 : prev.size + 1);
+            this.variableCount = (prev == null ? 0 : prev.variableCount) + (variable != null ? 1 : 0);
+        }
+
+        /**
+         * Create a copy of a term linked to another term.
+         */
+        Term(@Nullable Term prev, @NonNull Term term) {
+            this(prev, term.number, term.variable, term.group, term.operator);
+        }
+    }
+
+    public enum Operator {
+        ADD('+'), SUBTRACT('−'), MULTIPLY('×'), DIVIDE('÷'), POWER('^');
 
         char symbol;
 
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.maltaisn.calcdialog.Expression.Operator;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Incremental evaluator for an {@link Expression}.
+ * <p>
+ * With operation priority, the expression is a sum of groups, each group being a chain of
+ * products and quotients. Group values are kept in the leaves of a segment tree whose nodes are
+ * the sums of their children, so changing a group only updates the sums on its path to the root.
+ * Within a group, terms are combined from left to right like {@link Expression#evaluate}, since
+ * rounded divisions aren't associative, and the value of the group up to each number is kept
+ * so that changing a number only combines the terms after it in its group. Powers have
+ * priority over products and quotients, a chain of powers is evaluated from left to right
+ * before being combined with the group.
+ * Without operation priority, the whole expression is a single group.
+ * <p>
+ * Changing a number or replacing an operator by one of the same kind, and adding or removing
+ * the last number are incremental. Other changes to the group structure require a rebuild.
+ * A failed operation is represented by an {@link ErrorValue}, which propagates to the root.
+ * The number of digits of each result is estimated from the operands before the operation
+ * is done, an operation exceeding the maximum digits fails without doing the work.
+ */
+final class ExpressionTree {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    final boolean priority;
+    final int scale;
+    @NonNull final RoundingMode roundingMode;
+    final int maxDigits;
+
+    private static final ErrorValue DIVISION_BY_ZERO =
+            new ErrorValue(Expression.EvaluationException.DIVISION_BY_ZERO);
+    private static final ErrorValue INVALID_OPERATION =
+            new ErrorValue(Expression.EvaluationException.INVALID_OPERATION);
+    private static final ErrorValue TOO_LARGE =
+            new ErrorValue(Expression.EvaluationException.TOO_LARGE);
+
+    /** Value of the group up to each number, in the order of the numbers. */
+    private BigDecimal[] partials = new BigDecimal[INITIAL_CAPACITY];
+    private int numberCount;
+
+    /** Value of the chain of powers up to each number, and index of the first number of the chain. */
+    private BigDecimal[] powers = new BigDecimal[INITIAL_CAPACITY];
+    private int[] powerStarts = new int[INITIAL_CAPACITY];
+
+    /** Index of the first number of each group, in increasing order. */
+    private int[] groupStarts = new int[INITIAL_CAPACITY];
+    private int groupCount;
+
+    /** Segment tree of group values with their sign, leaves start at {@link #leafCount}. */
+    private BigDecimal[] sums = new BigDecimal[INITIAL_CAPACITY * 2];
+    private int leafCount = INITIAL_CAPACITY;
+
+    ExpressionTree(boolean priority, int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+        this.priority = priority;
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.maxDigits = maxDigits;
+        Arrays.fill(sums, BigDecimal.ZERO);
+    }
+
+    boolean matches(boolean priority, int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+        return this.priority == priority && this.scale == scale
+                && this.roundingMode == roundingMode && this.maxDigits == maxDigits;
+    }
+
+    /**
+     * Get the number of numbers currently evaluated by the tree.
+     */
+    int size() {
+        return numberCount;
+    }
+
+    /**
+     * Get the value of the expression.
+     * @return The value, or an {@link ErrorValue} if an operation failed.
+     */
+    @NonNull
+    BigDecimal getValue() {
+        return sums[1];
+    }
+
+    /**
+     * Evaluate all numbers of an expression again.
+     */
+    void rebuild(@NonNull List<BigDecimal> numbers, @NonNull List<Operator> operators) {
+        numberCount = 0;
+        groupCount = 0;
+        Arrays.fill(sums, BigDecimal.ZERO);
+        for (int i = 0; i < numbers.size(); i++) {
+            onNumberAdded(numbers, operators);
+        }
+    }
+
+    /**
+     * Called when a number was added at the end of the expression.
+     */
+    void onNumberAdded(@NonNull List<BigDecimal> numbers, @NonNull List<Operator> operators) {
+        int index = numberCount;
+        BigDecimal number = numbers.get(index);
+        ensureNumberCapacity(index + 1);
+        numberCount++;
+
+        boolean groupStart = (index == 0 || isGroupStart(operators.get(index - 1)));
+        if (groupStart) {
+            // Start a new group.
+            ensureGroupCapacity(groupCount + 1);
+            groupStarts[groupCount] = index;
+            groupCount++;
+        }
+        computePartial(index, groupStart, numbers, operators);
+        updateGroup(groupCount - 1, numbers, operators);
+    }
+
+    /**
+     * Called when the last number is about to be removed from the expression.
+     */
+    void onLastNumberRemoved(@NonNull List<BigDecimal> numbers, @NonNull List<Operator> operators) {
+        numberCount--;
+        partials[numberCount] = null;
+        powers[numberCount] = null;
+        int group = groupCount - 1;
+        if (groupStarts[group] == numberCount) {
+            // Group is now empty, remove it.
+            groupCount--;
+            setLeaf(group, BigDecimal.ZERO);
+        } else {
+            updateGroup(group, numbers, operators);
+        }
+    }
+
+    /**
+     * Called when a number was replaced.
+     */
+    void onNumberChanged(int index, @NonNull List<BigDecimal> numbers, @NonNull List<Operator> operators) {
+        int group = findGroup(index);
+        recomputePartials(index, getGroupEnd(group), numbers, operators);
+        updateGroup(group, numbers, operators);
+    }
+
+    /**
+     * Called when an operator between two numbers was replaced.
+     * @return False if the group structure changed and the tree must be rebuilt.
+     */
+    boolean onOperatorChanged(int index, @NonNull Operator old,
+                              @NonNull List<BigDecimal> numbers, @NonNull List<Operator> operators) {
+        if (isGroupStart(old) != isGroupStart(operators.get(index))) {
+            return false;
+        }
+
+        int group = findGroup(index + 1);
+        if (groupStarts[group] != index + 1) {
+            // Operator within a group, combine the terms after it again.
+            recomputePartials(index + 1, getGroupEnd(group), numbers, operators);
+        }
+        updateGroup(group, numbers, operators);
+        return true;
+    }
+
+    private boolean isGroupStart(Operator operator) {
+        return priority && (operator == Operator.ADD || operator == Operator.SUBTRACT);
+    }
+
+    private void recomputePartials(int from, int to, List<BigDecimal> numbers, List<Operator> operators) {
+        for (int i = from; i < to; i++) {
+            computePartial(i, i == 0 || (priority && i == groupStarts[findGroup(i)]), numbers, operators);
+        }
+    }
+
+    private void computePartial(int index, boolean groupStart,
+                                List<BigDecimal> numbers, List<Operator> operators) {
+        BigDecimal number = numbers.get(index);
+        if (groupStart) {
+            partials[index] = number;
+            powers[index] = number;
+            powerStarts[index] = index;
+        } else if (priority && operators.get(index - 1) == Operator.POWER) {
+            // Continue the chain of powers and combine it with the group value before the chain.
+            int start = powerStarts[index - 1];
+            BigDecimal power = apply(powers[index - 1], Operator.POWER, number);
+            powers[index] = power;
+            powerStarts[index] = start;
+            if (start == groupStarts[findGroup(start)]) {
+                partials[index] = power;
+            } else {
+                partials[index] = apply(partials[start - 1], operators.get(start - 1), power);
+            }
+        } else {
+            partials[index] = apply(partials[index - 1], operators.get(index - 1), number);
+            powers[index] = number;
+            powerStarts[index] = index;
+        }
+    }
+
+    /**
+     * Update the leaf of a group from the value of its last number.
+     */
+    private void updateGroup(int group, List<BigDecimal> numbers, List<Operator> operators) {
+        int start = groupStarts[group];
+        BigDecimal value = partials[getGroupEnd(group) - 1];
+        if (!(value instanceof ErrorValue) && start > 0 && operators.get(start - 1) == Operator.SUBTRACT) {
+            value = value.negate();
+        }
+        setLeaf(group, value);
+    }
+
+    private int getGroupEnd(int group) {
+        return group == groupCount - 1 ? numberCount : groupStarts[group + 1];
+    }
+
+    private int findGroup(int index) {
+        int pos = Arrays.binarySearch(groupStarts, 0, groupCount, index);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    private void setLeaf(int group, @NonNull BigDecimal value) {
+        int pos = leafCount + group;
+        sums[pos] = value;
+        pos /= 2;
+        while (pos > 0) {
+            sums[pos] = add(sums[pos * 2], sums[pos * 2 + 1]);
+            pos /= 2;
+        }
+    }
+
+    static BigDecimal add(BigDecimal n1, BigDecimal n2) {
+        if (n1 instanceof ErrorValue) return n1;
+        if (n2 instanceof ErrorValue) return n2;
+        return n1.add(n2);
+    }
+
+    @NonNull
+    private BigDecimal apply(@NonNull BigDecimal n1, Operator operator, @NonNull BigDecimal n2) {
+        return apply(n1, operator, n2, scale, roundingMode, maxDigits);
+    }
+
+    /**
+     * Apply an operator to two numbers, either of which may be an {@link ErrorValue}.
+     * @return The result, or an {@link ErrorValue} if the operation failed.
+     */
+    @NonNull
+    static BigDecimal apply(@NonNull BigDecimal n1, Operator operator, @NonNull BigDecimal n2,
+                            int scale, @NonNull RoundingMode roundingMode, int maxDigits) {
+        if (n1 instanceof ErrorValue) return n1;
+        if (n2 instanceof ErrorValue) return n2;
+        switch (operator) {
+            case ADD:
+            case SUBTRACT:
+                if (Math.max(integerDigits(n1), integerDigits(n2)) + 1
+                        + Math.max(0, Math.max(n1.scale(), n2.scale())) > maxDigits) {
+                    return TOO_LARGE;
+                }
+                return operator == Operator.ADD ? n1.add(n2) : n1.subtract(n2);
+            case MULTIPLY:
+                // Product has at most the digits of both operands.
+                if ((long) n1.precision() + n2.precision() > maxDigits) {
+                    return TOO_LARGE;
+                }
+                return n1.multiply(n2);
+            case DIVIDE:
+                if (n2.signum() == 0) return DIVISION_BY_ZERO;
+                if ((long) integerDigits(n1) - integerDigits(n2) + 1 + scale > maxDigits) {
+                    return TOO_LARGE;
+                }
+                return n1.divide(n2, scale, roundingMode);
+            default:
+                try {
+                    return CalcMath.pow(n1, n2, scale, roundingMode, maxDigits);
+                } catch (Expression.EvaluationException e) {
+                    return e.reason == Expression.EvaluationException.DIVISION_BY_ZERO ? DIVISION_BY_ZERO
+                            : e.reason == Expression.EvaluationException.TOO_LARGE ? TOO_LARGE : INVALID_OPERATION;
+                }
+        }
+    }
+
+    /**
+     * Get the number of digits before the decimal point of a number, negative if it has
+     * leading zeroes after the point. Only the precision and scale are needed for this.
+     */
+    private static int integerDigits(BigDecimal n) {
+        return n.precision() - n.scale();
+    }
+
+    private void ensureNumberCapacity(int capacity) {
+        if (capacity > partials.length) {
+            int newCapacity = Math.max(capacity, partials.length * 2);
+            partials = Arrays.copyOf(partials, newCapacity);
+            powers = Arrays.copyOf(powers, newCapacity);
+            powerStarts = Arrays.copyOf(powerStarts, newCapacity);
+        }
+    }
+
+    private void ensureGroupCapacity(int capacity) {
+        if (capacity > groupStarts.length) {
+            groupStarts = Arrays.copyOf(groupStarts, Math.max(capacity, groupStarts.length * 2));
+        }
+        if (capacity > leafCount) {
+            // Double the number of leaves and compute the sums again.
+            BigDecimal[] leaves = Arrays.copyOfRange(sums, leafCount, leafCount * 2);
+            leafCount *= 2;
+            sums = new BigDecimal[leafCount * 2];
+            Arrays.fill(sums, BigDecimal.ZERO);
+            System.arraycopy(leaves, 0, sums, leafCount, leaves.length);
+            for (int i = leafCount - 1; i > 0; i--) {
+                sums[i] = add(sums[i * 2], sums[i * 2 + 1]);
+            }
+        }
+    }
+
+    /**
+     * Value of a failed operation, kept in place of a result so that it propagates
+     * to the root. It's never used as a number.
+     */
+    static final class ErrorValue extends BigDecimal {
+
+        private static final long serialVersionUID = 1L;
+
+        /** The reason of the error, one of the {@link Expression.EvaluationException} constants. */
+        final int reason;
+
+        ErrorValue(int reason) {
+            super(0);
+            this.reason = reason;
+        }
+    }
+
+}
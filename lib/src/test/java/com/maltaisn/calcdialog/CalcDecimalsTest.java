@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CalcDecimalsTest {
+
+    @Test
+    public void cachedValues() {
+        for (int scale = -2; scale <= CalcDecimals.MAX_SCALE + 2; scale++) {
+            for (long unscaled = -150; unscaled <= 150; unscaled++) {
+                BigDecimal value = CalcDecimals.valueOf(unscaled, scale);
+                // Same value and scale as without the cache.
+                assertEquals(BigDecimal.valueOf(unscaled, scale), value);
+                assertEquals(value, CalcDecimals.valueOf(BigInteger.valueOf(unscaled), scale));
+
+                boolean cached = scale >= 0 && scale <= CalcDecimals.MAX_SCALE
+                        && Math.abs(unscaled) <= CalcDecimals.MAX_UNSCALED;
+                if (cached) {
+                    assertSame(value, CalcDecimals.valueOf(unscaled, scale));
+                }
+            }
+        }
+
+        // Equal values with different scales are different.
+        assertNotSame(CalcDecimals.valueOf(5, 0), CalcDecimals.valueOf(50, 1));
+        assertEquals(new BigDecimal("1E+30"), CalcDecimals.valueOf(BigInteger.ONE, -30));
+        BigInteger large = BigInteger.TEN.pow(30);
+        assertEquals(new BigDecimal(large, 2), CalcDecimals.valueOf(large, 2));
+    }
+
+    @Test
+    public void stripTrailingZeros() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            BigDecimal value;
+            if (i % 3 == 0) {
+                value = BigDecimal.valueOf(random.nextInt(2001) - 1000, random.nextInt(6) - 2);
+            } else if (i % 3 == 1) {
+                value = BigDecimal.valueOf(random.nextLong(), random.nextInt(30) - 10);
+            } else {
+                value = new BigDecimal(new BigInteger(100, random), random.nextInt(30));
+            }
+            BigDecimal stripped = CalcDecimals.stripTrailingZeros(value);
+            assertEquals(value.stripTrailingZeros(), stripped);
+        }
+
+        // Small results are always the same instance, others without zeroes aren't copied.
+        assertSame(CalcDecimals.valueOf(25, 1), CalcDecimals.stripTrailingZeros(new BigDecimal("2.5000")));
+        assertSame(CalcDecimals.valueOf(25, 1), CalcDecimals.stripTrailingZeros(new BigDecimal("2.5")));
+        assertSame(BigDecimal.ZERO, CalcDecimals.stripTrailingZeros(new BigDecimal("0.000")));
+        BigDecimal value = new BigDecimal("123.4567");
+        assertSame(value, CalcDecimals.stripTrailingZeros(value));
+    }
+
+    @Test
+    public void unscaledLong() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            long unscaled = random.nextLong() % 1000000000000000000L;
+            if (i % 2 == 0) unscaled %= 1000;
+            BigDecimal value = BigDecimal.valueOf(unscaled, random.nextInt(30) - 10);
+            assertEquals(unscaled, CalcDecimals.unscaledLong(value));
+        }
+        assertEquals(75, CalcDecimals.unscaledLong(CalcDecimals.valueOf(75, 2)));
+        assertEquals(-12345, CalcDecimals.unscaledLong(new BigDecimal("-1.2345E+10")));
+    }
+
+    @Test
+    public void unscaledLongAllocatesLess() {
+        // Integers and cached values, outside of the range of cached BigIntegers.
+        BigDecimal[] values = {new BigDecimal("1249"), new BigDecimal("-5000"),
+                new BigDecimal("123456789012"), new BigDecimal("0.75"), new BigDecimal("-0.99")};
+        ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long sum = 0;
+        long start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            for (BigDecimal value : values) {
+                sum += value.unscaledValue().longValue();
+            }
+        }
+        long unscaledValueBytes = bean.getThreadAllocatedBytes(thread) - start;
+
+        start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            for (BigDecimal value : values) {
+                sum -= CalcDecimals.unscaledLong(value);
+            }
+        }
+        long unscaledLongBytes = bean.getThreadAllocatedBytes(thread) - start;
+
+        assertEquals(0, sum);
+        assertTrue(unscaledValueBytes + " bytes with unscaledValue(), " + unscaledLongBytes
+                + " bytes with unscaledLong()", unscaledLongBytes < unscaledValueBytes / 10);
+    }
+
+    @Test
+    public void typeAndEraseDigits() {
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            // Type a random value digit by digit, compare with the parsed text.
+            boolean negative = random.nextBoolean();
+            StringBuilder text = new StringBuilder();
+            BigDecimal value = null;
+            int scale = -1;
+            int length = random.nextInt(30) + 1;
+            int pointPos = random.nextInt(length + 5);
+            for (int j = 0; j < length; j++) {
+                if (j == pointPos) {
+                    text.append('.');
+                    if (value == null) value = BigDecimal.ZERO;
+                    scale = 0;
+                }
+                int digit = random.nextInt(10);
+                text.append(digit);
+                int newScale = scale >= 0 ? scale + 1 : -1;
+                value = CalcDecimals.appendDigit(value, Math.max(0, scale), digit, Math.max(0, newScale));
+                scale = newScale;
+                if (negative && value.signum() > 0) {
+                    // Negated with the sign button once it's not zero.
+                    value = value.negate();
+                }
+                assertEquals(text.toString(), parse(text, negative), value);
+            }
+
+            // Erase the digits typed, up to the first one.
+            while (text.length() > 1) {
+                if (text.charAt(text.length() - 1) == '.') {
+                    scale = -1;
+                } else {
+                    value = CalcDecimals.eraseDigit(value, Math.max(0, scale));
+                    if (scale > 0) scale--;
+                }
+                text.deleteCharAt(text.length() - 1);
+                if (text.toString().equals(".")) break;
+                assertEquals(text.toString(), parse(text, negative), value);
+            }
+        }
+    }
+
+    @Test
+    public void typedValuesAreCached() {
+        // Typing "0.75" twice gives the same instances, nothing is allocated.
+        BigDecimal first = type(0, 7, 5);
+        BigDecimal second = type(0, 7, 5);
+        assertEquals(new BigDecimal("0.75"), first);
+        assertSame(first, second);
+
+        // Larger values are still typed without parsing text.
+        assertEquals(new BigDecimal("9.875"), type(9, 8, 7, 5));
+    }
+
+    @Test
+    public void evaluatedResultsAreCached() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("0.75"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("0.25"));
+
+        BigDecimal result = expr.evaluate(false, 8, RoundingMode.HALF_UP);
+        assertEquals(BigDecimal.ONE, result);
+
+        expr.clear();
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("2"));
+        assertSame(expr.evaluate(false, 8, RoundingMode.HALF_UP), CalcDecimals.valueOf(15, 1));
+    }
+
+    private static BigDecimal parse(CharSequence text, boolean negative) {
+        BigDecimal value = new BigDecimal(text.toString());
+        return negative ? value.negate() : value;
+    }
+
+    /**
+     * Type an integer digit followed by fraction digits.
+     */
+    private static BigDecimal type(int intDigit, int... fracDigits) {
+        BigDecimal value = CalcDecimals.appendDigit(null, 0, intDigit, 0);
+        int scale = 0;
+        for (int digit : fracDigits) {
+            value = CalcDecimals.appendDigit(value, scale, digit, scale + 1);
+            scale++;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CalcHistoryIndexTest {
+
+    @Test
+    public void rangeSearch() {
+        CalcHistoryIndex index = createIndex();
+
+        // Newest first, positions from different values are merged.
+        assertArrayEquals(new long[]{50, 40, 30, 20, 10}, find(index, "1", "5", false, Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[]{50, 40, 20}, find(index, "3", "3.5", false, Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[]{40, 20}, find(index, "3", "3.5", true, Long.MAX_VALUE, 10));
+
+        // Scale doesn't matter.
+        assertArrayEquals(new long[]{50, 40, 20}, find(index, "3.00", "3.00", false, Long.MAX_VALUE, 10));
+
+        // Empty or inverted range.
+        assertArrayEquals(new long[0], find(index, "100", "200", false, Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[0], find(index, "5", "1", false, Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void rangeSearchPaged() {
+        CalcHistoryIndex index = createIndex();
+        assertArrayEquals(new long[]{50, 40}, find(index, "1", "5", false, Long.MAX_VALUE, 2));
+        assertArrayEquals(new long[]{30, 20}, find(index, "1", "5", false, 40, 2));
+        assertArrayEquals(new long[]{10}, find(index, "1", "5", false, 20, 2));
+        assertArrayEquals(new long[0], find(index, "1", "5", false, 10, 2));
+    }
+
+    @Test
+    public void recordNotFoundTwice() {
+        // Record containing a value more than once, and values in the range more than once.
+        CalcHistoryIndex index = new CalcHistoryIndex();
+        index.add(10, expression(2, 2, 3), new BigDecimal(7));
+        index.add(20, expression(2, 3, 2), new BigDecimal(7));
+        assertArrayEquals(new long[]{20, 10}, find(index, "2", "3", false, Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[]{20}, find(index, "2", "7", false, Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    public void writeRead() throws IOException {
+        CalcHistoryIndex index = createIndex();
+        index.indexedLength = 60;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        CalcHistoryIndex read = CalcHistoryIndex.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(60, read.indexedLength);
+        assertArrayEquals(find(index, "0", "10", false, Long.MAX_VALUE, 10),
+                find(read, "0", "10", false, Long.MAX_VALUE, 10));
+        assertArrayEquals(find(index, "0", "10", true, Long.MAX_VALUE, 10),
+                find(read, "0", "10", true, Long.MAX_VALUE, 10));
+    }
+
+    /**
+     * Records at positions 10 to 50, each with the sum of two numbers.
+     */
+    private static CalcHistoryIndex createIndex() {
+        CalcHistoryIndex index = new CalcHistoryIndex();
+        index.add(10, expression(1, 1), new BigDecimal(2));
+        index.add(20, expression(1, 2), new BigDecimal(3));
+        index.add(30, expression(2, 2), new BigDecimal(4));
+        index.add(40, expression(1, 2), new BigDecimal(3));
+        index.add(50, expression(2, 3), new BigDecimal(5));
+        return index;
+    }
+
+    private static Expression expression(int... numbers) {
+        Expression expr = new Expression();
+        for (int i = 0; i < numbers.length; i++) {
+            if (i > 0) expr.addOperator(Expression.Operator.ADD);
+            expr.addNumber(new BigDecimal(numbers[i]));
+        }
+        return expr;
+    }
+
+    private static long[] find(CalcHistoryIndex index, String min, String max,
+                               boolean resultsOnly, long before, int limit) {
+        return index.find(new BigDecimal(min), new BigDecimal(max), resultsOnly, before, limit);
+    }
+
+}
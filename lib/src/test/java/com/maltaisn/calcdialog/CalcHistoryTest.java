@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalcHistoryTest {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int INDEX_MAGIC = 0x43414c49;
+    private static final int VERSION = 2;
+
+    /** Callbacks are called on the history thread. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("calc_history", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "test.log");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void pagesNewestFirst() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 5, 100);
+
+        Page page = loadPage(history, CalcHistory.PAGE_NEWEST, 2);
+        assertEquals(Arrays.asList(4, 3), page.results);
+        page = loadPage(history, page.next, 2);
+        assertEquals(Arrays.asList(2, 1), page.results);
+        page = loadPage(history, page.next, 2);
+        assertEquals(Arrays.asList(0), page.results);
+        assertEquals(CalcHistory.PAGE_NONE, page.next);
+    }
+
+    @Test
+    public void tornTailRecovered() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 3, 100);
+        loadPage(history, CalcHistory.PAGE_NEWEST, 10);
+
+        // Process killed while writing a record: length was written but not all the payload.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        raf.seek(length);
+        raf.writeInt(50);
+        raf.write(new byte[10]);
+        raf.close();
+
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        assertEquals(Arrays.asList(2, 1, 0), loadPage(history, CalcHistory.PAGE_NEWEST, 10).results);
+        assertEquals(length, file.length());
+
+        addEntries(history, 3, 4, 100);
+        assertEquals(Arrays.asList(3, 2, 1, 0), loadPage(history, CalcHistory.PAGE_NEWEST, 10).results);
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 5, 3);
+        Page page = loadPage(history, CalcHistory.PAGE_NEWEST, 2);
+        assertEquals(Arrays.asList(4, 3), page.results);
+        assertTrue(page.next != CalcHistory.PAGE_NONE);
+
+        // Log has twice the maximum size, only the newest entries are kept.
+        addEntries(history, 5, 6, 3);
+        assertEquals(Arrays.asList(5, 4, 3), loadPage(history, CalcHistory.PAGE_NEWEST, 10).results);
+
+        // Position returned before compaction isn't used on the new log.
+        page = loadPage(history, page.next, 2);
+        assertTrue(page.results.isEmpty());
+        assertEquals(CalcHistory.PAGE_NONE, page.next);
+
+        // Search uses an index built from the compacted log.
+        assertEquals(Arrays.asList(4), search(history, 4).results);
+        assertTrue(search(history, 1).results.isEmpty());
+    }
+
+    @Test
+    public void corruptedPayloadSkipped() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 3, 100);
+        loadPage(history, CalcHistory.PAGE_NEWEST, 10);
+
+        // Write an invalid length for the result of the second record, framing is still valid.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long start = getRecordStart(raf, 1);
+        raf.seek(start + 4 + 8 + 4);
+        raf.writeInt(-5);
+        raf.close();
+
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        Page page = loadPage(history, CalcHistory.PAGE_NEWEST, 10);
+        assertEquals(Arrays.asList(2, 0), page.results);
+        assertEquals(CalcHistory.PAGE_NONE, page.next);
+        assertEquals(Arrays.asList(0), search(history, 0).results);
+        assertTrue(search(history, 1).results.isEmpty());
+    }
+
+    @Test
+    public void corruptedFramingRejected() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 3, 100);
+        loadPage(history, CalcHistory.PAGE_NEWEST, 10);
+
+        // Leading length of the second record doesn't match its trailing length.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long start = getRecordStart(raf, 1);
+        raf.seek(start);
+        int length = raf.readInt();
+        raf.seek(start);
+        raf.writeInt(length - 1);
+        raf.close();
+
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        Page page = loadPage(history, CalcHistory.PAGE_NEWEST, 10);
+        assertEquals(Arrays.asList(2), page.results);
+        assertEquals(CalcHistory.PAGE_NONE, page.next);
+
+        // Entries can still be added after the failure.
+        addEntries(history, 3, 4, 100);
+        assertEquals(Arrays.asList(3, 2), loadPage(history, CalcHistory.PAGE_NEWEST, 10).results);
+    }
+
+    @Test
+    public void indexSnapshotChecksumRejected() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 3, 100);
+        assertEquals(Arrays.asList(1), search(history, 1).results);
+
+        // Snapshot pointing 1 to the record of 2, with a wrong checksum.
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        CalcHistoryIndex index = new CalcHistoryIndex();
+        index.add(getRecordStart(raf, 2), new Expression(), BigDecimal.ONE);
+        index.indexedLength = raf.length();
+        raf.close();
+        writeIndexSnapshot(index, false);
+
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        assertEquals(Arrays.asList(1), search(history, 1).results);
+        assertEquals(Arrays.asList(2), search(history, 2).results);
+    }
+
+    @Test
+    public void indexRebuilt() throws Exception {
+        CalcHistory history = new CalcHistory(file, DIRECT_EXECUTOR);
+        addEntries(history, 0, 3, 100);
+        search(history, 1);
+
+        // Valid snapshot whose positions don't match the log.
+        CalcHistoryIndex index = new CalcHistoryIndex();
+        index.add(file.length() + 100, new Expression(), BigDecimal.ONE);
+        index.indexedLength = file.length();
+        writeIndexSnapshot(index, true);
+
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        assertEquals(Arrays.asList(1), search(history, 1).results);
+
+        // Rebuilt index is saved.
+        history = new CalcHistory(file, DIRECT_EXECUTOR);
+        assertEquals(Arrays.asList(2), search(history, 2).results);
+        assertEquals(Arrays.asList(1), search(history, 1).results);
+    }
+
+    /**
+     * Add entries whose results are the numbers from {@code from} to {@code to}, exclusive.
+     */
+    private static void addEntries(CalcHistory history, int from, int to, int maxSize) {
+        for (int i = from; i < to; i++) {
+            Expression expr = new Expression();
+            expr.addNumber(new BigDecimal(i));
+            expr.addOperator(Expression.Operator.ADD);
+            expr.addNumber(BigDecimal.ZERO);
+            history.add(expr, new BigDecimal(i), maxSize);
+        }
+    }
+
+    private static long getRecordStart(RandomAccessFile raf, int record) throws IOException {
+        long position = HEADER_SIZE;
+        for (int i = 0; i < record; i++) {
+            raf.seek(position);
+            position += 8 + raf.readInt();
+        }
+        return position;
+    }
+
+    private void writeIndexSnapshot(CalcHistoryIndex index, boolean validChecksum) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(VERSION);
+        index.writeTo(out);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(validChecksum ? crc.getValue() : crc.getValue() + 1);
+
+        FileOutputStream fos = new FileOutputStream(file.getPath() + ".idx");
+        try {
+            fos.write(bytes.toByteArray());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static Page loadPage(CalcHistory history, long position, int size) throws InterruptedException {
+        Page page = new Page();
+        history.loadPage(position, size, page);
+        page.await();
+        return page;
+    }
+
+    private static Page search(CalcHistory history, int value) throws InterruptedException {
+        Page page = new Page();
+        BigDecimal number = new BigDecimal(value);
+        history.search(number, number, true, CalcHistory.PAGE_NEWEST, 10, page);
+        page.await();
+        return page;
+    }
+
+    private static final class Page implements CalcHistory.PageCallback {
+
+        final List<Integer> results = new ArrayList<>();
+        long next;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onPageLoaded(List<CalcHistory.Entry> entries, long next) {
+            for (CalcHistory.Entry entry : entries) {
+                results.add(entry.result.intValueExact());
+            }
+            this.next = next;
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+}
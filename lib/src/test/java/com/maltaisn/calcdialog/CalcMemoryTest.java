@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CalcMemoryTest {
+
+    @Test
+    public void sum() {
+        CalcMemory memory = new CalcMemory();
+        assertTrue(memory.isZero());
+        memory.add(new BigDecimal("12.5"));
+        memory.add(new BigDecimal("0.25"));
+        memory.subtract(new BigDecimal("3"));
+        assertValue("9.75", memory);
+        assertFalse(memory.isZero());
+
+        // Same value added again.
+        BigDecimal value = new BigDecimal("0.25");
+        memory.add(value);
+        memory.add(value);
+        memory.subtract(value);
+        assertValue("10", memory);
+
+        memory.clear();
+        assertTrue(memory.isZero());
+    }
+
+    @Test
+    public void sumOverflowsLong() {
+        // Values fit in a long, but their sum overflows after a few additions.
+        CalcMemory memory = new CalcMemory();
+        BigDecimal value = new BigDecimal("999999999999999999");
+        BigDecimal expected = BigDecimal.ZERO;
+        for (int i = 0; i < 10; i++) {
+            memory.add(value);
+            expected = expected.add(value);
+            assertValue(expected, memory);
+        }
+        for (int i = 0; i < 10; i++) {
+            memory.subtract(value);
+        }
+        assertTrue(memory.isZero());
+
+        // Negative sum overflows.
+        memory.clear();
+        for (int i = 0; i < 10; i++) {
+            memory.subtract(value);
+        }
+        assertValue(value.multiply(BigDecimal.TEN).negate(), memory);
+
+        // Value with too many digits for a long.
+        memory.clear();
+        BigDecimal max = BigDecimal.valueOf(Long.MAX_VALUE);
+        memory.add(max);
+        memory.add(max);
+        assertValue(max.add(max), memory);
+
+        // Back to a long sum after clearing.
+        memory.clear();
+        memory.add(BigDecimal.ONE);
+        assertValue("1", memory);
+    }
+
+    @Test
+    public void scaleOverflowsLong() {
+        // Sum fits but unscaled values overflow when brought to the same scale.
+        CalcMemory memory = new CalcMemory();
+        memory.add(new BigDecimal("999999999999999999"));
+        memory.add(new BigDecimal("0.1"));
+        assertValue("999999999999999999.1", memory);
+
+        // Negative scale is brought to scale 0.
+        memory.clear();
+        memory.add(new BigDecimal("5E+3"));
+        memory.add(new BigDecimal("1E+30"));
+        memory.add(new BigDecimal("0.5"));
+        assertValue("1000000000000000000000000005000.5", memory);
+    }
+
+    @Test
+    public void valueDoesntFitLong() {
+        // Values with too many digits, or too many fraction digits, aren't added as longs.
+        CalcMemory memory = new CalcMemory();
+        BigDecimal large = new BigDecimal(BigInteger.TEN.pow(30).add(BigInteger.ONE));
+        memory.add(large);
+        memory.add(BigDecimal.ONE);
+        assertValue(large.add(BigDecimal.ONE), memory);
+
+        memory.clear();
+        memory.add(new BigDecimal("1E-25"));
+        memory.add(new BigDecimal("2"));
+        assertValue("2.0000000000000000000000001", memory);
+    }
+
+    @Test
+    public void randomSums() {
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            CalcMemory memory = new CalcMemory();
+            BigDecimal expected = BigDecimal.ZERO;
+            BigDecimal last = null;
+            for (int j = 0; j < 50; j++) {
+                BigDecimal value;
+                if (last != null && random.nextInt(3) == 0) {
+                    value = last;
+                } else if (random.nextInt(10) == 0) {
+                    value = BigDecimal.valueOf(random.nextLong(), random.nextInt(40) - 10);
+                } else {
+                    value = BigDecimal.valueOf(random.nextInt(100000) - 50000, random.nextInt(5));
+                }
+                last = value;
+                if (random.nextBoolean()) {
+                    memory.add(value);
+                    expected = expected.add(value);
+                } else {
+                    memory.subtract(value);
+                    expected = expected.subtract(value);
+                }
+                assertValue(expected, memory);
+            }
+        }
+    }
+
+    private static void assertValue(String expected, CalcMemory memory) {
+        assertValue(new BigDecimal(expected), memory);
+    }
+
+    private static void assertValue(BigDecimal expected, CalcMemory memory) {
+        BigDecimal value = memory.getValue();
+        assertEquals(expected + " != " + value, 0, expected.compareTo(value));
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CalcNumberFormatsTest {
+
+    @Test
+    public void keyEquality() {
+        DecimalFormat format = createFormat(Locale.US, 3);
+        CalcNumberFormats.Key key = new CalcNumberFormats.Key(format);
+        CalcNumberFormats.Key same = new CalcNumberFormats.Key(createFormat(Locale.US, 3));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+
+        // Any difference in configuration gives a different key.
+        assertFalse(key.equals(new CalcNumberFormats.Key(createFormat(Locale.FRANCE, 3))));
+        assertFalse(key.equals(new CalcNumberFormats.Key(createFormat(Locale.US, 4))));
+        DecimalFormat other = createFormat(Locale.US, 3);
+        other.setRoundingMode(RoundingMode.DOWN);
+        assertFalse(key.equals(new CalcNumberFormats.Key(other)));
+        other = createFormat(Locale.US, 3);
+        other.setGroupingUsed(false);
+        assertFalse(key.equals(new CalcNumberFormats.Key(other)));
+        other = createFormat(Locale.US, 3);
+        other.setMinimumFractionDigits(2);
+        assertFalse(key.equals(new CalcNumberFormats.Key(other)));
+    }
+
+    @Test
+    public void equalConfigurationsShared() {
+        DecimalFormat format = createFormat(Locale.CANADA, 5);
+        NumberFormat shared = CalcNumberFormats.share(format);
+        assertNotSame(format, shared);
+        assertEquals(format, shared);
+        assertSame(shared, CalcNumberFormats.share(createFormat(Locale.CANADA, 5)));
+        assertNotSame(shared, CalcNumberFormats.share(createFormat(Locale.CANADA_FRENCH, 5)));
+
+        // Format isn't kept, modifying it doesn't change the shared format.
+        format.setMaximumFractionDigits(6);
+        assertEquals(5, shared.getMaximumFractionDigits());
+        assertNotSame(shared, CalcNumberFormats.share(format));
+    }
+
+    @Test
+    public void minimumFractionDigitsVariant() {
+        NumberFormat shared = CalcNumberFormats.share(createFormat(Locale.UK, 4));
+        NumberFormat variant = CalcNumberFormats.withMinimumFractionDigits(shared, 2);
+        assertEquals(0, shared.getMinimumFractionDigits());
+        assertEquals(2, variant.getMinimumFractionDigits());
+        assertSame(variant, CalcNumberFormats.withMinimumFractionDigits(shared, 2));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        NumberFormat shared = CalcNumberFormats.share(createFormat(Locale.GERMANY, 100));
+
+        // Format used again is kept, while others are added until the cache is full.
+        for (int i = 1; i < CalcNumberFormats.MAX_SIZE; i++) {
+            CalcNumberFormats.share(createFormat(Locale.GERMANY, 100 + i));
+        }
+        assertSame(shared, CalcNumberFormats.share(createFormat(Locale.GERMANY, 100)));
+
+        // Format is evicted once the cache is filled with other formats.
+        for (int i = 0; i < CalcNumberFormats.MAX_SIZE; i++) {
+            CalcNumberFormats.share(createFormat(Locale.GERMANY, 200 + i));
+        }
+        assertNotSame(shared, CalcNumberFormats.share(createFormat(Locale.GERMANY, 100)));
+    }
+
+    private static DecimalFormat createFormat(Locale locale, int maxFractionDigits) {
+        DecimalFormat format = (DecimalFormat) NumberFormat.getInstance(locale);
+        format.setMaximumFractionDigits(maxFractionDigits);
+        return format;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CalcPasteParserTest {
+
+    @Test
+    public void localizedNumber() {
+        CalcPasteParser.Result result = parse(Locale.FRANCE, "1 249,50 €");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("1249.50")), result.numbers);
+        assertEquals(2, result.lastScale);
+
+        result = parse(Locale.US, "1,234,567.5");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("1234567.5")), result.numbers);
+    }
+
+    @Test
+    public void expression() {
+        CalcPasteParser.Result result = parse(Locale.US, "120 × 1.15 − 20");
+        assertNotNull(result);
+        assertEquals(Arrays.asList(new BigDecimal("120"), new BigDecimal("1.15"),
+                new BigDecimal("20")), result.numbers);
+        assertEquals(Arrays.asList(Expression.Operator.MULTIPLY, Expression.Operator.SUBTRACT),
+                result.operators);
+        assertEquals(-1, result.lastScale);
+
+        // Text ending with an operator.
+        result = parse(Locale.US, "-3 *");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("-3")), result.numbers);
+        assertEquals(Collections.singletonList(Expression.Operator.MULTIPLY), result.operators);
+    }
+
+    @Test
+    public void signs() {
+        CalcPasteParser.Result result = parse(Locale.US, "+5");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("5")), result.numbers);
+
+        result = parse(Locale.US, "2 - -5");
+        assertNotNull(result);
+        assertEquals(Arrays.asList(new BigDecimal("2"), new BigDecimal("-5")), result.numbers);
+    }
+
+    @Test
+    public void wrongGrouping() {
+        assertNull(parse(Locale.US, "12,34"));
+        assertNull(parse(Locale.US, "1,2,3"));
+        assertNull(parse(Locale.US, "1234,567"));
+        assertNull(parse(Locale.US, "1,234,56.5"));
+        assertNull(parse(Locale.US, "1,23 + 4"));
+        assertNull(parse(Locale.GERMANY, "1,5 + 2.5"));
+
+        CalcPasteParser.Result result = parse(Locale.GERMANY, "1,5 + 2.500");
+        assertNotNull(result);
+        assertEquals(Arrays.asList(new BigDecimal("1.5"), new BigDecimal("2500")), result.numbers);
+    }
+
+    @Test
+    public void groupingNotUsed() {
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        nbFormat.setGroupingUsed(false);
+        CalcPasteParser.Result result = new CalcPasteParser(nbFormat, 10, true).parse("1.5");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("1.5")), result.numbers);
+    }
+
+    @Test
+    public void tooManyIntegerDigits() {
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        CalcPasteParser parser = new CalcPasteParser(nbFormat, 5, true);
+        assertNotNull(parser.parse("12,345.678"));
+        assertNull(parser.parse("123,456"));
+        assertNull(parser.parse("2 + 123456"));
+    }
+
+    @Test
+    public void fractionRounded() {
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        nbFormat.setMaximumFractionDigits(2);
+        nbFormat.setRoundingMode(RoundingMode.HALF_UP);
+        CalcPasteParser.Result result = new CalcPasteParser(nbFormat, 10, true).parse("2.345");
+        assertNotNull(result);
+        assertEquals(Collections.singletonList(new BigDecimal("2.35")), result.numbers);
+        assertEquals(2, result.lastScale);
+    }
+
+    @Test
+    public void powerNotAllowed() {
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        assertNotNull(new CalcPasteParser(nbFormat, 10, true).parse("2 ^ 3"));
+        assertNull(new CalcPasteParser(nbFormat, 10, false).parse("2 ^ 3"));
+    }
+
+    private static CalcPasteParser.Result parse(Locale locale, String text) {
+        return new CalcPasteParser(NumberFormat.getInstance(locale), 10, true).parse(text);
+    }
+
+}
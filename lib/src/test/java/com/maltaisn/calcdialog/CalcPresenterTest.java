@@ -0,0 +1,235 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CalcPresenterTest {
+
+    /** Error code shown for a division by zero. */
+    private static final int ERROR_DIV_ZERO = 0;
+
+    private CalcView view;
+    private CalcPresenter presenter;
+
+    @Before
+    public void setUp() {
+        CalcSettings settings = new CalcSettings();
+        settings.setShouldEvaluateOnOperation(false);
+        settings.setOrderOfOperationsApplied(true);
+
+        view = mock(CalcView.class);
+        when(view.getSettings()).thenReturn(settings);
+        when(view.getStateStream()).thenReturn(new CalcStateStream());
+
+        presenter = new CalcPresenter();
+        presenter.attach(view, null, null);
+    }
+
+    @Test
+    public void divisionByZeroBeforePower() {
+        // 5 ÷ 0 ^ is reported when ^ is pressed, like when evaluating on operation.
+        type(5);
+        presenter.onOperatorBtnClicked(Expression.Operator.DIVIDE);
+        type(0);
+        verify(view, never()).showErrorText(anyInt());
+        presenter.onOperatorBtnClicked(Expression.Operator.POWER);
+        verify(view).showErrorText(ERROR_DIV_ZERO);
+    }
+
+    @Test
+    public void divisionByPowerUnderflowingToZero() {
+        // 5 ÷ 10 ^ -10 + divides by zero at 8 fraction digits, reported when + is pressed.
+        type(5);
+        presenter.onOperatorBtnClicked(Expression.Operator.DIVIDE);
+        type(1, 0);
+        presenter.onOperatorBtnClicked(Expression.Operator.POWER);
+        type(1, 0);
+        presenter.onSignBtnClicked();
+        verify(view, never()).showErrorText(anyInt());
+        presenter.onOperatorBtnClicked(Expression.Operator.ADD);
+        verify(view).showErrorText(ERROR_DIV_ZERO);
+    }
+
+    @Test
+    public void groupKeptWhenErased() {
+        view.getSettings().setExpressionEditable(true);
+        presenter = new CalcPresenter();
+        presenter.attach(view, null, null);
+
+        final CalcState[] last = new CalcState[1];
+        view.getStateStream().subscribe(new CalcStateStream.Subscriber() {
+            @Override
+            public void onStateChanged(@NonNull CalcState state) {
+                last[0] = state;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+
+        // 2 × (3 + 4) +
+        type(2);
+        presenter.onOperatorBtnClicked(Expression.Operator.MULTIPLY);
+        presenter.onOpenParenthesisBtnClicked();
+        type(3);
+        presenter.onOperatorBtnClicked(Expression.Operator.ADD);
+        type(4);
+        presenter.onCloseParenthesisBtnClicked();
+        presenter.onOperatorBtnClicked(Expression.Operator.ADD);
+        presenter.publishState();
+        assertEquals("2 × (3 + 4) +", last[0].getExpression());
+
+        // Erasing the operator makes the group the current value again, then reopens it.
+        // The first erase only makes the empty value after the operator editable.
+        presenter.onErasedOnce();
+        presenter.onErasedOnce();
+        presenter.publishState();
+        assertEquals("2 × (3 + 4)", last[0].getExpression());
+        presenter.onErasedOnce();
+        presenter.publishState();
+        assertEquals("2 × (3 +", last[0].getExpression());
+        assertEquals(new BigDecimal("4"), last[0].getValue());
+
+        presenter.onCloseParenthesisBtnClicked();
+        presenter.onEqualBtnClicked();
+        presenter.publishState();
+        assertEquals(new BigDecimal("14"), last[0].getValue());
+    }
+
+    @Test
+    public void expressionSpilledAboveMaxSize() throws IOException {
+        File dir = createTempDir();
+        try {
+            Expression expr = createExpression(BigDecimal.ONE, BigDecimal.TEN);
+            assertNull(CalcPresenter.spillExpression(expr, 1000, 1000, dir));
+            assertEquals(0, dir.list().length);
+
+            File file = CalcPresenter.spillExpression(expr, 1001, 1000, dir);
+            assertNotNull(file);
+            assertEquals(dir, file.getParentFile());
+            assertTrue(file.exists());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void spilledExpressionReadBack() throws IOException {
+        File dir = createTempDir();
+        try {
+            // Unscaled value longer than 65535 bytes, but under the number size limit.
+            BigDecimal large = new BigDecimal(BigInteger.ONE.shiftLeft(600000).negate(), 3);
+            Expression expr = createExpression(new BigDecimal("1.25"), large, BigDecimal.TEN);
+
+            File file = CalcPresenter.spillExpression(expr, 1, 0, dir);
+            assertNotNull(file);
+            Expression read = CalcPresenter.readExpressionFromFile(file);
+            assertNotNull(read);
+            assertEquals(expr.numbers, read.numbers);
+            assertEquals(expr.operators, read.operators);
+
+            // File is only read once.
+            assertFalse(file.exists());
+            assertNull(CalcPresenter.readExpressionFromFile(file));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void expressionTooLargeNotSpilled() throws IOException {
+        File dir = createTempDir();
+        try {
+            // Unscaled value longer than the number size limit isn't written, nor left half written.
+            BigDecimal tooLarge = new BigDecimal(BigInteger.ONE.shiftLeft(8 * (1 << 20)));
+            Expression expr = createExpression(BigDecimal.ONE, tooLarge);
+            assertNull(CalcPresenter.spillExpression(expr, 1, 0, dir));
+            assertEquals(0, dir.list().length);
+
+            // Number length over the limit is rejected when reading.
+            File file = new File(dir, "expression");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                out.writeInt(1);
+                out.writeInt(0);
+                out.writeInt(Integer.MAX_VALUE);
+            }
+            assertNull(CalcPresenter.readExpressionFromFile(file));
+            assertFalse(file.exists());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    private static Expression createExpression(BigDecimal... numbers) {
+        Expression expr = new Expression();
+        for (int i = 0; i < numbers.length; i++) {
+            if (i > 0) expr.addOperator(Expression.Operator.MULTIPLY);
+            expr.addNumber(numbers[i]);
+        }
+        return expr;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("calc_spill", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        return dir;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private void type(int... digits) {
+        for (int digit : digits) {
+            presenter.onDigitBtnClicked(digit);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CalcStateStreamTest {
+
+    private CalcStateStream stream;
+    private QueueExecutor executor;
+    private List<String> received;
+
+    @Before
+    public void setUp() {
+        stream = new CalcStateStream();
+        executor = new QueueExecutor();
+        received = new ArrayList<>();
+    }
+
+    @Test
+    public void currentStateOnSubscribe() {
+        stream.setProducer(new Runnable() {
+            @Override
+            public void run() {
+                stream.emit(BigDecimal.ONE, "1", -1);
+            }
+        });
+        stream.subscribe(new RecordingSubscriber(), executor);
+        executor.runAll();
+        assertEquals(Arrays.asList("1"), received);
+
+        // Second subscriber gets the last state without it being produced again.
+        stream.setProducer(null);
+        stream.subscribe(new RecordingSubscriber(), executor);
+        executor.runAll();
+        assertEquals(Arrays.asList("1", "1"), received);
+    }
+
+    @Test
+    public void pendingStateConflated() {
+        stream.subscribe(new RecordingSubscriber(), executor);
+        stream.emit(BigDecimal.ONE, "1", -1);
+        stream.emit(BigDecimal.TEN, "1 +", -1);
+        stream.emit(null, "1 + 2", 0);
+
+        // Only one delivery is scheduled, with the latest state.
+        assertEquals(1, executor.queue.size());
+        executor.runAll();
+        assertEquals(Arrays.asList("1 + 2"), received);
+    }
+
+    @Test
+    public void rescheduledWhenEmittedDuringDelivery() {
+        stream.subscribe(new RecordingSubscriber() {
+            @Override
+            public void onStateChanged(@NonNull CalcState state) {
+                super.onStateChanged(state);
+                if (received.size() == 1) {
+                    // States emitted while handling a state, only the last is delivered after.
+                    stream.emit(BigDecimal.ONE, "2", -1);
+                    stream.emit(BigDecimal.ONE, "3", -1);
+                    assertTrue(executor.queue.isEmpty());
+                }
+            }
+        }, executor);
+        stream.emit(BigDecimal.ONE, "1", -1);
+
+        executor.runNext();
+        assertEquals(Arrays.asList("1"), received);
+        assertEquals(1, executor.queue.size());
+        executor.runNext();
+        assertEquals(Arrays.asList("1", "3"), received);
+        assertTrue(executor.queue.isEmpty());
+    }
+
+    @Test
+    public void sameStateNotEmitted() {
+        stream.subscribe(new RecordingSubscriber(), executor);
+        stream.emit(new BigDecimal("1.5"), "1.5", -1);
+        executor.runAll();
+        stream.emit(new BigDecimal("1.5"), "1.5", -1);
+        assertTrue(executor.queue.isEmpty());
+        assertEquals(Arrays.asList("1.5"), received);
+    }
+
+    @Test
+    public void noDeliveryAfterUnsubscribe() {
+        CalcStateStream.Subscription subscription = stream.subscribe(new RecordingSubscriber(), executor);
+        stream.emit(BigDecimal.ONE, "1", -1);
+        subscription.unsubscribe();
+        executor.runAll();
+        assertTrue(received.isEmpty());
+
+        // Nothing is emitted without subscribers.
+        stream.emit(BigDecimal.TEN, "10", -1);
+        assertTrue(executor.queue.isEmpty());
+    }
+
+    @Test
+    public void errorState() {
+        final CalcState[] last = new CalcState[1];
+        stream.subscribe(new CalcStateStream.Subscriber() {
+            @Override
+            public void onStateChanged(@NonNull CalcState state) {
+                last[0] = state;
+            }
+        }, executor);
+        stream.emit(null, "1 ÷ 0", 0);
+        executor.runAll();
+        assertNull(last[0].getValue());
+        assertEquals(CalcState.Error.values()[0], last[0].getError());
+    }
+
+    private class RecordingSubscriber implements CalcStateStream.Subscriber {
+        @Override
+        public void onStateChanged(@NonNull CalcState state) {
+            received.add(state.getExpression());
+        }
+    }
+
+    /**
+     * Executor running commands only when asked to, like a handler between two messages.
+     */
+    private static final class QueueExecutor implements Executor {
+
+        final Queue<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            queue.add(command);
+        }
+
+        void runNext() {
+            queue.remove().run();
+        }
+
+        void runAll() {
+            while (!queue.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+
+}
@@ -18,10 +18,27 @@ package com.maltaisn.calcdialog;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ExpressionTest {
 
@@ -87,4 +104,570 @@ public class ExpressionTest {
         assertEquals(result, new BigDecimal("0.125"));
     }
 
+    @Test
+    public void writeAndReadBinary() throws IOException {
+        Expression expr = new Expression();
+        expr.numbers.add(new BigDecimal("-12.50"));
+        expr.operators.add(Expression.Operator.MULTIPLY);
+        expr.numbers.add(new BigDecimal("123456789012345678901234567890.123"));
+        expr.operators.add(Expression.Operator.SUBTRACT);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        expr.writeTo(new DataOutputStream(bytes));
+        Expression read = Expression.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(expr.numbers, read.numbers);
+        assertEquals(expr.operators, read.operators);
+    }
+
+    @Test
+    public void writeAndReadLargeNumber() throws IOException {
+        // Unscaled value longer than 65535 bytes.
+        BigDecimal large = new BigDecimal(BigInteger.ONE.shiftLeft(600000).negate(), 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Expression.writeNumber(new DataOutputStream(bytes), large);
+        assertEquals(large, Expression.readNumber(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))));
+
+        // Invalid lengths are rejected without allocating anything.
+        for (int length : new int[]{0, -1, Integer.MAX_VALUE}) {
+            bytes.reset();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(length);
+            try {
+                Expression.readNumber(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void writeAndReadGroups() throws IOException {
+        // 2 × (3 + 4)
+        Expression group = new Expression();
+        group.addNumber(new BigDecimal("3"));
+        group.addOperator(Expression.Operator.ADD);
+        group.addNumber(new BigDecimal("4"));
+        BigDecimal value = group.evaluate(true, 8, RoundingMode.HALF_UP);
+
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addGroup(value, group);
+        assertEquals(new BigDecimal("14"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertNull(expr.getGroup(0));
+        assertSame(group, expr.getGroup(1));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        expr.writeTo(new DataOutputStream(bytes));
+        Expression read = Expression.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(expr.numbers, read.numbers);
+        Expression readGroup = read.getGroup(1);
+        assertTrue(readGroup != null);
+        assertEquals(group.numbers, readGroup.numbers);
+        assertEquals(group.operators, readGroup.operators);
+    }
+
+    @Test
+    public void groupsKeptWhenEdited() {
+        // 2 × (3 + 4) − 1
+        Expression group = new Expression();
+        group.addNumber(new BigDecimal("3"));
+        group.addOperator(Expression.Operator.ADD);
+        group.addNumber(new BigDecimal("4"));
+
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addGroup(new BigDecimal("7"), group);
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(BigDecimal.ONE);
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        assertEquals("2 × (3 + 4) − 1", expr.format(nbFormat).trim());
+
+        // Terms after the change are created again with their group.
+        expr.setOperator(0, Expression.Operator.ADD);
+        assertEquals("2 + (3 + 4) − 1", expr.format(nbFormat).trim());
+        expr.setNumber(2, new BigDecimal("5"));
+        assertSame(group, expr.getGroup(1));
+        expr.removeNumber(0);
+        assertEquals("(3 + 4) − 5", expr.format(nbFormat).trim());
+        assertEquals(new BigDecimal("2"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+
+        // Copies and restored snapshots have the group, a replaced group is a number.
+        Expression copy = expr.copy();
+        assertSame(group, copy.getGroup(0));
+        Expression.Term snapshot = expr.getLastTerm();
+        expr.setNumber(0, new BigDecimal("7"));
+        assertNull(expr.getGroup(0));
+        assertEquals("7 − 5", expr.format(nbFormat).trim());
+        expr.restore(snapshot);
+        assertSame(group, expr.getGroup(0));
+    }
+
+    @Test
+    public void resultTooLarge() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("99999999"));
+        for (int i = 0; i < 10; i++) {
+            expr.addOperator(Expression.Operator.MULTIPLY);
+            expr.addNumber(new BigDecimal("99999999"));
+        }
+        assertEquals(88, expr.evaluate(true, 8, RoundingMode.HALF_UP, 100).precision());
+        try {
+            expr.evaluate(true, 8, RoundingMode.HALF_UP, 80);
+            fail();
+        } catch (Expression.EvaluationException e) {
+            assertEquals(Expression.EvaluationException.TOO_LARGE, e.reason);
+        }
+    }
+
+    @Test
+    public void restoreSnapshot() {
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("1"));
+        expr.addOperator(Expression.Operator.ADD);
+        Expression.Term common = expr.getLastTerm();
+
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        Expression.Term snapshot = expr.getLastTerm();
+
+        expr.setLastOperator(Expression.Operator.DIVIDE);
+        expr.addNumber(new BigDecimal("3"));
+        assertEquals(Arrays.asList(new BigDecimal("1"), new BigDecimal("2"), new BigDecimal("3")), expr.numbers);
+        assertEquals(Arrays.asList(Expression.Operator.ADD, Expression.Operator.DIVIDE), expr.operators);
+
+        expr.restore(snapshot);
+        assertEquals(Arrays.asList(new BigDecimal("1"), new BigDecimal("2")), expr.numbers);
+        assertEquals(Arrays.asList(Expression.Operator.ADD, Expression.Operator.MULTIPLY), expr.operators);
+        assertSame(snapshot, expr.getLastTerm());
+
+        expr.restore(common);
+        expr.addNumber(new BigDecimal("4"));
+        assertEquals(Arrays.asList(new BigDecimal("1"), new BigDecimal("4")), expr.numbers);
+
+        expr.restore(snapshot);
+        assertEquals(Arrays.asList(new BigDecimal("1"), new BigDecimal("2")), expr.numbers);
+        assertEquals(Arrays.asList(Expression.Operator.ADD, Expression.Operator.MULTIPLY), expr.operators);
+
+        expr.restore(null);
+        assertTrue(expr.isEmpty());
+    }
+
+    @Test
+    public void editInMiddle() {
+        Random random = new Random(0);
+        Expression.Operator[] ops = Expression.Operator.values();
+        for (boolean priority : new boolean[]{true, false}) {
+            Expression expr = new Expression();
+            expr.addNumber(new BigDecimal(random.nextInt(20) + 1));
+            for (int i = 0; i < 40; i++) {
+                expr.addOperator(ops[random.nextInt(ops.length)]);
+                expr.addNumber(new BigDecimal(random.nextInt(20) + 1));
+            }
+            evaluateOrError(expr, priority);
+
+            for (int i = 0; i < 200; i++) {
+                int action = random.nextInt(3);
+                if (action == 0) {
+                    expr.setNumber(random.nextInt(expr.numbers.size()),
+                            new BigDecimal(random.nextInt(20) + 1));
+                } else if (action == 1) {
+                    expr.setOperator(random.nextInt(expr.operators.size()),
+                            ops[random.nextInt(ops.length)]);
+                } else if (expr.numbers.size() > 2) {
+                    expr.removeNumber(random.nextInt(expr.numbers.size()));
+                }
+
+                // Compare with a new expression evaluated from scratch.
+                Expression copy = new Expression();
+                copy.numbers.addAll(expr.numbers);
+                copy.operators.addAll(expr.operators);
+                assertEquals(evaluateOrError(copy, priority), evaluateOrError(expr, priority));
+            }
+        }
+    }
+
+    @Test
+    public void listsReplacedDirectly() {
+        // 2 + 3 × 4, with its group checked and evaluated.
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("4"));
+        expr.checkLastGroup(true, 8, RoundingMode.HALF_UP, 1000);
+        assertEquals(new BigDecimal("14"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        Expression.Term snapshot = expr.getLastTerm();
+
+        // Elements replaced without changing the size, terms and evaluator are built again.
+        expr.numbers.set(2, new BigDecimal("5"));
+        assertEquals(new BigDecimal("17"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        assertTrue(expr.getLastTerm() != snapshot);
+        expr.operators.set(1, Expression.Operator.DIVIDE);
+        expr.numbers.set(2, BigDecimal.ZERO);
+        try {
+            expr.checkLastGroup(true, 8, RoundingMode.HALF_UP, 1000);
+            fail();
+        } catch (Expression.EvaluationException e) {
+            assertEquals(Expression.EvaluationException.DIVISION_BY_ZERO, e.reason);
+        }
+        assertEquals("2 + 3 ÷ 0", expr.format(NumberFormat.getInstance(Locale.US)).trim());
+
+        // Snapshot taken before the change is still the expression as it was.
+        expr.restore(snapshot);
+        assertEquals(new BigDecimal("4"), expr.numbers.get(2));
+        assertEquals(Expression.Operator.MULTIPLY, expr.operators.get(1));
+        assertEquals(new BigDecimal("14"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+    }
+
+    @Test
+    public void checkLastGroup() {
+        // Checking the last group after each number finds the first error found by evaluating.
+        Random random = new Random(3);
+        Expression.Operator[] ops = Expression.Operator.values();
+        for (boolean priority : new boolean[]{true, false}) {
+            for (int n = 0; n < 300; n++) {
+                Expression expr = new Expression();
+                Expression copy = new Expression();
+                for (int i = 0; i < 10; i++) {
+                    if (i > 0) {
+                        Expression.Operator op = ops[random.nextInt(ops.length)];
+                        expr.addOperator(op);
+                        copy.addOperator(op);
+                    }
+                    BigDecimal number = new BigDecimal(random.nextInt(9) - 2).scaleByPowerOfTen(
+                            random.nextInt(4) == 0 ? -random.nextInt(5) : 0);
+                    expr.addNumber(number);
+                    copy.addNumber(number);
+
+                    Object checked;
+                    try {
+                        expr.checkLastGroup(priority, 8, RoundingMode.HALF_UP, 40);
+                        checked = null;
+                    } catch (Expression.EvaluationException e) {
+                        checked = e.reason;
+                    }
+                    Object evaluated;
+                    try {
+                        copy.evaluate(priority, 8, RoundingMode.HALF_UP, 40);
+                        evaluated = null;
+                    } catch (Expression.EvaluationException e) {
+                        evaluated = e.reason;
+                    }
+                    assertEquals(evaluated, checked);
+                    if (checked != null) break;
+                }
+                // The expression itself was never evaluated.
+                assertFalse(expr.isEvaluated(priority, 8, RoundingMode.HALF_UP, 40));
+            }
+        }
+    }
+
+    private static Object evaluateOrError(Expression expr, boolean priority) {
+        try {
+            return expr.evaluate(priority, 8, RoundingMode.HALF_UP);
+        } catch (Expression.EvaluationException e) {
+            return e.reason;
+        }
+    }
+
+    @Test
+    public void powerPriority() {
+        // 2 + 3 × 2 ^ 3 ^ 2 = 2 + 3 × 64
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.POWER);
+        expr.addNumber(new BigDecimal("3"));
+        expr.addOperator(Expression.Operator.POWER);
+        expr.addNumber(new BigDecimal("2"));
+        assertEquals(0, new BigDecimal("194").compareTo(expr.evaluate(true, 8, RoundingMode.HALF_UP)));
+        assertEquals(0, new BigDecimal("1000000").compareTo(expr.evaluate(false, 8, RoundingMode.HALF_UP)));
+    }
+
+    @Test
+    public void powerAndSquareRoot() {
+        RoundingMode rm = RoundingMode.HALF_UP;
+        assertEquals(0, new BigDecimal("0.125").compareTo(
+                CalcMath.pow(new BigDecimal("2"), new BigDecimal("-3"), 8, rm, 1000)));
+        assertEquals(0, new BigDecimal("4").compareTo(
+                CalcMath.pow(new BigDecimal("16"), new BigDecimal("0.5"), 8, rm, 1000)));
+        assertEquals(0, BigDecimal.ONE.negate().compareTo(
+                CalcMath.pow(BigDecimal.ONE.negate(), new BigDecimal("1e30").add(BigDecimal.ONE), 8, rm, 1000)));
+        assertEquals(new BigDecimal("1.41421356"), CalcMath.sqrt(new BigDecimal("2"), 8, rm));
+        assertEquals(0, new BigDecimal("1e50").compareTo(CalcMath.sqrt(new BigDecimal("1e100"), 8, rm)));
+
+        try {
+            CalcMath.pow(new BigDecimal("10"), new BigDecimal("100000"), 8, rm, 1000);
+            fail();
+        } catch (Expression.EvaluationException e) {
+            assertEquals(Expression.EvaluationException.TOO_LARGE, e.reason);
+        }
+        try {
+            CalcMath.sqrt(new BigDecimal("-1"), 8, rm);
+            fail();
+        } catch (Expression.EvaluationException e) {
+            assertEquals(Expression.EvaluationException.INVALID_OPERATION, e.reason);
+        }
+    }
+
+    @Test
+    public void fractionalPowerPrecision() {
+        // Fractional powers are exact past double precision.
+        RoundingMode rm = RoundingMode.HALF_EVEN;
+        BigDecimal sqrt2 = CalcMath.sqrt(new BigDecimal("2"), 60, rm);
+        assertEquals(sqrt2.multiply(new BigDecimal("2")).setScale(40, rm),
+                CalcMath.pow(new BigDecimal("2"), new BigDecimal("1.5"), 40, rm, 1000));
+
+        BigDecimal root4 = CalcMath.sqrt(CalcMath.sqrt(new BigDecimal("10"), 80, rm), 60, rm);
+        assertEquals(root4.setScale(40, rm),
+                CalcMath.pow(new BigDecimal("10"), new BigDecimal("0.25"), 40, rm, 1000));
+
+        BigDecimal large = CalcMath.sqrt(new BigDecimal("123456789.123"), 30, rm).pow(3);
+        assertEquals(large.setScale(12, rm),
+                CalcMath.pow(new BigDecimal("123456789.123"), new BigDecimal("1.5"), 12, rm, 1000));
+
+        assertEquals(0, new BigDecimal("4").compareTo(
+                CalcMath.pow(new BigDecimal("16"), new BigDecimal("0.5"), 30, rm, 1000)));
+        assertEquals(0, new BigDecimal("0.5").compareTo(
+                CalcMath.pow(new BigDecimal("0.25"), new BigDecimal("0.5"), 30, rm, 1000)));
+    }
+
+    @Test
+    public void compiledMatchesEvaluation() {
+        Random random = new Random(0);
+        Expression.Operator[] ops = {Expression.Operator.ADD, Expression.Operator.SUBTRACT,
+                Expression.Operator.MULTIPLY, Expression.Operator.DIVIDE};
+        for (boolean priority : new boolean[]{true, false}) {
+            // Expression with placeholders at random positions, and the same with values.
+            Expression expr = new Expression();
+            expr.addPlaceholder();
+            for (int i = 0; i < 10; i++) {
+                expr.addOperator(ops[random.nextInt(ops.length)]);
+                if (random.nextInt(4) == 0) {
+                    expr.addPlaceholder();
+                } else {
+                    expr.addNumber(new BigDecimal(random.nextInt(20) + 1));
+                }
+            }
+            CompiledExpression compiled = expr.compile(priority, 8, RoundingMode.HALF_UP);
+
+            BigDecimal[] values = new BigDecimal[10000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new BigDecimal(random.nextInt(2000) - 1000).movePointLeft(2);
+            }
+            BigDecimal[] results = compiled.applyAll(values);
+
+            for (int i = 0; i < values.length; i += 97) {
+                Expression replaced = new Expression();
+                for (int j = 0; j < expr.numbers.size(); j++) {
+                    BigDecimal number = expr.numbers.get(j);
+                    replaced.addNumber(number == null ? values[i] : number);
+                    if (j < expr.operators.size()) {
+                        replaced.addOperator(expr.operators.get(j));
+                    }
+                }
+                Object expected = evaluateOrError(replaced, priority);
+                assertEquals(expected instanceof BigDecimal ? expected : null, results[i]);
+                if (results[i] != null) {
+                    assertEquals(results[i], compiled.apply(values[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compiledScaledValues() {
+        // × 1.15 − 2
+        Expression expr = new Expression();
+        expr.addPlaceholder();
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addNumber(new BigDecimal("1.15"));
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addNumber(new BigDecimal("2"));
+        CompiledExpression compiled = expr.compile(true, 8, RoundingMode.HALF_EVEN);
+
+        long[] results = compiled.applyAll(new long[]{1000, 1999, -50}, 2);
+        assertTrue(Arrays.equals(new long[]{950, 2099, -258}, results));
+    }
+
+    @Test
+    public void compiledVariables() {
+        // subtotal × taxRate + fee
+        Expression expr = new Expression();
+        expr.addVariable("subtotal");
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addVariable("taxRate");
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addVariable("fee");
+        assertEquals("subtotal × taxRate + fee", expr.format(NumberFormat.getInstance()).trim());
+
+        CompiledExpression compiled = expr.compile(true, 8, RoundingMode.HALF_UP);
+        assertEquals(Arrays.asList("subtotal", "taxRate", "fee"), compiled.getVariableNames());
+        assertEquals(new BigDecimal("117"), compiled.evaluate(
+                new BigDecimal("100"), new BigDecimal("1.15"), new BigDecimal("2")));
+
+        Map<String, BigDecimal> values = new HashMap<>();
+        values.put("subtotal", new BigDecimal("10"));
+        values.put("taxRate", new BigDecimal("0.5"));
+        values.put("fee", new BigDecimal("-5"));
+        assertEquals(BigDecimal.ZERO, compiled.evaluate(values));
+
+        // Random expressions with constants, variables and all operators.
+        Random random = new Random(1);
+        Expression.Operator[] ops = Expression.Operator.values();
+        String[] variables = {"a", "b"};
+        for (boolean priority : new boolean[]{true, false}) {
+            for (int n = 0; n < 50; n++) {
+                Expression random1 = new Expression();
+                for (int i = 0; i < 12; i++) {
+                    if (i > 0) {
+                        random1.addOperator(ops[random.nextInt(ops.length)]);
+                    }
+                    if (random.nextInt(3) == 0) {
+                        random1.addVariable(variables[random.nextInt(2)]);
+                    } else {
+                        random1.addNumber(new BigDecimal(random.nextInt(7) - 2));
+                    }
+                }
+                CompiledExpression compiled1 = random1.compile(priority, 8, RoundingMode.HALF_UP);
+                BigDecimal[] bound = new BigDecimal[compiled1.getVariableNames().size()];
+                for (int i = 0; i < bound.length; i++) {
+                    bound[i] = new BigDecimal(random.nextInt(7) - 2);
+                }
+
+                Expression replaced = new Expression();
+                Expression.Term[] terms = random1.getNumberTerms();
+                for (int i = 0; i < terms.length; i++) {
+                    BigDecimal number = terms[i].number;
+                    if (terms[i].variable != null) {
+                        number = bound[compiled1.getVariableNames().indexOf(terms[i].variable)];
+                    }
+                    if (i > 0) {
+                        replaced.addOperator(random1.operators.get(i - 1));
+                    }
+                    replaced.addNumber(number);
+                }
+
+                Object result;
+                try {
+                    result = compiled1.evaluate(bound);
+                } catch (Expression.EvaluationException e) {
+                    result = e.reason;
+                }
+                assertEquals(evaluateOrError(replaced, priority), result);
+            }
+        }
+    }
+
+    @Test
+    public void variablesAreNotNumbers() {
+        // Evaluating without compiling fails, even after the expression was evaluated.
+        Expression expr = new Expression();
+        expr.addNumber(new BigDecimal("2"));
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addNumber(new BigDecimal("3"));
+        assertEquals(new BigDecimal("5"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addVariable("a");
+        assertNull(expr.numbers.get(2));
+        try {
+            expr.evaluate(true, 8, RoundingMode.HALF_UP);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            expr.checkLastGroup(true, 8, RoundingMode.HALF_UP, 1000);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        expr.setNumber(2, new BigDecimal("4"));
+        assertEquals(new BigDecimal("14"), expr.evaluate(true, 8, RoundingMode.HALF_UP));
+
+        try {
+            expr.addVariable("");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Placeholder is added with addPlaceholder.
+        }
+    }
+
+    @Test
+    public void variablesKeptWhenEdited() throws IOException {
+        // 1 + a × ? − b
+        Expression expr = new Expression();
+        expr.addNumber(BigDecimal.ONE);
+        expr.addOperator(Expression.Operator.ADD);
+        expr.addVariable("a");
+        expr.addOperator(Expression.Operator.MULTIPLY);
+        expr.addPlaceholder();
+        expr.addOperator(Expression.Operator.SUBTRACT);
+        expr.addVariable("b");
+        NumberFormat nbFormat = NumberFormat.getInstance(Locale.US);
+        assertEquals("1 + a × ? − b", expr.format(nbFormat).trim());
+
+        // Terms after the change are created again with their variable.
+        expr.setOperator(0, Expression.Operator.SUBTRACT);
+        assertEquals("1 − a × ? − b", expr.format(nbFormat).trim());
+        expr.setNumber(2, new BigDecimal("2"));
+        assertEquals("1 − a × 2 − b", expr.format(nbFormat).trim());
+        expr.removeNumber(0);
+        assertEquals("a × 2 − b", expr.format(nbFormat).trim());
+
+        // Variables are written with their name.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        expr.writeTo(new DataOutputStream(bytes));
+        Expression read = Expression.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals("a × 2 − b", read.format(nbFormat).trim());
+        assertEquals(Arrays.asList("a", "b"), read.compile(true, 8, RoundingMode.HALF_UP)
+                .getVariableNames());
+
+        // Restoring a snapshot with a variable.
+        Expression.Term snapshot = expr.getLastTerm();
+        expr.removeLastNumber();
+        expr.addNumber(BigDecimal.TEN);
+        assertEquals("a × 2 − 10", expr.format(nbFormat).trim());
+        expr.restore(snapshot);
+        assertEquals("a × 2 − b", expr.format(nbFormat).trim());
+    }
+
+    @Test
+    public void traceSections() {
+        RecordingTracer tracer = new RecordingTracer();
+        CalcTracer.setTracer(tracer);
+        try {
+            Expression expr = new Expression();
+            expr.addNumber(new BigDecimal("1"));
+            expr.addOperator(Expression.Operator.DIVIDE);
+            expr.addNumber(BigDecimal.ZERO);
+            try {
+                expr.evaluate(true, 8, RoundingMode.HALF_UP);
+                fail();
+            } catch (Expression.EvaluationException e) {
+                // Section is ended even if evaluation failed.
+            }
+            expr.format(NumberFormat.getInstance());
+        } finally {
+            CalcTracer.setTracer(CalcTracer.NONE);
+        }
+
+        assertEquals(Arrays.asList("Expression.evaluate", "Expression.format"), tracer.sections);
+        assertTrue(tracer.isBalanced());
+    }
+
 }
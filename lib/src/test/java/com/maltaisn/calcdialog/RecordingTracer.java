@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 Nicolas Maltais
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.maltaisn.calcdialog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Tracer recording sections on the JVM, to check in tests which sections
+ * were begun and that they are correctly nested.
+ */
+public class RecordingTracer extends CalcTracer {
+
+    /** Names of the sections begun, in order. */
+    final List<String> sections = new ArrayList<>();
+
+    private final ArrayDeque<String> openSections = new ArrayDeque<>();
+
+    @Override
+    public void beginSection(@NonNull String name) {
+        sections.add(name);
+        openSections.push(name);
+    }
+
+    @Override
+    public void endSection() {
+        if (openSections.isEmpty()) {
+            throw new IllegalStateException("No section to end.");
+        }
+        openSections.pop();
+    }
+
+    /**
+     * Whether all sections begun were ended.
+     */
+    boolean isBalanced() {
+        return openSections.isEmpty();
+    }
+
+}